@@ -2,18 +2,48 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
 
 public class ModernBankingSystem extends JFrame {
 
     private final JTextField holderInput = new JTextField(15);
     private final JTextField moneyInput = new JTextField(10);
     private final JTextArea historyDisplay = new JTextArea();
-    private double currentBalance = 0.0;
     private final ArrayList<String> logs = new ArrayList<>();
+    // Accounts outlive the window; the buttons work on the one created or
+    // picked last
+    private final LedgerStore store;
+    private final Ledger ledger;
+    private int account = -1;
 
-    public ModernBankingSystem() {
+    public ModernBankingSystem(LedgerStore store) {
+        this.store = store;
+        this.ledger = store.getLedger();
         setTitle("Modern Banking System");
         setSize(800, 600);
         setLocationRelativeTo(null);
@@ -29,6 +59,10 @@ public class ModernBankingSystem extends JFrame {
         JButton createAccountBtn = new JButton("Create Account");
         createAccountBtn.addActionListener(e -> handleAccountCreation());
         header.add(createAccountBtn);
+
+        JButton useAccountBtn = new JButton("Use Account");
+        useAccountBtn.addActionListener(e -> handleUseAccount());
+        header.add(useAccountBtn);
         add(header, BorderLayout.NORTH);
 
         historyDisplay.setFont(new Font("Consolas", Font.PLAIN, 14));
@@ -47,6 +81,9 @@ public class ModernBankingSystem extends JFrame {
         JButton withdrawBtn = new JButton("Withdraw");
         withdrawBtn.addActionListener(e -> withdrawFunds());
 
+        JButton transferBtn = new JButton("Transfer");
+        transferBtn.addActionListener(e -> transferFunds());
+
         JButton checkBtn = new JButton("View Balance");
         checkBtn.addActionListener(e -> showBalance());
 
@@ -55,6 +92,7 @@ public class ModernBankingSystem extends JFrame {
 
         actions.add(depositBtn);
         actions.add(withdrawBtn);
+        actions.add(transferBtn);
         actions.add(checkBtn);
         actions.add(resetBtn);
 
@@ -67,23 +105,50 @@ public class ModernBankingSystem extends JFrame {
             JOptionPane.showMessageDialog(this, "Please enter the account holder's name.");
             return;
         }
-        currentBalance = 0;
+        try {
+            account = ledger.open();
+        } catch (IllegalStateException | UncheckedIOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not record the new account: " + ex.getMessage());
+            return;
+        }
+        logs.clear();
+        historyDisplay.setText("");
+        record("Account " + account + " created for " + name);
+        holderInput.setEditable(false);
+    }
+
+    private void handleUseAccount() {
+        String text = JOptionPane.showInputDialog(this, "Account number:");
+        if (text == null) return;
+        try {
+            int number = Integer.parseInt(text.trim());
+            if (number < 0 || number >= ledger.size()) throw new NumberFormatException();
+            account = number;
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "No such account.");
+            return;
+        }
         logs.clear();
         historyDisplay.setText("");
-        record("Account created for " + name);
+        holderInput.setText("Account " + account);
         holderInput.setEditable(false);
+        record("Using account " + account);
     }
 
     private void depositFunds() {
         if (!accountReady()) return;
 
         try {
-            double amount = Double.parseDouble(moneyInput.getText());
+            long amount = Money.parseCents(moneyInput.getText().trim());
             if (amount <= 0) throw new NumberFormatException();
-            currentBalance += amount;
-            record("Deposited $" + amount);
+            ledger.deposit(account, amount);
+            record("Deposited $" + Money.format(amount));
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Enter a valid amount to deposit.");
+        } catch (ArithmeticException ex) {
+            JOptionPane.showMessageDialog(this, "That deposit is too large.");
+        } catch (IllegalStateException | UncheckedIOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not record the deposit: " + ex.getMessage());
         }
     }
 
@@ -91,25 +156,54 @@ public class ModernBankingSystem extends JFrame {
         if (!accountReady()) return;
 
         try {
-            double amount = Double.parseDouble(moneyInput.getText());
-            if (amount <= 0 || amount > currentBalance) {
+            long amount = Money.parseCents(moneyInput.getText().trim());
+            if (amount <= 0 || !ledger.withdraw(account, amount)) {
                 JOptionPane.showMessageDialog(this, "Invalid withdrawal amount.");
                 return;
             }
-            currentBalance -= amount;
-            record("Withdrew $" + amount);
-        } catch (NumberFormatException ex) {
+            record("Withdrew $" + Money.format(amount));
+        } catch (NumberFormatException | ArithmeticException ex) {
             JOptionPane.showMessageDialog(this, "Enter a valid amount to withdraw.");
+        } catch (IllegalStateException | UncheckedIOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not record the withdrawal: " + ex.getMessage());
+        }
+    }
+
+    private void transferFunds() {
+        if (!accountReady()) return;
+
+        try {
+            long amount = Money.parseCents(moneyInput.getText().trim());
+            if (amount <= 0) throw new NumberFormatException();
+            String to = JOptionPane.showInputDialog(this, "Transfer $" + Money.format(amount) + " to account:");
+            if (to == null) return;
+            int target = Integer.parseInt(to.trim());
+            if (target < 0 || target >= ledger.size() || target == account) {
+                JOptionPane.showMessageDialog(this, "No such account to transfer to.");
+                return;
+            }
+            if (!ledger.transfer(account, target, amount)) {
+                JOptionPane.showMessageDialog(this, "Invalid transfer amount.");
+                return;
+            }
+            record("Transferred $" + Money.format(amount) + " to account " + target);
+        } catch (NumberFormatException | ArithmeticException ex) {
+            JOptionPane.showMessageDialog(this, "Enter a valid amount and account number.");
+        } catch (IllegalStateException | UncheckedIOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not record the transfer: " + ex.getMessage());
         }
     }
 
     private void showBalance() {
         if (!accountReady()) return;
-        JOptionPane.showMessageDialog(this, "Current Balance: $" + String.format("%.2f", currentBalance));
+        String balance = "Current Balance: $" + Money.format(ledger.balance(account));
+        // Snapshots only speed up the next start; the log still has everything
+        if (store.getError() != null) balance += "\n" + store.getError();
+        JOptionPane.showMessageDialog(this, balance);
     }
 
     private boolean accountReady() {
-        if (holderInput.getText().trim().isEmpty() || holderInput.isEditable()) {
+        if (account < 0) {
             JOptionPane.showMessageDialog(this, "Create an account first.");
             return false;
         }
@@ -121,7 +215,7 @@ public class ModernBankingSystem extends JFrame {
         moneyInput.setText("");
         historyDisplay.setText("");
         holderInput.setEditable(true);
-        currentBalance = 0;
+        account = -1;
         logs.clear();
     }
 
@@ -134,6 +228,932 @@ public class ModernBankingSystem extends JFrame {
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ModernBankingSystem().setVisible(true));
+        if (args.length > 0 && args[0].equals("--bench")) {
+            LedgerBench.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--bench-durable")) {
+            try {
+                LedgerBench.runDurable(Paths.get(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 256);
+            } catch (IOException ex) {
+                System.out.println("Failed: " + ex.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        // The ledger lives in bank-data next to the program
+        LedgerStore store;
+        try {
+            store = LedgerStore.open(Paths.get("bank-data"));
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Cannot open the ledger: " + ex.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                store.close();
+            } catch (IOException ex) {
+                // Everything acknowledged is in the log already
+            }
+        }));
+        SwingUtilities.invokeLater(() -> new ModernBankingSystem(store).setVisible(true));
+    }
+
+    // Amounts are whole cents in a long; text is only parsed at the edge
+    // and formatted for display
+    static class Money {
+        private Money() {
+        }
+
+        // "12", "12.5" or "12.50"; no sign, at most two decimals
+        static long parseCents(String text) {
+            int dot = text.indexOf('.');
+            int end = dot < 0 ? text.length() : dot;
+            int decimals = dot < 0 ? 0 : text.length() - dot - 1;
+            if (end == 0 && decimals == 0 || decimals > 2) throw new NumberFormatException("Not an amount: " + text);
+            long cents = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (i == dot) continue;
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') throw new NumberFormatException("Not an amount: " + text);
+                cents = Math.addExact(Math.multiplyExact(cents, 10), c - '0');
+            }
+            for (int i = decimals; i < 2; i++) {
+                cents = Math.multiplyExact(cents, 10);
+            }
+            return cents;
+        }
+
+        static String format(long cents) {
+            StringBuilder text = new StringBuilder(24);
+            if (cents < 0) text.append('-');
+            long abs = Math.abs(cents);
+            long fraction = abs % 100;
+            return text.append(abs / 100).append('.').append(fraction < 10 ? "0" : "").append(fraction).toString();
+        }
+    }
+
+    // Balances of any number of accounts, in cents, for use from many
+    // threads at once. Accounts are numbered from 0 as they are opened and
+    // kept in pages of a long array, 8 bytes an account. Each account is
+    // guarded by one of STRIPES locks chosen by its number, so operations
+    // on different accounts rarely meet. The funds check and the debit
+    // happen under the same lock, and a transfer takes both accounts'
+    // locks in stripe order, so two opposite transfers cannot deadlock.
+    // With a log attached, each change is logged under its locks and the
+    // call returns once the log has it on disk.
+    static class Ledger {
+        private static final int STRIPES = 4096;
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        private final Object opening = new Object();
+        private volatile long[][] pages = new long[16][];
+        private volatile int size;
+        private TransactionLog log;
+
+        // The balances as of one log sequence number
+        static final class State {
+            final long sequence;
+            final long[][] pages;
+            final int size;
+
+            State(long sequence, long[][] pages, int size) {
+                this.sequence = sequence;
+                this.pages = pages;
+                this.size = size;
+            }
+        }
+
+        // Padded so neighbouring locks do not share a cache line
+        @SuppressWarnings("unused")
+        private static final class Stripe extends ReentrantLock {
+            private long p1, p2, p3, p4, p5, p6, p7;
+        }
+
+        Ledger() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        // Before the ledger is shared; every change from then on is logged
+        void attach(TransactionLog log) {
+            this.log = log;
+        }
+
+        // Returns the new account's number; it starts empty
+        int open() {
+            int account;
+            long sequence;
+            synchronized (opening) {
+                account = size;
+                if (account == Integer.MAX_VALUE) throw new IllegalStateException("Ledger is full");
+                sequence = log(TransactionLog.OPEN, account, -1, 0);
+                long[][] current = pages;
+                int page = account >>> PAGE_BITS;
+                if (page == current.length) current = Arrays.copyOf(current, page * 2);
+                if (current[page] == null) current[page] = new long[PAGE_SIZE];
+                pages = current;
+                size = account + 1;
+            }
+            awaitDurable(sequence);
+            return account;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long balance(int account) {
+            ReentrantLock lock = lockFor(account);
+            lock.lock();
+            try {
+                return get(account);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void deposit(int account, long cents) {
+            checkAmount(cents);
+            ReentrantLock lock = lockFor(account);
+            long sequence;
+            lock.lock();
+            try {
+                long balance = Math.addExact(get(account), cents);
+                sequence = log(TransactionLog.DEPOSIT, account, -1, cents);
+                set(account, balance);
+            } finally {
+                lock.unlock();
+            }
+            awaitDurable(sequence);
+        }
+
+        // False, and nothing changes, if the account holds less than cents
+        boolean withdraw(int account, long cents) {
+            checkAmount(cents);
+            ReentrantLock lock = lockFor(account);
+            long sequence;
+            lock.lock();
+            try {
+                long balance = get(account);
+                if (balance < cents) return false;
+                sequence = log(TransactionLog.WITHDRAW, account, -1, cents);
+                set(account, balance - cents);
+            } finally {
+                lock.unlock();
+            }
+            awaitDurable(sequence);
+            return true;
+        }
+
+        // False, and nothing changes, if from holds less than cents
+        boolean transfer(int from, int to, long cents) {
+            checkAmount(cents);
+            ReentrantLock fromLock = lockFor(from);
+            ReentrantLock toLock = lockFor(to);
+            ReentrantLock first = (from & (STRIPES - 1)) <= (to & (STRIPES - 1)) ? fromLock : toLock;
+            ReentrantLock second = first == fromLock ? toLock : fromLock;
+            long sequence = 0;
+            first.lock();
+            second.lock();
+            try {
+                long balance = get(from);
+                if (balance < cents) return false;
+                if (from != to) {
+                    long credited = Math.addExact(get(to), cents);
+                    sequence = log(TransactionLog.TRANSFER, from, to, cents);
+                    set(from, balance - cents);
+                    set(to, credited);
+                }
+            } finally {
+                second.unlock();
+                first.unlock();
+            }
+            awaitDurable(sequence);
+            return true;
+        }
+
+        // Sum of all balances, with every stripe held so no transfer is
+        // seen half done; stops the ledger while it runs
+        long total() {
+            for (Stripe stripe : stripes) {
+                stripe.lock();
+            }
+            try {
+                long total = 0;
+                for (int account = 0; account < size; account++) {
+                    total = Math.addExact(total, get(account));
+                }
+                return total;
+            } finally {
+                for (int i = STRIPES - 1; i >= 0; i--) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+
+        // Every balance, copied with account opening and every stripe held
+        // so no change is half applied or half logged; holds up the ledger
+        // for the copy, a few milliseconds a million accounts
+        State capture() {
+            synchronized (opening) {
+                for (Stripe stripe : stripes) {
+                    stripe.lock();
+                }
+                try {
+                    long[][] copy = new long[pages.length][];
+                    for (int page = 0; page < (size + PAGE_SIZE - 1) >>> PAGE_BITS; page++) {
+                        copy[page] = pages[page].clone();
+                    }
+                    return new State(log == null ? 0 : log.lastSequence(), copy, size);
+                } finally {
+                    for (int i = STRIPES - 1; i >= 0; i--) {
+                        stripes[i].unlock();
+                    }
+                }
+            }
+        }
+
+        // Recovery only, before the ledger is shared
+        void restore(long[][] pages, int size) {
+            this.pages = pages;
+            this.size = size;
+        }
+
+        // Applies one logged change during recovery, before the ledger is
+        // shared; false if it cannot apply to these balances
+        boolean replay(int type, int account, int other, long cents) {
+            if (type == TransactionLog.OPEN) {
+                if (account != size) return false;
+                open();
+                return true;
+            }
+            if (account < 0 || account >= size || cents <= 0) return false;
+            long balance = get(account);
+            switch (type) {
+                case TransactionLog.DEPOSIT:
+                    if (balance > Long.MAX_VALUE - cents) return false;
+                    set(account, balance + cents);
+                    return true;
+                case TransactionLog.WITHDRAW:
+                    if (balance < cents) return false;
+                    set(account, balance - cents);
+                    return true;
+                case TransactionLog.TRANSFER:
+                    if (other < 0 || other >= size || other == account || balance < cents) return false;
+                    if (get(other) > Long.MAX_VALUE - cents) return false;
+                    set(account, balance - cents);
+                    set(other, get(other) + cents);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private long log(int type, int account, int other, long cents) {
+            return log == null ? 0 : log.append(type, account, other, cents);
+        }
+
+        private void awaitDurable(long sequence) {
+            if (log != null && sequence > 0) log.awaitDurable(sequence);
+        }
+
+        private ReentrantLock lockFor(int account) {
+            if (account < 0 || account >= size) throw new IllegalArgumentException("No account " + account);
+            return stripes[account & (STRIPES - 1)];
+        }
+
+        private static void checkAmount(long cents) {
+            if (cents <= 0) throw new IllegalArgumentException("Amount must be positive");
+        }
+
+        private long get(int account) {
+            return pages[account >>> PAGE_BITS][account & PAGE_MASK];
+        }
+
+        private void set(int account, long cents) {
+            pages[account >>> PAGE_BITS][account & PAGE_MASK] = cents;
+        }
+    }
+
+    // Headless throughput check: a mix of deposits, withdrawals and
+    // transfers between random accounts from 1, 2, 4... threads up to the
+    // core count, each for a few seconds. Afterwards the ledger total
+    // must equal what went in minus what came out.
+    static class LedgerBench {
+        private static final long OPENING_BALANCE = 1000_00;
+        private static final long RUN_MILLIS = 3000;
+
+        private LedgerBench() {
+        }
+
+        static void run(int accounts) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            Ledger ledger = new Ledger();
+            for (int i = 0; i < accounts; i++) {
+                ledger.deposit(ledger.open(), OPENING_BALANCE);
+            }
+            long expected = accounts * OPENING_BALANCE;
+            System.out.printf("%,d accounts, %d cores%n", accounts, cores);
+
+            // The first round only warms up the JIT
+            expected = round(ledger, 1, expected, null);
+            double single = 0;
+            for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+                double[] rate = new double[1];
+                expected = round(ledger, threads, expected, rate);
+                if (threads == 1) single = rate[0];
+                System.out.printf("%3d threads  %,14.0f ops/s  %5.2fx%n", threads, rate[0], rate[0] / single);
+                if (threads == cores) break;
+            }
+            long total = ledger.total();
+            System.out.printf("Ledger total %s, expected %s: %s%n", Money.format(total), Money.format(expected),
+                    total == expected ? "OK" : "MISMATCH");
+            if (total != expected) System.exit(1);
+        }
+
+        // Durable commits: threads clients, which must be many for group
+        // commit to fill each force, run the same mix through a ledger
+        // stored in dir. Then the store is dropped without a final
+        // snapshot, as in a crash, and reopened to time the replay.
+        static void runDurable(Path dir, int threads) throws IOException {
+            if (Files.exists(dir)) throw new IOException(dir + " already exists; give a new directory");
+            int accounts = 100_000;
+            LedgerStore store = LedgerStore.open(dir);
+            Ledger ledger = store.getLedger();
+            long start = System.nanoTime();
+            runAll(threads, worker -> {
+                for (int i = worker; i < accounts; i += threads) {
+                    ledger.deposit(ledger.open(), OPENING_BALANCE);
+                }
+            });
+            System.out.printf("Opened %,d accounts in %d ms%n", accounts, (System.nanoTime() - start) / 1_000_000);
+
+            double[] rate = new double[1];
+            long expected = round(ledger, threads, accounts * OPENING_BALANCE, rate);
+            System.out.printf("%3d threads  %,14.0f durable ops/s%n", threads, rate[0]);
+            store.abandon();
+
+            start = System.nanoTime();
+            store = LedgerStore.open(dir);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Reopened in %d ms, replaying %,d records%n", elapsed / 1_000_000, store.getReplayed());
+            long total = store.getLedger().total();
+            store.close();
+            System.out.printf("Ledger total %s, expected %s: %s%n", Money.format(total), Money.format(expected),
+                    total == expected ? "OK" : "MISMATCH");
+            if (total != expected) System.exit(1);
+        }
+
+        private static void runAll(int threads, IntConsumer work) {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                workers[t] = new Thread(() -> work.accept(worker));
+                workers[t].start();
+            }
+            try {
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // Returns the expected total after the round
+        private static long round(Ledger ledger, int threads, long expected, double[] rate) {
+            int accounts = ledger.size();
+            long[] ops = new long[threads];
+            long[] net = new long[threads];
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                workers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long done = 0;
+                    long change = 0;
+                    while (!stop.get()) {
+                        int account = random.nextInt(accounts);
+                        long cents = 1 + random.nextInt(100_00);
+                        int kind = random.nextInt(10);
+                        if (kind < 2) {
+                            ledger.deposit(account, cents);
+                            change += cents;
+                        } else if (kind < 4) {
+                            if (ledger.withdraw(account, cents)) change -= cents;
+                        } else {
+                            ledger.transfer(account, random.nextInt(accounts), cents);
+                        }
+                        done++;
+                    }
+                    ops[worker] = done;
+                    net[worker] = change;
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            try {
+                Thread.sleep(RUN_MILLIS);
+                stop.set(true);
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            long elapsed = System.nanoTime() - start;
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                total += ops[t];
+                expected += net[t];
+            }
+            if (rate != null) rate[0] = total * 1e9 / elapsed;
+            return expected;
+        }
+    }
+
+    // Write-ahead log of every ledger change, as fixed 32-byte records in
+    // segment files named after their first sequence number. Little-endian:
+    //   sequence, cents (longs), account, other account or -1, type, and a
+    //   CRC32C of the first 28 bytes (ints)
+    // A change is logged under the same account locks that apply it, so
+    // the log replays to the same balances, and its caller returns once
+    // the record is on disk. One writer thread swaps out the buffer being
+    // filled, writes it and forces the file; everything logged while one
+    // force runs shares the next (group commit).
+    static class TransactionLog {
+        static final int OPEN = 1;
+        static final int DEPOSIT = 2;
+        static final int WITHDRAW = 3;
+        static final int TRANSFER = 4;
+        static final int RECORD = 32;
+        static final long SEGMENT_RECORDS = 1 << 23;
+        private static final int BUFFER = RECORD << 16;
+
+        private final Path dir;
+        private final Thread writer;
+        private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer writing = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        private long nextSequence;
+        private boolean closed;
+        private volatile long durable;
+        private volatile String error;
+        // Threads parked in awaitDurable; a force wakes only those it covers
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+        // Writer thread only
+        private FileChannel segment;
+        private long segmentRecords;
+
+        // Starts a new segment at nextSequence
+        TransactionLog(Path dir, long nextSequence) throws IOException {
+            this.dir = dir;
+            this.nextSequence = nextSequence;
+            this.durable = nextSequence - 1;
+            segment = FileChannel.open(dir.resolve(segmentName(nextSequence)), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            syncDirectory(dir);
+            writer = new Thread(this::write, "Transaction log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private static final class Waiter {
+            final Thread thread;
+            final long sequence;
+
+            Waiter(Thread thread, long sequence) {
+                this.thread = thread;
+                this.sequence = sequence;
+            }
+        }
+
+        static String segmentName(long firstSequence) {
+            return String.format("log-%020d.wal", firstSequence);
+        }
+
+        // First sequence numbers of the segments in dir, in order
+        static long[] segments(Path dir) throws IOException {
+            return numberedFiles(dir, "log-", ".wal");
+        }
+
+        // Returns the record's sequence number; waits if the writer is a
+        // full buffer behind
+        synchronized long append(int type, int account, int other, long cents) {
+            while (!filling.hasRemaining() && !closed && error == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while logging");
+                }
+            }
+            if (error != null) throw new IllegalStateException(error);
+            if (closed) throw new IllegalStateException("Transaction log is closed");
+            long sequence = nextSequence++;
+            filling.putLong(sequence).putLong(cents).putInt(account).putInt(other).putInt(type).putInt(0);
+            if (filling.position() == RECORD) notifyAll();
+            return sequence;
+        }
+
+        synchronized long lastSequence() {
+            return nextSequence - 1;
+        }
+
+        void awaitDurable(long sequence) {
+            if (durable < sequence && error == null) {
+                // Queued before looking at durable again, so the writer
+                // either sees this waiter or has already moved durable on
+                waiters.add(new Waiter(Thread.currentThread(), sequence));
+                while (durable < sequence && error == null) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while logging");
+                    }
+                }
+            }
+            if (error != null) throw new UncheckedIOException(new IOException(error));
+        }
+
+        // Writes out what is logged and stops the writer
+        void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            segment.close();
+            if (error != null) throw new IOException(error);
+        }
+
+        // Deletes the segments holding nothing after sequence; never the
+        // one being written
+        void deleteThrough(long sequence) throws IOException {
+            long[] firsts = segments(dir);
+            for (int i = 0; i + 1 < firsts.length && firsts[i + 1] <= sequence + 1; i++) {
+                Files.deleteIfExists(dir.resolve(segmentName(firsts[i])));
+            }
+        }
+
+        private void write() {
+            CRC32C crc = new CRC32C();
+            try {
+                while (true) {
+                    long last;
+                    synchronized (this) {
+                        while (filling.position() == 0 && !closed) {
+                            wait();
+                        }
+                        if (filling.position() == 0) return;
+                        ByteBuffer full = filling;
+                        filling = writing;
+                        writing = full;
+                        last = nextSequence - 1;
+                        notifyAll();
+                    }
+                    int end = writing.position();
+                    for (int record = 0; record < end; record += RECORD) {
+                        writing.limit(record + RECORD - 4).position(record);
+                        crc.reset();
+                        crc.update(writing);
+                        writing.limit(writing.capacity());
+                        writing.putInt(record + RECORD - 4, (int) crc.getValue());
+                    }
+                    writing.limit(end).position(0);
+                    writeSegments(writing);
+                    segment.force(false);
+                    writing.clear();
+                    durable = last;
+                    wake(last);
+                }
+            } catch (IOException ex) {
+                error = "Transaction log failed: " + ex.getMessage();
+            } catch (InterruptedException ex) {
+                error = "Transaction log stopped";
+            }
+            // Release anyone waiting to log or for a force
+            synchronized (this) {
+                notifyAll();
+            }
+            wake(Long.MAX_VALUE);
+        }
+
+        private void wake(long through) {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (waiter.sequence <= through) {
+                    it.remove();
+                    LockSupport.unpark(waiter.thread);
+                }
+            }
+        }
+
+        private void writeSegments(ByteBuffer batch) throws IOException {
+            int end = batch.limit();
+            while (batch.position() < end) {
+                if (segmentRecords == SEGMENT_RECORDS) {
+                    segment.force(false);
+                    segment.close();
+                    segment = FileChannel.open(dir.resolve(segmentName(batch.getLong(batch.position()))),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    syncDirectory(dir);
+                    segmentRecords = 0;
+                }
+                int records = (int) Math.min((end - batch.position()) / RECORD, SEGMENT_RECORDS - segmentRecords);
+                batch.limit(batch.position() + records * RECORD);
+                while (batch.hasRemaining()) segment.write(batch);
+                batch.limit(end);
+                segmentRecords += records;
+            }
+        }
+    }
+
+    // Balances as of one log sequence number, written and read through
+    // memory mappings. Little-endian: magic, version (ints), sequence,
+    // account count (longs), CRC32C of the balances, padding (ints), then
+    // the balances.
+    static class Snapshot {
+        private static final int MAGIC = 0x50534B42;
+        private static final int VERSION = 1;
+        private static final int HEADER = 32;
+        // Accounts per mapping; a whole number of ledger pages
+        private static final int CHUNK = 1 << 27;
+
+        private Snapshot() {
+        }
+
+        static String name(long sequence) {
+            return String.format("snapshot-%020d.snap", sequence);
+        }
+
+        // Written to a hidden temporary file, forced and moved into place,
+        // so a crash leaves either the old snapshot or the new one
+        static void write(Path dir, long sequence, long[][] pages, int size) throws IOException {
+            Path target = dir.resolve(name(sequence));
+            Path temp = dir.resolve("." + target.getFileName() + ".tmp");
+            CRC32C crc = new CRC32C();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int first = 0; first < size; first += CHUNK) {
+                    int count = Math.min(CHUNK, size - first);
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + first * 8L, count * 8L);
+                    LongBuffer balances = mapped.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                    for (int account = first; account < first + count; account += Ledger.PAGE_SIZE) {
+                        balances.put(pages[account >>> Ledger.PAGE_BITS], 0, Math.min(Ledger.PAGE_SIZE, first + count - account));
+                    }
+                    crc.update(mapped);
+                    mapped.force();
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putLong(sequence).putLong(size).putInt((int) crc.getValue()).putInt(0).flip();
+                while (header.hasRemaining()) channel.write(header, header.position());
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(dir);
+            for (long older : numberedFiles(dir, "snapshot-", ".snap")) {
+                if (older < sequence) Files.deleteIfExists(dir.resolve(name(older)));
+            }
+        }
+
+        // Loads the newest snapshot that checks out into the empty ledger
+        // and returns its sequence number, or 0 if there is none
+        static long readLatest(Path dir, Ledger ledger) throws IOException {
+            long[] sequences = numberedFiles(dir, "snapshot-", ".snap");
+            for (int i = sequences.length - 1; i >= 0; i--) {
+                if (read(dir.resolve(name(sequences[i])), sequences[i], ledger)) return sequences[i];
+            }
+            return 0;
+        }
+
+        private static boolean read(Path file, long sequence, Ledger ledger) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) ;
+                header.flip();
+                if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION
+                        || header.getLong() != sequence) {
+                    return false;
+                }
+                long size = header.getLong();
+                int expected = header.getInt();
+                if (size < 0 || size > Integer.MAX_VALUE || channel.size() != HEADER + size * 8) return false;
+
+                long[][] pages = new long[Math.max(16, (int) ((size + Ledger.PAGE_SIZE - 1) >>> Ledger.PAGE_BITS))][];
+                CRC32C crc = new CRC32C();
+                for (int first = 0; first < size; first += CHUNK) {
+                    int count = (int) Math.min(CHUNK, size - first);
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + first * 8L, count * 8L);
+                    crc.update(mapped);
+                    LongBuffer balances = mapped.rewind().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                    for (int account = first; account < first + count; account += Ledger.PAGE_SIZE) {
+                        long[] page = new long[Ledger.PAGE_SIZE];
+                        balances.get(page, 0, Math.min(Ledger.PAGE_SIZE, first + count - account));
+                        pages[account >>> Ledger.PAGE_BITS] = page;
+                    }
+                }
+                if ((int) crc.getValue() != expected) return false;
+                ledger.restore(pages, (int) size);
+                return true;
+            }
+        }
+    }
+
+    // A ledger kept in a directory as its latest snapshot plus the log
+    // since. Opening loads the snapshot and replays only the records after
+    // it. A background thread snapshots again once SNAPSHOT_RECORDS more
+    // have been logged, then deletes the segments the snapshot covers.
+    static class LedgerStore {
+        private static final long SNAPSHOT_RECORDS = 1 << 24;
+        private static final long CHECK_MILLIS = 10_000;
+
+        private final Path dir;
+        private final Ledger ledger;
+        private final TransactionLog log;
+        private final long replayed;
+        private final Thread snapshotter;
+        private long snapshotSequence;
+        private volatile String error;
+
+        private LedgerStore(Path dir, Ledger ledger, TransactionLog log, long snapshotSequence, long replayed) {
+            this.dir = dir;
+            this.ledger = ledger;
+            this.log = log;
+            this.snapshotSequence = snapshotSequence;
+            this.replayed = replayed;
+            snapshotter = new Thread(this::snapshotWhenDue, "Ledger snapshots");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+
+        static LedgerStore open(Path dir) throws IOException {
+            Files.createDirectories(dir);
+            Ledger ledger = new Ledger();
+            long snapshot = Snapshot.readLatest(dir, ledger);
+            long last = snapshot;
+            long replayed = 0;
+
+            long[] segments = TransactionLog.segments(dir);
+            if (segments.length > 0 && segments[0] > snapshot + 1) {
+                throw new IOException("Transaction log is missing records after " + snapshot);
+            }
+            long next = segments.length > 0 ? segments[0] : snapshot + 1;
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i] != next) throw new IOException("Transaction log is missing records after " + (next - 1));
+                Path file = dir.resolve(TransactionLog.segmentName(segments[i]));
+                long good;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    records.order(ByteOrder.LITTLE_ENDIAN);
+                    int position = 0;
+                    for (; records.limit() - position >= TransactionLog.RECORD; position += TransactionLog.RECORD) {
+                        records.limit(position + TransactionLog.RECORD - 4).position(position);
+                        crc.reset();
+                        crc.update(records);
+                        records.limit(records.capacity());
+                        if ((int) crc.getValue() != records.getInt(position + 28)
+                                || records.getLong(position) != next) {
+                            break;
+                        }
+                        if (next > snapshot) {
+                            if (!ledger.replay(records.getInt(position + 24), records.getInt(position + 16),
+                                    records.getInt(position + 20), records.getLong(position + 8))) {
+                                throw new IOException("Transaction log does not fit the ledger at record " + next);
+                            }
+                            replayed++;
+                        }
+                        next++;
+                    }
+                    good = position;
+                }
+                if (good < Files.size(file)) {
+                    // A torn tail is only possible where writing stopped
+                    if (i != segments.length - 1) throw new IOException("Damaged transaction log segment " + file.getFileName());
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(good);
+                        channel.force(true);
+                    }
+                }
+            }
+            last = Math.max(last, next - 1);
+            TransactionLog log = new TransactionLog(dir, last + 1);
+            ledger.attach(log);
+            return new LedgerStore(dir, ledger, log, snapshot, replayed);
+        }
+
+        Ledger getLedger() {
+            return ledger;
+        }
+
+        // Records replayed on top of the snapshot when opening
+        long getReplayed() {
+            return replayed;
+        }
+
+        // Null unless the last background snapshot failed
+        String getError() {
+            return error;
+        }
+
+        // Copies the balances (briefly holding up the ledger), waits until
+        // the log covers them, writes the snapshot and drops the log
+        // segments before it
+        synchronized void snapshot() throws IOException {
+            Ledger.State state = ledger.capture();
+            if (state.sequence == snapshotSequence) return;
+            log.awaitDurable(state.sequence);
+            Snapshot.write(dir, state.sequence, state.pages, state.size);
+            snapshotSequence = state.sequence;
+            log.deleteThrough(state.sequence);
+        }
+
+        // Stops logging without a final snapshot, as a crash right after
+        // the last force would; for testing recovery
+        void abandon() throws IOException {
+            snapshotter.interrupt();
+            log.close();
+        }
+
+        // A clean shutdown leaves a fresh snapshot, so the next start
+        // replays nothing
+        void close() throws IOException {
+            snapshotter.interrupt();
+            try {
+                snapshotter.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                snapshot();
+            } finally {
+                log.close();
+            }
+        }
+
+        private void snapshotWhenDue() {
+            try {
+                while (true) {
+                    Thread.sleep(CHECK_MILLIS);
+                    long due;
+                    synchronized (this) {
+                        due = snapshotSequence + SNAPSHOT_RECORDS;
+                    }
+                    if (log.lastSequence() < due) continue;
+                    try {
+                        snapshot();
+                        error = null;
+                    } catch (IOException | UncheckedIOException ex) {
+                        error = "Snapshot failed: " + ex.getMessage();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // closing
+            }
+        }
+    }
+
+    // Numbers in the names of prefix<number>suffix files in dir, in order
+    static long[] numberedFiles(Path dir, String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException ex) {
+                    // not one of ours
+                }
+            }
+        }
+        long[] sorted = new long[numbers.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = numbers.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Makes a file creation or rename in dir durable. Not every platform
+    // can open a directory; there the rename is as durable as it gets.
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // best effort
+        }
     }
 }
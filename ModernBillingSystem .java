@@ -1,19 +1,93 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
 
 public class ModernBillingSystem extends JFrame {
 
-    private final DefaultTableModel cartModel;
+    // This window is terminal 1; other terminals would drive the same engine
+    private static final int TERMINAL = 1;
+    // Prices include tax; every item is at this rate (basis points) for now
+    private static final int TAX_BASIS_POINTS = 1800;
+
+    private final ReceiptJournal journal;
+    private final CheckoutEngine engine;
+    private final Cart cart;
+    private final CartTableModel cartModel;
+    private final ReceiptFormatter formatter = new ReceiptFormatter(ZoneId.systemDefault());
+    private final SalesAnalytics analytics;
+    private boolean analyticsLoaded;
+    private final JLabel totalLabel = new JLabel();
+    private final JLabel catalogLabel = new JLabel();
+    private final CatalogService catalogs;
+    private final TypeAhead typeAhead;
     private final JTextField itemInput = new JTextField(10);
     private final JTextField priceInput = new JTextField(5);
     private final JTextField quantityInput = new JTextField(3);
     private final JTextArea billArea = new JTextArea();
 
-    public ModernBillingSystem() {
+    public ModernBillingSystem(Path catalogFile, ReceiptJournal journal) {
+        this.journal = journal;
+        engine = new CheckoutEngine(journal.getLastNumber() + 1);
+        engine.addListener(journal::append);
+        cart = engine.newCart(TERMINAL);
+        cartModel = new CartTableModel(cart);
+        // Month to date; receipts of this run are added as they happen
+        ZoneId zone = ZoneId.systemDefault();
+        analytics = new SalesAnalytics(LocalDate.now(zone).withDayOfMonth(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+                zone, name -> TAX_BASIS_POINTS);
+        engine.addListener(analytics);
+        catalogs = new CatalogService(catalogFile, () -> SwingUtilities.invokeLater(this::updateCatalogStatus));
+        typeAhead = new TypeAhead(itemInput, catalogs, this::fillFromCatalog);
+
         setTitle("Modern Billing System");
         setSize(900, 600);
         setLocationRelativeTo(null);
@@ -26,6 +100,7 @@ public class ModernBillingSystem extends JFrame {
 
         topBar.add(new JLabel("Item:"));
         topBar.add(itemInput);
+        itemInput.addActionListener(e -> handleItemEnter());
         topBar.add(new JLabel("Price:"));
         topBar.add(priceInput);
         topBar.add(new JLabel("Qty:"));
@@ -40,7 +115,6 @@ public class ModernBillingSystem extends JFrame {
         JPanel center = new JPanel(new GridLayout(1, 2, 10, 10));
         center.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        cartModel = new DefaultTableModel(new Object[]{"Item", "Price", "Qty", "Total"}, 0);
         JTable cartTable = new JTable(cartModel);
         cartTable.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         cartTable.setRowHeight(25);
@@ -56,20 +130,119 @@ public class ModernBillingSystem extends JFrame {
         JPanel footer = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
         footer.setBorder(new EmptyBorder(10, 10, 10, 10));
 
+        totalLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        updateTotal();
+
+        JButton removeBtn = new JButton("Remove Item");
+        removeBtn.addActionListener(e -> {
+            int row = cartTable.getSelectedRow();
+            if (row >= 0) {
+                cartModel.removeRow(row);
+                updateTotal();
+            }
+        });
+
         JButton receiptBtn = new JButton("Generate Receipt");
         receiptBtn.addActionListener(e -> handleReceipt());
 
+        JButton reprintBtn = new JButton("Reprint");
+        reprintBtn.addActionListener(e -> handleReprint());
+
+        JButton exportBtn = new JButton("Export Day");
+        exportBtn.addActionListener(e -> handleExportDay());
+
+        JButton reportBtn = new JButton("Sales Report");
+        reportBtn.addActionListener(e -> handleSalesReport());
+
         JButton resetBtn = new JButton("Clear");
         resetBtn.addActionListener(e -> resetForm());
 
         JButton closeBtn = new JButton("Exit");
         closeBtn.addActionListener(e -> System.exit(0));
 
+        catalogLabel.setForeground(Color.GRAY);
+        footer.add(catalogLabel);
+        footer.add(totalLabel);
+        footer.add(removeBtn);
         footer.add(receiptBtn);
+        footer.add(reprintBtn);
+        footer.add(exportBtn);
+        footer.add(reportBtn);
         footer.add(resetBtn);
         footer.add(closeBtn);
 
         add(footer, BorderLayout.SOUTH);
+
+        catalogLabel.setText("Loading catalog...");
+        catalogs.start();
+        loadAnalytics();
+    }
+
+    private void loadAnalytics() {
+        long lastNumber = journal.getLastNumber();
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                analytics.load(journal, lastNumber);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    analyticsLoaded = true;
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(ModernBillingSystem.this, "Could not read past sales: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void handleSalesReport() {
+        if (!analyticsLoaded) {
+            JOptionPane.showMessageDialog(this, "Past sales are still being read.");
+            return;
+        }
+        JTextArea report = new JTextArea(analytics.report(10), 30, 70);
+        report.setFont(new Font("Consolas", Font.PLAIN, 13));
+        report.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(report), "Sales Report", JOptionPane.PLAIN_MESSAGE);
+    }
+
+    // Enter in the item field takes the highlighted match, or treats the
+    // text as a scanned barcode and rings the product straight up
+    private void handleItemEnter() {
+        if (typeAhead.hasSelection()) {
+            typeAhead.pick();
+            return;
+        }
+        String text = itemInput.getText().trim();
+        if (text.isEmpty() || text.length() > 18 || !text.chars().allMatch(Character::isDigit)) return;
+
+        Catalog catalog = catalogs.get();
+        int product = catalog.lookup(Long.parseLong(text));
+        if (product < 0) {
+            JOptionPane.showMessageDialog(this, "Unknown barcode " + text);
+            return;
+        }
+        cartModel.addLine(catalog.getName(product), catalog.getPriceCents(product), 1);
+        updateTotal();
+        itemInput.setText("");
+    }
+
+    private void fillFromCatalog(Catalog catalog, int product) {
+        itemInput.setText(catalog.getName(product));
+        priceInput.setText(Money.format(catalog.getPriceCents(product)));
+        if (quantityInput.getText().trim().isEmpty()) quantityInput.setText("1");
+        quantityInput.requestFocusInWindow();
+        quantityInput.selectAll();
+    }
+
+    private void updateCatalogStatus() {
+        String error = catalogs.getError();
+        catalogLabel.setText(error != null ? error : String.format("%,d products", catalogs.get().size()));
     }
 
     private void handleAddItem() {
@@ -83,56 +256,115 @@ public class ModernBillingSystem extends JFrame {
         }
 
         try {
-            double price = Double.parseDouble(priceText);
+            long price = Money.parseCents(priceText);
             int qty = Integer.parseInt(qtyText);
-            double total = price * qty;
 
-            cartModel.addRow(new Object[]{name, price, qty, String.format("%.2f", total)});
+            cartModel.addLine(name, price, qty);
+            updateTotal();
 
             itemInput.setText("");
             priceInput.setText("");
             quantityInput.setText("");
-        } catch (NumberFormatException ex) {
+        } catch (IllegalArgumentException | ArithmeticException ex) {
             JOptionPane.showMessageDialog(this, "Please enter valid numbers.");
         }
     }
 
+    private void updateTotal() {
+        totalLabel.setText("Total: " + Money.format(cart.getTotalCents()));
+    }
+
+    // Checking out completes the sale: the cart empties for the next
+    // customer and the receipt stays on screen
     private void handleReceipt() {
-        if (cartModel.getRowCount() == 0) {
+        if (cart.getLineCount() == 0) {
             JOptionPane.showMessageDialog(this, "No items in the cart.");
             return;
         }
 
-        StringBuilder receipt = new StringBuilder();
-        receipt.append("========= Billing Receipt =========\n");
-        receipt.append("Date: ").append(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))).append("\n");
-        receipt.append("===================================\n");
-        receipt.append(String.format("%-15s %-8s %-6s %-8s\n", "Item", "Price", "Qty", "Total"));
-        receipt.append("-----------------------------------\n");
+        Receipt sale = cartModel.checkout();
+        updateTotal();
 
-        double sum = 0;
+        formatter.render(sale);
+        billArea.setText(formatter.toString());
+        if (journal.getError() != null) JOptionPane.showMessageDialog(this, journal.getError());
+    }
+
+    // Reading the journal is sequential and can take a while on a busy
+    // till, so it runs off the EDT
+    private void handleReprint() {
+        String text = JOptionPane.showInputDialog(this, "Receipt number:");
+        if (text == null) return;
+        long number;
+        try {
+            number = Long.parseLong(text.trim());
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a receipt number.");
+            return;
+        }
 
-        for (int i = 0; i < cartModel.getRowCount(); i++) {
-            String item = cartModel.getValueAt(i, 0).toString();
-            double price = Double.parseDouble(cartModel.getValueAt(i, 1).toString());
-            int qty = Integer.parseInt(cartModel.getValueAt(i, 2).toString());
-            double total = Double.parseDouble(cartModel.getValueAt(i, 3).toString());
+        new SwingWorker<Receipt, Void>() {
+            @Override
+            protected Receipt doInBackground() throws IOException {
+                return journal.find(number);
+            }
 
-            sum += total;
+            @Override
+            protected void done() {
+                try {
+                    Receipt receipt = get();
+                    if (receipt == null) {
+                        JOptionPane.showMessageDialog(ModernBillingSystem.this, "No receipt " + number);
+                        return;
+                    }
+                    formatter.render(receipt);
+                    billArea.setText(formatter.toString());
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(ModernBillingSystem.this, "Could not read the journal: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
 
-            receipt.append(String.format("%-15s %-8.2f %-6d %-8.2f\n", item, price, qty, total));
+    private void handleExportDay() {
+        String text = JOptionPane.showInputDialog(this, "Day (yyyy-MM-dd):", LocalDate.now());
+        if (text == null) return;
+        LocalDate day;
+        try {
+            day = LocalDate.parse(text.trim());
+        } catch (DateTimeParseException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a date like " + LocalDate.now() + ".");
+            return;
         }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("receipts-" + day + ".txt"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path target = chooser.getSelectedFile().toPath();
 
-        receipt.append("-----------------------------------\n");
-        receipt.append(String.format("%-30s %-8.2f\n", "Grand Total:", sum));
-        receipt.append("===================================\n");
-        receipt.append("Thanks for your purchase!\n");
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() throws IOException {
+                try (Writer out = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+                    return journal.exportDay(day, ZoneId.systemDefault(), out);
+                }
+            }
 
-        billArea.setText(receipt.toString());
+            @Override
+            protected void done() {
+                try {
+                    JOptionPane.showMessageDialog(ModernBillingSystem.this, "Exported " + get() + " receipts to " + target);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(ModernBillingSystem.this, "Could not export: " + cause.getMessage());
+                }
+            }
+        }.execute();
     }
 
     private void resetForm() {
-        cartModel.setRowCount(0);
+        cartModel.clear();
+        updateTotal();
         billArea.setText("");
         itemInput.setText("");
         priceInput.setText("");
@@ -140,6 +372,1655 @@ public class ModernBillingSystem extends JFrame {
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ModernBillingSystem().setVisible(true));
+        // The product catalog is catalog.csv next to the program unless named
+        Path catalogFile = Paths.get(args.length > 0 ? args[0] : "catalog.csv");
+        Path journalFile = Paths.get(args.length > 1 ? args[1] : "receipts.journal");
+        ReceiptJournal journal;
+        try {
+            journal = ReceiptJournal.open(journalFile);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Cannot open the receipt journal: " + ex.getMessage());
+            return;
+        }
+        // Exit and window close both end here; write out the last receipts
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+        SwingUtilities.invokeLater(() -> new ModernBillingSystem(catalogFile, journal).setVisible(true));
+    }
+
+    // Amounts are whole cents in a long, so sums are exact; text is only
+    // parsed at the edge and formatted for display
+    static class Money {
+        private Money() {
+        }
+
+        // "12", "12.5" or "12.50"; no sign, at most two decimals
+        static long parseCents(String text) {
+            int dot = text.indexOf('.');
+            int end = dot < 0 ? text.length() : dot;
+            int decimals = dot < 0 ? 0 : text.length() - dot - 1;
+            if (end == 0 && decimals == 0 || decimals > 2) throw new NumberFormatException("Not an amount: " + text);
+            long cents = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (i == dot) continue;
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') throw new NumberFormatException("Not an amount: " + text);
+                cents = Math.addExact(Math.multiplyExact(cents, 10), c - '0');
+            }
+            for (int i = decimals; i < 2; i++) {
+                cents = Math.multiplyExact(cents, 10);
+            }
+            return cents;
+        }
+
+        static String format(long cents) {
+            StringBuilder text = new StringBuilder(24);
+            if (cents < 0) text.append('-');
+            long abs = Math.abs(cents);
+            long fraction = abs % 100;
+            return text.append(abs / 100).append('.').append(fraction < 10 ? "0" : "").append(fraction).toString();
+        }
+    }
+
+    static final class LineItem {
+        private final String name;
+        private final long unitCents;
+        private final int quantity;
+        private final long totalCents;
+
+        LineItem(String name, long unitCents, int quantity) {
+            if (unitCents < 0) throw new IllegalArgumentException("Negative price");
+            if (quantity <= 0) throw new IllegalArgumentException("Quantity must be positive");
+            this.name = name;
+            this.unitCents = unitCents;
+            this.quantity = quantity;
+            this.totalCents = Math.multiplyExact(unitCents, quantity);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getUnitCents() {
+            return unitCents;
+        }
+
+        int getQuantity() {
+            return quantity;
+        }
+
+        long getTotalCents() {
+            return totalCents;
+        }
+    }
+
+    // A completed sale; immutable, so it can be handed to other threads
+    static final class Receipt {
+        private final long number;
+        private final int terminal;
+        private final long time;
+        private final LineItem[] lines;
+        private final long totalCents;
+
+        Receipt(long number, int terminal, long time, LineItem[] lines, long totalCents) {
+            this.number = number;
+            this.terminal = terminal;
+            this.time = time;
+            this.lines = lines;
+            this.totalCents = totalCents;
+        }
+
+        long getNumber() {
+            return number;
+        }
+
+        int getTerminal() {
+            return terminal;
+        }
+
+        // Epoch milliseconds
+        long getTime() {
+            return time;
+        }
+
+        int getLineCount() {
+            return lines.length;
+        }
+
+        LineItem getLine(int i) {
+            return lines[i];
+        }
+
+        long getTotalCents() {
+            return totalCents;
+        }
+    }
+
+    // Shared by every terminal: hands out carts and receipt numbers and
+    // keeps the node's running figures. Carts on different terminals never
+    // contend; the only shared writes at checkout are one atomic increment
+    // and two striped adders.
+    static class CheckoutEngine {
+        private final AtomicLong nextReceipt;
+        private final LongAdder checkouts = new LongAdder();
+        private final LongAdder revenue = new LongAdder();
+        private final List<CheckoutListener> listeners = new CopyOnWriteArrayList<>();
+
+        interface CheckoutListener {
+            // Called on the checking-out thread, so keep it short
+            void completed(Receipt receipt);
+        }
+
+        CheckoutEngine() {
+            this(1);
+        }
+
+        // Numbering can carry on from an earlier run
+        CheckoutEngine(long firstReceipt) {
+            nextReceipt = new AtomicLong(firstReceipt);
+        }
+
+        void addListener(CheckoutListener listener) {
+            listeners.add(listener);
+        }
+
+        Cart newCart(int terminal) {
+            return new Cart(this, terminal);
+        }
+
+        long getCheckouts() {
+            return checkouts.sum();
+        }
+
+        long getRevenueCents() {
+            return revenue.sum();
+        }
+
+        private Receipt complete(int terminal, LineItem[] lines, long totalCents) {
+            Receipt receipt = new Receipt(nextReceipt.getAndIncrement(), terminal, System.currentTimeMillis(), lines, totalCents);
+            checkouts.increment();
+            revenue.add(totalCents);
+            for (CheckoutListener listener : listeners) {
+                listener.completed(receipt);
+            }
+            return receipt;
+        }
+    }
+
+    // One terminal's cart, reused from customer to customer. Lines keep
+    // their number until checkout; a removed line leaves a gap, so adding
+    // and removing each update the running total in O(1). Methods are
+    // synchronized, as a cart may be driven by more than one thread (a
+    // scanner and a UI, say), though usually only one at a time.
+    static class Cart {
+        private final CheckoutEngine engine;
+        private final int terminal;
+        private LineItem[] lines = new LineItem[16];
+        private int size;
+        private int count;
+        private long totalCents;
+
+        private Cart(CheckoutEngine engine, int terminal) {
+            this.engine = engine;
+            this.terminal = terminal;
+        }
+
+        int getTerminal() {
+            return terminal;
+        }
+
+        // Returns the new line's number
+        synchronized int add(String name, long unitCents, int quantity) {
+            LineItem line = new LineItem(name, unitCents, quantity);
+            long total = Math.addExact(totalCents, line.getTotalCents());
+            if (size == lines.length) lines = Arrays.copyOf(lines, size * 2);
+            lines[size] = line;
+            totalCents = total;
+            count++;
+            return size++;
+        }
+
+        synchronized void remove(int line) {
+            LineItem removed = line < size ? lines[line] : null;
+            if (removed == null) throw new IllegalArgumentException("No line " + line);
+            lines[line] = null;
+            totalCents -= removed.getTotalCents();
+            count--;
+        }
+
+        // Null for a removed line
+        synchronized LineItem getLine(int line) {
+            return line < size ? lines[line] : null;
+        }
+
+        synchronized int getLineCount() {
+            return count;
+        }
+
+        synchronized long getTotalCents() {
+            return totalCents;
+        }
+
+        synchronized Receipt checkout() {
+            if (count == 0) throw new IllegalStateException("Cart is empty");
+            LineItem[] sold = new LineItem[count];
+            for (int i = 0, n = 0; i < size; i++) {
+                if (lines[i] != null) sold[n++] = lines[i];
+            }
+            Receipt receipt = engine.complete(terminal, sold, totalCents);
+            clear();
+            return receipt;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(lines, 0, size, null);
+            size = 0;
+            count = 0;
+            totalCents = 0;
+        }
+    }
+
+    // Shows a cart in a JTable; rows are the cart's live lines in order
+    static class CartTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Item", "Price", "Qty", "Total"};
+
+        private final Cart cart;
+        private int[] rows = new int[16];
+        private int rowCount;
+
+        CartTableModel(Cart cart) {
+            this.cart = cart;
+        }
+
+        void addLine(String name, long unitCents, int quantity) {
+            int line = cart.add(name, unitCents, quantity);
+            if (rowCount == rows.length) rows = Arrays.copyOf(rows, rowCount * 2);
+            rows[rowCount++] = line;
+            fireTableRowsInserted(rowCount - 1, rowCount - 1);
+        }
+
+        void removeRow(int row) {
+            cart.remove(rows[row]);
+            System.arraycopy(rows, row + 1, rows, row, rowCount - row - 1);
+            rowCount--;
+            fireTableRowsDeleted(row, row);
+        }
+
+        Receipt checkout() {
+            Receipt receipt = cart.checkout();
+            clearRows();
+            return receipt;
+        }
+
+        void clear() {
+            cart.clear();
+            clearRows();
+        }
+
+        private void clearRows() {
+            rowCount = 0;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == 2 ? Integer.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            LineItem line = cart.getLine(rows[row]);
+            switch (column) {
+                case 0:
+                    return line.getName();
+                case 1:
+                    return Money.format(line.getUnitCents());
+                case 2:
+                    return line.getQuantity();
+                default:
+                    return Money.format(line.getTotalCents());
+            }
+        }
+    }
+
+    // Products indexed for the till. Built once per catalog file and then
+    // only read, so any number of threads can use it. Everything lives in
+    // primitive arrays, about 45 bytes a product: names sit UTF-8 encoded
+    // in one byte array, barcodes are found in O(1) through an
+    // open-addressing table of product numbers, and the product numbers
+    // are sorted by name (ignoring ASCII case) so a prefix search is a
+    // binary search followed by a scan of the matches.
+    //
+    // The file has one product a line, barcode,name,price ("4006381333931,
+    // Pencil HB,0.45"); the name may contain commas. Blank lines and lines
+    // starting with # are skipped.
+    static class Catalog {
+        static final Catalog EMPTY = new Catalog(0, new long[0], new long[0], new byte[0], new int[1]);
+        // Product numbers share a sort key with a name prefix; see sortByName
+        static final int MAX_PRODUCTS = 1 << 24;
+
+        private final int size;
+        private final long[] barcodes;
+        private final long[] prices;
+        private final byte[] names;
+        private final int[] nameStarts;
+        private final int[] slots;
+        private final int[] byName;
+
+        private Catalog(int size, long[] barcodes, long[] prices, byte[] names, int[] nameStarts) {
+            this.size = size;
+            this.barcodes = barcodes;
+            this.prices = prices;
+            this.names = names;
+            this.nameStarts = nameStarts;
+            this.slots = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+            this.byName = new int[size];
+        }
+
+        static Catalog load(Path file) throws IOException {
+            Loader loader = new Loader();
+            byte[] buffer = new byte[1 << 16];
+            int filled = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                for (int read; (read = in.read(buffer, filled, buffer.length - filled)) > 0 || filled > 0; ) {
+                    if (read > 0) filled += read;
+                    int start = 0;
+                    for (int i = start; i < filled; i++) {
+                        if (buffer[i] == '\n') {
+                            loader.line(buffer, start, i);
+                            start = i + 1;
+                        }
+                    }
+                    if (read <= 0) {
+                        // Last line without a newline
+                        loader.line(buffer, start, filled);
+                        break;
+                    }
+                    filled -= start;
+                    System.arraycopy(buffer, start, buffer, 0, filled);
+                    if (filled == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return loader.build();
+        }
+
+        // Collects parsed lines into growing arrays
+        private static class Loader {
+            private int count;
+            private int lineNumber;
+            private long[] barcodes = new long[1024];
+            private long[] prices = new long[1024];
+            private int[] nameStarts = new int[1025];
+            private byte[] names = new byte[1 << 16];
+
+            void line(byte[] bytes, int from, int to) throws IOException {
+                lineNumber++;
+                if (to > from && bytes[to - 1] == '\r') to--;
+                if (to == from || bytes[from] == '#') return;
+
+                int first = indexOf(bytes, from, to, (byte) ',');
+                int last = lastIndexOf(bytes, from, to, (byte) ',');
+                if (first < 0 || last == first) throw new IOException("Bad catalog line " + lineNumber);
+                if (count == MAX_PRODUCTS) throw new IOException("More than " + MAX_PRODUCTS + " products");
+                if (count == barcodes.length) {
+                    barcodes = Arrays.copyOf(barcodes, count * 2);
+                    prices = Arrays.copyOf(prices, count * 2);
+                    nameStarts = Arrays.copyOf(nameStarts, count * 2 + 1);
+                }
+                try {
+                    barcodes[count] = parseBarcode(bytes, from, first);
+                    prices[count] = parsePrice(bytes, last + 1, to);
+                } catch (NumberFormatException | ArithmeticException ex) {
+                    throw new IOException("Bad catalog line " + lineNumber);
+                }
+                int length = last - first - 1;
+                int end = nameStarts[count];
+                if (names.length - end < length) {
+                    names = Arrays.copyOf(names, Math.max(names.length * 2, end + length));
+                }
+                System.arraycopy(bytes, first + 1, names, end, length);
+                count++;
+                nameStarts[count] = end + length;
+            }
+
+            Catalog build() throws IOException {
+                Catalog catalog = new Catalog(count, Arrays.copyOf(barcodes, count), Arrays.copyOf(prices, count),
+                        Arrays.copyOf(names, nameStarts[count]), Arrays.copyOf(nameStarts, count + 1));
+                for (int i = 0; i < count; i++) {
+                    if (!catalog.insert(i)) throw new IOException("Duplicate barcode " + barcodes[i]);
+                }
+                catalog.sortByName();
+                return catalog;
+            }
+        }
+
+        private static int indexOf(byte[] bytes, int from, int to, byte b) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == b) return i;
+            }
+            return -1;
+        }
+
+        private static int lastIndexOf(byte[] bytes, int from, int to, byte b) {
+            for (int i = to - 1; i >= from; i--) {
+                if (bytes[i] == b) return i;
+            }
+            return -1;
+        }
+
+        private static long parseBarcode(byte[] bytes, int from, int to) {
+            if (to == from || to - from > 18) throw new NumberFormatException("Bad barcode");
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] < '0' || bytes[i] > '9') throw new NumberFormatException("Bad barcode");
+                value = value * 10 + bytes[i] - '0';
+            }
+            return value;
+        }
+
+        // Money.parseCents, allowing spaces around the amount
+        private static long parsePrice(byte[] bytes, int from, int to) {
+            while (from < to && bytes[from] == ' ') from++;
+            while (to > from && bytes[to - 1] == ' ') to--;
+            return Money.parseCents(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+        }
+
+        int size() {
+            return size;
+        }
+
+        // The product with this barcode, or -1
+        int lookup(long barcode) {
+            int mask = slots.length - 1;
+            for (int slot = hash(barcode) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (barcodes[slots[slot] - 1] == barcode) return slots[slot] - 1;
+            }
+            return -1;
+        }
+
+        // Fills into with up to into.length products whose name starts with
+        // prefix, ignoring ASCII case, in name order; returns how many
+        int search(String prefix, int[] into) {
+            byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(byName[mid], key, key.length) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int found = 0;
+            for (int i = low; i < size && found < into.length && compare(byName[i], key, key.length) == 0; i++) {
+                into[found++] = byName[i];
+            }
+            return found;
+        }
+
+        long getBarcode(int product) {
+            return barcodes[product];
+        }
+
+        long getPriceCents(int product) {
+            return prices[product];
+        }
+
+        String getName(int product) {
+            int start = nameStarts[product];
+            return new String(names, start, nameStarts[product + 1] - start, StandardCharsets.UTF_8);
+        }
+
+        private static int hash(long barcode) {
+            return (int) ((barcode * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+
+        private boolean insert(int product) {
+            int mask = slots.length - 1;
+            int slot = hash(barcodes[product]) & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (barcodes[slots[slot] - 1] == barcodes[product]) return false;
+            }
+            slots[slot] = product + 1;
+            return true;
+        }
+
+        private static int lower(byte b) {
+            return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+        }
+
+        // Compares a product's name with the first limit bytes of key; a
+        // name that starts with them compares equal
+        private int compare(int product, byte[] key, int limit) {
+            int start = nameStarts[product];
+            int length = nameStarts[product + 1] - start;
+            for (int i = 0; i < Math.min(length, limit); i++) {
+                int diff = lower(names[start + i]) - lower(key[i]);
+                if (diff != 0) return diff;
+            }
+            return length >= limit ? 0 : -1;
+        }
+
+        // Sorting two million names by comparison is slow, so each product
+        // gets a long key: five name bytes (lowercased) above its 24-bit
+        // number. One primitive sort of the keys orders the products, and
+        // runs that tie on those bytes are sorted again by the next five.
+        private void sortByName() {
+            for (int i = 0; i < size; i++) {
+                byName[i] = i;
+            }
+            sortByName(new long[size], 0, size, 0);
+        }
+
+        // Sorts byName[from, to), whose names all agree on their first depth
+        // bytes. Names that have ended pad with zeros, so they sort first.
+        private void sortByName(long[] keys, int from, int to, int depth) {
+            boolean longer = false;
+            for (int i = from; i < to; i++) {
+                int start = nameStarts[byName[i]] + depth;
+                int end = nameStarts[byName[i] + 1];
+                long prefix = 0;
+                for (int j = start; j < start + 5; j++) {
+                    prefix = prefix << 8 | (j < end ? lower(names[j]) : 0);
+                }
+                longer |= end > start + 5;
+                keys[i] = (prefix << 24 | byName[i]) ^ Long.MIN_VALUE;
+            }
+            Arrays.sort(keys, from, to);
+            for (int i = from; i < to; i++) {
+                byName[i] = (int) (keys[i] & (MAX_PRODUCTS - 1));
+            }
+            if (!longer) return;
+            for (int run = from; run < to; ) {
+                int next = run + 1;
+                while (next < to && keys[next] >>> 24 == keys[run] >>> 24) {
+                    next++;
+                }
+                if (next - run > 1) sortByName(keys, run, next, depth + 5);
+                run = next;
+            }
+        }
+    }
+
+    // Holds the current catalog and reloads it when its file changes. A
+    // new index is built on the watcher thread while checkout carries on
+    // with the old one, then swapped in by one volatile write; callers
+    // take get() once per lookup, so they never see a half-built index.
+    // A file that fails to load leaves the previous catalog in place.
+    static class CatalogService {
+        private final Path file;
+        private final Runnable onChange;
+        private volatile Catalog catalog = Catalog.EMPTY;
+        private volatile String error;
+
+        // onChange runs on the loading thread after every attempt
+        CatalogService(Path file, Runnable onChange) {
+            this.file = file.toAbsolutePath();
+            this.onChange = onChange;
+        }
+
+        Catalog get() {
+            return catalog;
+        }
+
+        // Null after a successful load
+        String getError() {
+            return error;
+        }
+
+        void reload() {
+            try {
+                catalog = Catalog.load(file);
+                error = null;
+            } catch (NoSuchFileException ex) {
+                error = "No catalog at " + file;
+            } catch (IOException ex) {
+                error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            }
+            onChange.run();
+        }
+
+        // Loads the catalog, then keeps watching its directory from a daemon
+        // thread. Editors that save by renaming show up as a create.
+        void start() {
+            Thread watcher = new Thread(() -> {
+                reload();
+                try (WatchService watch = file.getFileSystem().newWatchService()) {
+                    file.getParent().register(watch, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                    while (true) {
+                        WatchKey key = watch.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || file.getFileName().equals(event.context());
+                        }
+                        key.reset();
+                        if (!changed) continue;
+                        // A big file is written in many steps; wait for quiet
+                        Thread.sleep(250);
+                        for (WatchKey more; (more = watch.poll()) != null; ) {
+                            more.pollEvents();
+                            more.reset();
+                        }
+                        reload();
+                    }
+                } catch (IOException ex) {
+                    error = "Not watching the catalog: " + ex.getMessage();
+                    onChange.run();
+                } catch (InterruptedException ex) {
+                    // stopped
+                }
+            }, "Catalog watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    // Drop-down of catalog matches under a text field, refreshed as the
+    // cashier types. Up and Down move through it, Enter picks, Escape
+    // closes it. It never takes the focus from the field.
+    static class TypeAhead {
+        private static final int LIMIT = 12;
+
+        private final JTextField field;
+        private final CatalogService catalogs;
+        private final BiConsumer<Catalog, Integer> onPick;
+        private final JPopupMenu popup = new JPopupMenu();
+        private final JList<String> list = new JList<>();
+        private final int[] found = new int[LIMIT];
+        private Catalog shown;
+        private int count;
+        private boolean picking;
+
+        TypeAhead(JTextField field, CatalogService catalogs, BiConsumer<Catalog, Integer> onPick) {
+            this.field = field;
+            this.catalogs = catalogs;
+            this.onPick = onPick;
+            list.setFocusable(false);
+            list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            list.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    pick();
+                }
+            });
+            popup.setFocusable(false);
+            popup.add(new JScrollPane(list));
+
+            field.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) {
+                    changed();
+                }
+
+                public void removeUpdate(DocumentEvent e) {
+                    changed();
+                }
+
+                public void changedUpdate(DocumentEvent e) {
+                }
+            });
+            field.addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyPressed(KeyEvent e) {
+                    if (!popup.isVisible()) return;
+                    int selected = list.getSelectedIndex();
+                    if (e.getKeyCode() == KeyEvent.VK_DOWN) {
+                        list.setSelectedIndex(Math.min(selected + 1, count - 1));
+                        e.consume();
+                    } else if (e.getKeyCode() == KeyEvent.VK_UP) {
+                        list.setSelectedIndex(Math.max(selected - 1, 0));
+                        e.consume();
+                    } else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                        popup.setVisible(false);
+                        e.consume();
+                    }
+                }
+            });
+        }
+
+        // True if Enter should go to the list rather than the field
+        boolean hasSelection() {
+            return popup.isVisible() && list.getSelectedIndex() >= 0;
+        }
+
+        void pick() {
+            int selected = list.getSelectedIndex();
+            if (selected < 0) return;
+            popup.setVisible(false);
+            picking = true;
+            try {
+                onPick.accept(shown, found[selected]);
+            } finally {
+                picking = false;
+            }
+        }
+
+        // Document events arrive mid-edit; search once it has finished
+        private void changed() {
+            if (!picking) SwingUtilities.invokeLater(this::refresh);
+        }
+
+        private void refresh() {
+            String text = field.getText().trim();
+            shown = catalogs.get();
+            count = text.isEmpty() ? 0 : shown.search(text, found);
+            if (count == 0) {
+                popup.setVisible(false);
+                return;
+            }
+            String[] items = new String[count];
+            for (int i = 0; i < count; i++) {
+                items[i] = shown.getName(found[i]) + "  " + Money.format(shown.getPriceCents(found[i]));
+            }
+            list.setListData(items);
+            list.setVisibleRowCount(count);
+            list.setSelectedIndex(0);
+            popup.pack();
+            if (!popup.isVisible()) popup.show(field, 0, field.getHeight());
+        }
+    }
+
+    // Renders receipts as fixed-width text into a buffer it reuses, so a
+    // receipt costs no allocation once the buffer has grown to the longest
+    // one. java.time is only asked for the local date when a time falls
+    // outside the span the last answer holds for: that local day, cut
+    // short by any offset change. Not thread-safe; one per thread.
+    static class ReceiptFormatter {
+        private static final long DAY = 24 * 60 * 60 * 1000L;
+        private static final String RULE = "===================================\n";
+        private static final String THIN_RULE = "-----------------------------------\n";
+        private static final String COLUMNS = String.format("%-15s %-8s %-6s %-8s\n", "Item", "Price", "Qty", "Total");
+
+        private final ZoneId zone;
+        private char[] text = new char[1024];
+        private int length;
+        private final char[] date = new char[10];
+        private long spanStart = Long.MAX_VALUE;
+        private long spanEnd = Long.MIN_VALUE;
+        private long offset;
+        private long localMidnight;
+
+        ReceiptFormatter(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        // Returns the length of the text
+        int render(Receipt receipt) {
+            length = 0;
+            append("========= Billing Receipt =========\n");
+            append("Receipt: ");
+            appendLong(receipt.getNumber());
+            append("\nDate: ");
+            appendDateTime(receipt.getTime());
+            append('\n');
+            append(RULE);
+            append(COLUMNS);
+            append(THIN_RULE);
+            for (int i = 0; i < receipt.getLineCount(); i++) {
+                LineItem line = receipt.getLine(i);
+                int start = length;
+                append(line.getName());
+                pad(start, 15);
+                append(' ');
+                start = length;
+                appendCents(line.getUnitCents());
+                pad(start, 8);
+                append(' ');
+                start = length;
+                appendLong(line.getQuantity());
+                pad(start, 6);
+                append(' ');
+                start = length;
+                appendCents(line.getTotalCents());
+                pad(start, 8);
+                append('\n');
+            }
+            append(THIN_RULE);
+            int start = length;
+            append("Grand Total:");
+            pad(start, 30);
+            append(' ');
+            start = length;
+            appendCents(receipt.getTotalCents());
+            pad(start, 8);
+            append('\n');
+            append(RULE);
+            append("Thanks for your purchase!\n");
+            return length;
+        }
+
+        void writeTo(Writer out) throws IOException {
+            out.write(text, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return new String(text, 0, length);
+        }
+
+        private void ensure(int extra) {
+            if (text.length - length < extra) text = Arrays.copyOf(text, Math.max(text.length * 2, length + extra));
+        }
+
+        private void append(char c) {
+            ensure(1);
+            text[length++] = c;
+        }
+
+        private void append(char[] chars) {
+            ensure(chars.length);
+            System.arraycopy(chars, 0, text, length, chars.length);
+            length += chars.length;
+        }
+
+        private void append(String s) {
+            ensure(s.length());
+            s.getChars(0, s.length(), text, length);
+            length += s.length();
+        }
+
+        // Spaces up to width chars from start, as "%-Ns" would; longer
+        // values are not cut
+        private void pad(int start, int width) {
+            ensure(width);
+            while (length - start < width) {
+                text[length++] = ' ';
+            }
+        }
+
+        private void appendLong(long value) {
+            if (value < 0) {
+                append('-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                text[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        // Same text as Money.format
+        private void appendCents(long cents) {
+            if (cents < 0) append('-');
+            long abs = Math.abs(cents);
+            appendLong(abs / 100);
+            append('.');
+            append((char) ('0' + abs % 100 / 10));
+            append((char) ('0' + abs % 10));
+        }
+
+        // yyyy-MM-dd HH:mm:ss in the formatter's zone
+        private void appendDateTime(long time) {
+            if (time < spanStart || time >= spanEnd) findSpan(time);
+            append(date);
+            long ofDay = time + offset - localMidnight;
+            append(' ');
+            appendTwo(ofDay / 3_600_000);
+            append(':');
+            appendTwo(ofDay / 60_000 % 60);
+            append(':');
+            appendTwo(ofDay / 1000 % 60);
+        }
+
+        private void appendTwo(long value) {
+            append((char) ('0' + value / 10));
+            append((char) ('0' + value % 10));
+        }
+
+        private void findSpan(long time) {
+            Instant instant = Instant.ofEpochMilli(time);
+            ZoneRules rules = zone.getRules();
+            offset = rules.getOffset(instant).getTotalSeconds() * 1000L;
+            localMidnight = Math.floorDiv(time + offset, DAY) * DAY;
+            spanStart = localMidnight - offset;
+            spanEnd = spanStart + DAY;
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+            if (previous != null) spanStart = Math.max(spanStart, previous.toEpochSecond() * 1000);
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            if (next != null) spanEnd = Math.min(spanEnd, next.toEpochSecond() * 1000);
+            LocalDate.ofEpochDay(localMidnight / DAY).format(DateTimeFormatter.ISO_LOCAL_DATE).getChars(0, 10, date, 0);
+        }
+    }
+
+    // Append-only file of completed receipts. Checkout only queues the
+    // receipt; one writer thread takes everything queued, encodes it into
+    // a buffer and writes it in one call (group commit), then forces the
+    // file at most every FSYNC_MILLIS, or at once when someone is waiting
+    // in sync(). A crash can lose the receipts of the last moments but not
+    // earlier ones: every record has a CRC32C, and open() cuts a torn tail
+    // off. Receipt numbers carry on from the last one in the file.
+    //
+    // Little-endian. An 8-byte header (magic, version), then records of
+    // body length, CRC32C of the body, and the body: number, terminal,
+    // time, total, line count, and per line unit price, quantity, name
+    // length and the name as UTF-16.
+    static class ReceiptJournal {
+        static final long FSYNC_MILLIS = 100;
+        private static final int MAGIC = 0x4A505243;
+        private static final int VERSION = 1;
+        private static final int HEADER = 8;
+        private static final int RECORD_HEADER = 8;
+        private static final int MAX_RECORD = 64 << 20;
+
+        private final Path file;
+        private final FileChannel channel;
+        private final long lastNumber;
+        private final BlockingQueue<Receipt> queue = new ArrayBlockingQueue<>(1 << 16);
+        private final AtomicLong queued = new AtomicLong();
+        private final Thread writer;
+        private final Object durableLock = new Object();
+        private long durable;
+        private volatile boolean syncWanted;
+        private volatile boolean closed;
+        // Set by the writer when it exits, before it drains the queue
+        private volatile boolean stopped;
+        private volatile String error;
+        // Set when a receipt could not even be queued
+        private volatile String dropped;
+
+        private ReceiptJournal(Path file, FileChannel channel, long lastNumber) {
+            this.file = file;
+            this.channel = channel;
+            this.lastNumber = lastNumber;
+            writer = new Thread(this::write, "Receipt journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        static ReceiptJournal open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                long[] last = {0};
+                long end;
+                if (channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    while (header.hasRemaining()) channel.write(header);
+                    channel.force(true);
+                    end = HEADER;
+                } else {
+                    end = scan(channel, receipt -> {
+                        last[0] = Math.max(last[0], receipt.getNumber());
+                        return true;
+                    });
+                    if (end < channel.size()) channel.truncate(end);
+                }
+                channel.position(end);
+                return new ReceiptJournal(file, channel, last[0]);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        // 0 for a new journal
+        long getLastNumber() {
+            return lastNumber;
+        }
+
+        // Null while the journal is healthy; once writing fails, receipts
+        // are no longer kept
+        String getError() {
+            return error != null ? error : dropped;
+        }
+
+        // Queues a receipt, waiting only if the writer is 65536 behind. A
+        // receipt that cannot be queued is reported through getError().
+        void append(Receipt receipt) {
+            if (closed || error != null) {
+                dropped = "Receipt " + receipt.getNumber() + " was not saved: "
+                        + (error != null ? error : "the receipt journal is closed");
+                return;
+            }
+            try {
+                queue.put(receipt);
+                // Counted only once queued, so sync() never waits for a receipt that is not coming
+                queued.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                dropped = "Receipt " + receipt.getNumber() + " was not saved: checkout was interrupted";
+                return;
+            }
+            // The writer may have stopped since the check above; whichever
+            // of us takes the receipt back out reports it
+            if (stopped && queue.remove(receipt)) {
+                dropped = "Receipt " + receipt.getNumber() + " was not saved: the receipt journal is closed";
+            }
+        }
+
+        // Waits until every receipt appended so far is on disk
+        void sync() throws IOException {
+            long target = queued.get();
+            long reached;
+            synchronized (durableLock) {
+                while (durable < target && error == null && !stopped) {
+                    syncWanted = true;
+                    try {
+                        durableLock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                reached = durable;
+            }
+            if (error != null) throw new IOException(error);
+            if (reached < target) throw new IOException(dropped != null ? dropped : "Receipt journal is closed");
+        }
+
+        // Writes out what is queued and stops the writer
+        void close() {
+            closed = true;
+            try {
+                writer.join();
+                channel.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                error = ex.getMessage();
+            }
+        }
+
+        private void write() {
+            List<Receipt> batch = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32C crc = new CRC32C();
+            long written = 0;
+            long forced = System.nanoTime();
+            boolean dirty = false;
+            try {
+                while (true) {
+                    Receipt first = queue.poll(FSYNC_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch);
+                        for (Receipt receipt : batch) {
+                            int size = recordSize(receipt);
+                            if (buffer.remaining() < size) {
+                                flush(buffer);
+                                if (buffer.capacity() < size) {
+                                    buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+                                }
+                            }
+                            encode(receipt, buffer, crc);
+                        }
+                        flush(buffer);
+                        written += batch.size();
+                        batch.clear();
+                        dirty = true;
+                    }
+                    boolean stopping = closed && queue.isEmpty();
+                    if (dirty && (first == null || stopping || syncWanted
+                            || System.nanoTime() - forced >= TimeUnit.MILLISECONDS.toNanos(FSYNC_MILLIS))) {
+                        syncWanted = false;
+                        channel.force(false);
+                        forced = System.nanoTime();
+                        dirty = false;
+                        synchronized (durableLock) {
+                            durable = written;
+                            durableLock.notifyAll();
+                        }
+                    }
+                    if (stopping) break;
+                }
+            } catch (IOException ex) {
+                error = "Receipt journal failed: " + ex.getMessage();
+            } catch (InterruptedException ex) {
+                error = "Receipt journal stopped";
+            }
+            // Nothing more will be written. Receipts still queued raced with
+            // close() or a failure; report them and release anyone waiting.
+            stopped = true;
+            batch.clear();
+            int stranded = queue.drainTo(batch);
+            if (stranded > 0) {
+                dropped = stranded + " receipt(s) from " + batch.get(0).getNumber() + " were not saved: "
+                        + (error != null ? error : "the receipt journal is closed");
+            }
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+
+        private void flush(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private static int recordSize(Receipt receipt) {
+            int size = RECORD_HEADER + 32;
+            for (int i = 0; i < receipt.getLineCount(); i++) {
+                size += 16 + 2 * receipt.getLine(i).getName().length();
+            }
+            return size;
+        }
+
+        private static void encode(Receipt receipt, ByteBuffer buffer, CRC32C crc) {
+            int start = buffer.position();
+            buffer.position(start + RECORD_HEADER);
+            buffer.putLong(receipt.getNumber());
+            buffer.putInt(receipt.getTerminal());
+            buffer.putLong(receipt.getTime());
+            buffer.putLong(receipt.getTotalCents());
+            buffer.putInt(receipt.getLineCount());
+            for (int i = 0; i < receipt.getLineCount(); i++) {
+                LineItem line = receipt.getLine(i);
+                String name = line.getName();
+                buffer.putLong(line.getUnitCents());
+                buffer.putInt(line.getQuantity());
+                buffer.putInt(name.length());
+                for (int c = 0; c < name.length(); c++) {
+                    buffer.putChar(name.charAt(c));
+                }
+            }
+            int end = buffer.position();
+            buffer.position(start + RECORD_HEADER).limit(end);
+            crc.reset();
+            crc.update(buffer);
+            buffer.limit(buffer.capacity());
+            buffer.putInt(start, end - start - RECORD_HEADER);
+            buffer.putInt(start + 4, (int) crc.getValue());
+        }
+
+        interface ReceiptVisitor {
+            // Return false to stop
+            boolean visit(Receipt receipt) throws IOException;
+        }
+
+        // Streams the journal's receipts in the order they were written,
+        // after waiting for the queued ones to reach the file
+        void forEach(ReceiptVisitor visitor) throws IOException {
+            sync();
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                scan(reader, visitor);
+            }
+        }
+
+        // Null if there is no such receipt
+        Receipt find(long number) throws IOException {
+            Receipt[] found = {null};
+            forEach(receipt -> {
+                if (receipt.getNumber() == number) found[0] = receipt;
+                return found[0] == null;
+            });
+            return found[0];
+        }
+
+        // Writes the receipts of one local day as text; returns how many
+        int exportDay(LocalDate day, ZoneId zone, Writer out) throws IOException {
+            long from = day.atStartOfDay(zone).toInstant().toEpochMilli();
+            long to = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            ReceiptFormatter formatter = new ReceiptFormatter(zone);
+            int[] count = {0};
+            forEach(receipt -> {
+                if (receipt.getTime() >= from && receipt.getTime() < to) {
+                    formatter.render(receipt);
+                    formatter.writeTo(out);
+                    out.write('\n');
+                    count[0]++;
+                }
+                return true;
+            });
+            return count[0];
+        }
+
+        // Reads records up to the first one that is incomplete or damaged
+        // and returns where that one starts, the end of the good part
+        private static long scan(FileChannel channel, ReceiptVisitor visitor) throws IOException {
+            Input in = new Input(channel);
+            CRC32C crc = new CRC32C();
+            if (!in.fill(HEADER) || in.buffer.getInt() != MAGIC || in.buffer.getInt() != VERSION) {
+                throw new IOException("Not a receipt journal");
+            }
+            long position = HEADER;
+            while (in.fill(RECORD_HEADER)) {
+                int length = in.buffer.getInt(in.buffer.position());
+                if (length < 32 || length > MAX_RECORD || !in.fill(RECORD_HEADER + length)) break;
+                ByteBuffer buffer = in.buffer;
+                int body = buffer.position() + RECORD_HEADER;
+                int limit = buffer.limit();
+                buffer.position(body).limit(body + length);
+                crc.reset();
+                crc.update(buffer);
+                buffer.limit(limit);
+                if ((int) crc.getValue() != buffer.getInt(body - 4)) break;
+                Receipt receipt = decode(buffer, body, length);
+                if (receipt == null) break;
+                position += RECORD_HEADER + length;
+                if (!visitor.visit(receipt)) break;
+            }
+            return position;
+        }
+
+        // Leaves the buffer after the record; null if the body does not
+        // hold together
+        private static Receipt decode(ByteBuffer buffer, int body, int length) {
+            int end = body + length;
+            buffer.position(body);
+            long number = buffer.getLong();
+            int terminal = buffer.getInt();
+            long time = buffer.getLong();
+            long totalCents = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || count > (end - buffer.position()) / 16) return null;
+            LineItem[] lines = new LineItem[count];
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (end - buffer.position() < 16) return null;
+                    long unitCents = buffer.getLong();
+                    int quantity = buffer.getInt();
+                    int nameLength = buffer.getInt();
+                    if (nameLength < 0 || nameLength > (end - buffer.position()) / 2) return null;
+                    char[] name = new char[nameLength];
+                    for (int c = 0; c < nameLength; c++) {
+                        name[c] = buffer.getChar();
+                    }
+                    lines[i] = new LineItem(new String(name), unitCents, quantity);
+                }
+                if (buffer.position() != end) return null;
+            } catch (IllegalArgumentException | ArithmeticException ex) {
+                return null;
+            } finally {
+                buffer.position(end);
+            }
+            return new Receipt(number, terminal, time, lines, totalCents);
+        }
+
+        // A window onto a file that slides forward as records are read
+        private static class Input {
+            private final FileChannel channel;
+            private ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            private long end;
+
+            Input(FileChannel channel) {
+                this.channel = channel;
+                buffer.limit(0);
+            }
+
+            // Makes need unread bytes available; false at the end of the file
+            boolean fill(int need) throws IOException {
+                if (buffer.remaining() >= need) return true;
+                buffer.compact();
+                if (buffer.capacity() < need) {
+                    buffer.flip();
+                    buffer = ByteBuffer.allocate(need).order(ByteOrder.LITTLE_ENDIAN).put(buffer);
+                }
+                while (buffer.position() < need) {
+                    int read = channel.read(buffer, end);
+                    if (read <= 0) break;
+                    end += read;
+                }
+                buffer.flip();
+                return buffer.remaining() >= need;
+            }
+        }
+    }
+
+    // Running sums of quantity and cents by a long key, in open-addressing
+    // primitive arrays. Keys are item, terminal and hour numbers and tax
+    // rates, so Long.MIN_VALUE is free to mark an empty slot.
+    static class SumTable {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys = new long[16];
+        private long[] quantities = new long[16];
+        private long[] cents = new long[16];
+        private int size;
+
+        SumTable() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        void add(long key, long quantity, long amount) {
+            int slot = slot(key);
+            if (keys[slot] == EMPTY) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            quantities[slot] += quantity;
+            cents[slot] += amount;
+        }
+
+        void merge(SumTable other) {
+            for (int slot = 0; slot < other.keys.length; slot++) {
+                if (other.keys[slot] != EMPTY) add(other.keys[slot], other.quantities[slot], other.cents[slot]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Slots run from 0 to capacity() - 1; only used ones have a key
+        int capacity() {
+            return keys.length;
+        }
+
+        boolean isUsed(int slot) {
+            return keys[slot] != EMPTY;
+        }
+
+        long getKey(int slot) {
+            return keys[slot];
+        }
+
+        long getQuantity(int slot) {
+            return quantities[slot];
+        }
+
+        long getCents(int slot) {
+            return cents[slot];
+        }
+
+        // Used slots with the most cents, most first
+        int[] top(int n) {
+            // Min-heap of the best n so far, by cents
+            int[] heap = new int[Math.min(n, size)];
+            int count = 0;
+            for (int slot = 0; slot < keys.length && heap.length > 0; slot++) {
+                if (keys[slot] == EMPTY) continue;
+                if (count < heap.length) {
+                    heap[count] = slot;
+                    siftUp(heap, count++);
+                } else if (cents[slot] > cents[heap[0]]) {
+                    heap[0] = slot;
+                    siftDown(heap, count);
+                }
+            }
+            for (int end = count - 1; end > 0; end--) {
+                int least = heap[0];
+                heap[0] = heap[end];
+                heap[end] = least;
+                siftDown(heap, end);
+            }
+            return heap;
+        }
+
+        private void siftUp(int[] heap, int i) {
+            while (i > 0 && cents[heap[i]] < cents[heap[(i - 1) / 2]]) {
+                int parent = (i - 1) / 2;
+                int swap = heap[i];
+                heap[i] = heap[parent];
+                heap[parent] = swap;
+                i = parent;
+            }
+        }
+
+        private void siftDown(int[] heap, int count) {
+            for (int i = 0; ; ) {
+                int least = i;
+                int left = 2 * i + 1;
+                if (left < count && cents[heap[left]] < cents[heap[least]]) least = left;
+                if (left + 1 < count && cents[heap[left + 1]] < cents[heap[least]]) least = left + 1;
+                if (least == i) return;
+                int swap = heap[i];
+                heap[i] = heap[least];
+                heap[least] = swap;
+                i = least;
+            }
+        }
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldQuantities = quantities;
+            long[] oldCents = cents;
+            keys = new long[oldKeys.length * 2];
+            quantities = new long[keys.length];
+            cents = new long[keys.length];
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                quantities[slot] = oldQuantities[i];
+                cents[slot] = oldCents[i];
+            }
+        }
+    }
+
+    // The sums a sales report is made of. Hours are local hours since the
+    // epoch; tax is summed as the gross taken at each rate, in basis points.
+    static class SalesTotals {
+        final SumTable items = new SumTable();
+        final SumTable hours = new SumTable();
+        final SumTable terminals = new SumTable();
+        final SumTable taxRates = new SumTable();
+
+        void add(int item, int terminal, long hour, int taxRate, int quantity, long cents) {
+            items.add(item, quantity, cents);
+            hours.add(hour, quantity, cents);
+            terminals.add(terminal, quantity, cents);
+            taxRates.add(taxRate, quantity, cents);
+        }
+
+        SalesTotals merge(SalesTotals other) {
+            items.merge(other.items);
+            hours.merge(other.hours);
+            terminals.merge(other.terminals);
+            taxRates.merge(other.taxRates);
+            return this;
+        }
+    }
+
+    // Billed lines laid out by column, so a batch can be summed in slices
+    // by separate threads without touching a Receipt
+    static class LineBatch {
+        static final int CAPACITY = 1 << 16;
+        private static final int SLICE = 1 << 13;
+
+        final int[] items = new int[CAPACITY];
+        final int[] terminals = new int[CAPACITY];
+        final long[] hours = new long[CAPACITY];
+        final int[] taxRates = new int[CAPACITY];
+        final int[] quantities = new int[CAPACITY];
+        final long[] cents = new long[CAPACITY];
+        int size;
+
+        boolean isFull() {
+            return size == CAPACITY;
+        }
+
+        void add(int item, int terminal, long hour, int taxRate, int quantity, long amount) {
+            items[size] = item;
+            terminals[size] = terminal;
+            hours[size] = hour;
+            taxRates[size] = taxRate;
+            quantities[size] = quantity;
+            cents[size] = amount;
+            size++;
+        }
+
+        // Each slice is summed into its own tables on the common fork-join
+        // pool, then the tables are merged pairwise
+        SalesTotals aggregate() {
+            return IntStream.range(0, (size + SLICE - 1) / SLICE).parallel()
+                    .mapToObj(slice -> {
+                        SalesTotals totals = new SalesTotals();
+                        for (int i = slice * SLICE; i < Math.min(size, (slice + 1) * SLICE); i++) {
+                            totals.add(items[i], terminals[i], hours[i], taxRates[i], quantities[i], cents[i]);
+                        }
+                        return totals;
+                    })
+                    .reduce(SalesTotals::merge)
+                    .orElseGet(SalesTotals::new);
+        }
+    }
+
+    // Sales since a given time, by item, hour, terminal and tax rate. The
+    // history comes from the receipt journal in column batches summed in
+    // parallel; receipts of this run are added one by one as they are
+    // checked out. Receipts up to the journal's last number at startup are
+    // taken from the journal and later ones from checkout, so none is
+    // counted twice. Prices are taken to include tax.
+    static class SalesAnalytics implements CheckoutEngine.CheckoutListener {
+        private final long from;
+        private final ZoneId zone;
+        private final ToIntFunction<String> taxRate;
+        private final Map<String, Integer> itemIds = new HashMap<>();
+        private final List<String> itemNames = new ArrayList<>();
+        private int[] itemTaxRates = new int[1024];
+        private final SalesTotals totals = new SalesTotals();
+        private long receipts;
+        private long lines;
+
+        // taxRate gives an item's rate in basis points: 1800 is 18%
+        SalesAnalytics(long from, ZoneId zone, ToIntFunction<String> taxRate) {
+            this.from = from;
+            this.zone = zone;
+            this.taxRate = taxRate;
+        }
+
+        // Reads receipts numbered up to lastNumber from the journal
+        void load(ReceiptJournal journal, long lastNumber) throws IOException {
+            LineBatch[] batch = {new LineBatch()};
+            journal.forEach(receipt -> {
+                if (receipt.getNumber() > lastNumber || receipt.getTime() < from) return true;
+                long hour = hour(receipt.getTime());
+                for (int i = 0; i < receipt.getLineCount(); i++) {
+                    LineItem line = receipt.getLine(i);
+                    int item = itemId(line.getName());
+                    if (batch[0].isFull()) {
+                        add(batch[0]);
+                        batch[0] = new LineBatch();
+                    }
+                    batch[0].add(item, receipt.getTerminal(), hour, taxRateOf(item), line.getQuantity(), line.getTotalCents());
+                }
+                synchronized (this) {
+                    receipts++;
+                }
+                return true;
+            });
+            add(batch[0]);
+        }
+
+        @Override
+        public synchronized void completed(Receipt receipt) {
+            if (receipt.getTime() < from) return;
+            long hour = hour(receipt.getTime());
+            for (int i = 0; i < receipt.getLineCount(); i++) {
+                LineItem line = receipt.getLine(i);
+                int item = itemId(line.getName());
+                totals.add(item, receipt.getTerminal(), hour, itemTaxRates[item], line.getQuantity(), line.getTotalCents());
+            }
+            receipts++;
+            lines += receipt.getLineCount();
+        }
+
+        private void add(LineBatch batch) {
+            SalesTotals sums = batch.aggregate();
+            synchronized (this) {
+                totals.merge(sums);
+                lines += batch.size;
+            }
+        }
+
+        private long hour(long time) {
+            long offset = zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+            return Math.floorDiv(time + offset, 3_600_000L);
+        }
+
+        private synchronized int itemId(String name) {
+            Integer id = itemIds.get(name);
+            if (id != null) return id;
+            int item = itemNames.size();
+            itemIds.put(name, item);
+            itemNames.add(name);
+            if (item == itemTaxRates.length) itemTaxRates = Arrays.copyOf(itemTaxRates, item * 2);
+            itemTaxRates[item] = taxRate.applyAsInt(name);
+            return item;
+        }
+
+        private synchronized int taxRateOf(int item) {
+            return itemTaxRates[item];
+        }
+
+        synchronized String report(int topItems) {
+            StringBuilder out = new StringBuilder();
+            long revenue = 0;
+            for (int slot = 0; slot < totals.terminals.capacity(); slot++) {
+                if (totals.terminals.isUsed(slot)) revenue += totals.terminals.getCents(slot);
+            }
+            out.append("Sales since ").append(LocalDateTime.ofInstant(Instant.ofEpochMilli(from), zone)
+                    .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"))).append("\n");
+            out.append(String.format("Receipts: %,d   Lines: %,d   Revenue: %s\n", receipts, lines, Money.format(revenue)));
+
+            out.append(String.format("\nTop %d items\n%-30s %10s %14s\n", topItems, "Item", "Qty", "Revenue"));
+            SumTable items = totals.items;
+            for (int slot : items.top(topItems)) {
+                out.append(String.format("%-30s %10d %14s\n", itemNames.get((int) items.getKey(slot)),
+                        items.getQuantity(slot), Money.format(items.getCents(slot))));
+            }
+
+            // Rolled up by hour of day, which is what staffing needs
+            long[] byHour = new long[24];
+            long[] qtyByHour = new long[24];
+            for (int slot = 0; slot < totals.hours.capacity(); slot++) {
+                if (!totals.hours.isUsed(slot)) continue;
+                int hour = (int) Math.floorMod(totals.hours.getKey(slot), 24L);
+                byHour[hour] += totals.hours.getCents(slot);
+                qtyByHour[hour] += totals.hours.getQuantity(slot);
+            }
+            out.append(String.format("\nBy hour\n%-30s %10s %14s\n", "Hour", "Qty", "Revenue"));
+            for (int hour = 0; hour < 24; hour++) {
+                if (qtyByHour[hour] == 0) continue;
+                out.append(String.format("%02d:00-%02d:59%19s %10d %14s\n", hour, hour, "", qtyByHour[hour], Money.format(byHour[hour])));
+            }
+
+            out.append(String.format("\nBy terminal\n%-30s %10s %14s\n", "Terminal", "Qty", "Revenue"));
+            SumTable terminals = totals.terminals;
+            for (int slot : terminals.top(terminals.size())) {
+                out.append(String.format("%-30d %10d %14s\n", terminals.getKey(slot), terminals.getQuantity(slot),
+                        Money.format(terminals.getCents(slot))));
+            }
+
+            out.append(String.format("\nTax\n%-8s %14s %14s %14s\n", "Rate", "Net", "Tax", "Gross"));
+            SumTable rates = totals.taxRates;
+            for (int slot : rates.top(rates.size())) {
+                long rate = rates.getKey(slot);
+                long gross = rates.getCents(slot);
+                // gross * rate / (10000 + rate), rounded half up
+                long tax = (Math.multiplyExact(gross, rate) + (10000 + rate) / 2) / (10000 + rate);
+                out.append(String.format("%5d.%02d%% %14s %14s %14s\n", rate / 100, rate % 100,
+                        Money.format(gross - tax), Money.format(tax), Money.format(gross)));
+            }
+            return out.toString();
+        }
     }
 }
@@ -1,10 +1,51 @@
 import javax.swing.*;
+import javax.swing.event.TableModelEvent;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongConsumer;
 
 public class MsExcel extends JFrame {
+    private static final int SHEET_ROWS = 1_000_000;
+    private static final int SHEET_COLUMNS = 256;
+    private static final int MAX_COLUMNS = 16_384;
+
     private JTable table;
+    private final JFileChooser csvChooser = new JFileChooser();
+    private final JLabel statusLabel = new JLabel("Ready");
+    private final JLabel aggregateLabel = new JLabel();
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
 
     public MsExcel() {
         setTitle("Modern Excel - Java Swing (No external libraries)");
@@ -12,36 +53,23 @@ public class MsExcel extends JFrame {
         setSize(900, 600);
         setLocationRelativeTo(null);
 
-        // Create table model (50 rows, 26 columns)
-        DefaultTableModel model = new DefaultTableModel(50, 26);
-
-        // Create table
-        table = new JTable(model) {
-            // Alternate row coloring for modern look
-            @Override
-            public Component prepareRenderer(TableCellRenderer renderer, int row, int col) {
-                Component c = super.prepareRenderer(renderer, row, col);
-                if (!isRowSelected(row)) {
-                    c.setBackground(row % 2 == 0 ? new Color(250, 250, 250) : Color.WHITE);
-                } else {
-                    c.setBackground(new Color(184, 207, 229)); // Selected color
-                }
-                c.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-                return c;
-            }
-        };
+        // Sparse model: empty cells cost nothing, so the sheet can be large
+        SheetModel model = new SheetModel(SHEET_ROWS, SHEET_COLUMNS);
 
-        // Set column headers A-Z
+        // Create table; the renderer handles fonts and the alternate row colours
+        table = new JTable(model);
+
+        table.setDefaultRenderer(Object.class, new SheetCellRenderer());
+        table.setDefaultEditor(Object.class, new SheetCellEditor());
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+
+        // Column headers (A, B, ... Z, AA, ...) come from the model
         JTableHeader header = table.getTableHeader();
         header.setFont(new Font("Segoe UI", Font.BOLD, 14));
         header.setBackground(new Color(230, 230, 230));
         header.setForeground(Color.DARK_GRAY);
 
-        for (int i = 0; i < 26; i++) {
-            char col = (char) ('A' + i);
-            table.getColumnModel().getColumn(i).setHeaderValue(String.valueOf(col));
-            table.getColumnModel().getColumn(i).setPreferredWidth(70);
-        }
+        applyColumnWidths();
 
         table.setRowHeight(25);
         table.setGridColor(new Color(220, 220, 220));
@@ -72,65 +100,180 @@ public class MsExcel extends JFrame {
         // Italic action: toggle italic font on selected cells
         italicBtn.addActionListener(e -> toggleFontStyle(Font.ITALIC));
 
+        // Status bar with a progress indicator for background CSV work
+        JPanel statusBar = new JPanel(new BorderLayout(10, 0));
+        statusBar.setBorder(BorderFactory.createEmptyBorder(2, 8, 2, 8));
+        progressBar.setVisible(false);
+        JPanel statusRight = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 0));
+        statusRight.add(aggregateLabel);
+        statusRight.add(progressBar);
+        statusBar.add(statusLabel, BorderLayout.CENTER);
+        statusBar.add(statusRight, BorderLayout.EAST);
+
+        // Live SUM/AVERAGE/COUNT/MIN/MAX of the selection, as in Excel
+        table.getSelectionModel().addListSelectionListener(e -> updateSelectionSummary());
+        table.getColumnModel().getSelectionModel().addListSelectionListener(e -> updateSelectionSummary());
+        watchModel(model);
+
+        csvChooser.setFileFilter(new FileNameExtensionFilter("CSV files (*.csv)", "csv"));
+        setupMenu();
+
         add(toolBar, BorderLayout.NORTH);
         add(scrollPane, BorderLayout.CENTER);
+        add(statusBar, BorderLayout.SOUTH);
+    }
+
+    private void setupMenu() {
+        JMenuBar bar = new JMenuBar();
+        JMenu fileMenu = new JMenu("File");
+
+        JMenuItem importCsv = new JMenuItem("Import CSV...");
+        JMenuItem exportCsv = new JMenuItem("Export CSV...");
+        JMenuItem quit = new JMenuItem("Exit");
+
+        importCsv.addActionListener(e -> importCsv());
+        exportCsv.addActionListener(e -> exportCsv());
+        quit.addActionListener(e -> System.exit(0));
+
+        fileMenu.add(importCsv);
+        fileMenu.add(exportCsv);
+        fileMenu.addSeparator();
+        fileMenu.add(quit);
+
+        bar.add(fileMenu);
+        setJMenuBar(bar);
+    }
+
+    private void watchModel(SheetModel model) {
+        model.addTableModelListener(e -> {
+            // Wide files add columns, which makes JTable rebuild them
+            if (e.getFirstRow() == TableModelEvent.HEADER_ROW) SwingUtilities.invokeLater(this::applyColumnWidths);
+            updateSelectionSummary();
+        });
+    }
+
+    // Each selected column/row interval is one O(log n) index query, so this
+    // stays cheap for multi-million-cell selections
+    private void updateSelectionSummary() {
+        SheetModel model = (SheetModel) table.getModel();
+        int[] rows = selectedIntervals(table.getSelectionModel());
+        int[] cols = selectedIntervals(table.getColumnModel().getSelectionModel());
+        RangeAggregate agg = new RangeAggregate();
+        for (int c = 0; c < cols.length; c += 2) {
+            for (int viewCol = cols[c]; viewCol <= cols[c + 1]; viewCol++) {
+                int col = table.convertColumnIndexToModel(viewCol);
+                for (int r = 0; r < rows.length; r += 2) {
+                    model.getStore().aggregate(col, rows[r], rows[r + 1], agg);
+                }
+            }
+        }
+        if (agg.count < 2) {
+            aggregateLabel.setText("");
+            return;
+        }
+        aggregateLabel.setText("Average: " + SheetModel.formatNumber(agg.sum / agg.count)
+                + "   Count: " + agg.count
+                + "   Min: " + SheetModel.formatNumber(agg.min)
+                + "   Max: " + SheetModel.formatNumber(agg.max)
+                + "   Sum: " + SheetModel.formatNumber(agg.sum));
+    }
+
+    private void applyColumnWidths() {
+        for (int i = 0; i < table.getColumnCount(); i++) {
+            table.getColumnModel().getColumn(i).setPreferredWidth(70);
+        }
+    }
+
+    private void importCsv() {
+        if (csvChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path path = csvChooser.getSelectedFile().toPath();
+
+        // Importing replaces the sheet
+        if (table.isEditing()) table.getCellEditor().cancelCellEditing();
+        SheetModel old = (SheetModel) table.getModel();
+        SheetModel fresh = new SheetModel(SHEET_ROWS, SHEET_COLUMNS);
+        table.setModel(fresh);
+        applyColumnWidths();
+        watchModel(fresh);
+        old.dispose();
+
+        runInBackground(new CsvImportWorker(fresh, path), "Importing " + path.getFileName(), "Imported");
+    }
+
+    private void exportCsv() {
+        if (csvChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path path = csvChooser.getSelectedFile().toPath();
+        if (table.isEditing()) table.getCellEditor().stopCellEditing();
+        runInBackground(new CsvExportWorker((SheetModel) table.getModel(), path),
+                "Exporting " + path.getFileName(), "Exported");
+    }
+
+    private void runInBackground(SwingWorker<Integer, Void> worker, String busyText, String doneText) {
+        statusLabel.setText(busyText + "...");
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) progressBar.setValue((Integer) e.getNewValue());
+        });
+        worker.addPropertyChangeListener(e -> {
+            if (!"state".equals(e.getPropertyName()) || e.getNewValue() != SwingWorker.StateValue.DONE) return;
+            progressBar.setVisible(false);
+            try {
+                statusLabel.setText(doneText + " " + worker.get() + " rows");
+            } catch (Exception ex) {
+                statusLabel.setText("Ready");
+                Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                JOptionPane.showMessageDialog(this, busyText + " failed: " + cause.getMessage(),
+                        "CSV", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        worker.execute();
     }
 
+    // Toggles a font style bit on the selected block. Like Excel, the anchor
+    // cell decides the direction: if it already has the style, the style is
+    // removed everywhere, otherwise it is added everywhere. Each selected
+    // column gets one range update on its style runs.
     private void toggleFontStyle(int style) {
-        int[] selectedRows = table.getSelectedRows();
-        int[] selectedCols = table.getSelectedColumns();
-
-        for (int row : selectedRows) {
-            for (int col : selectedCols) {
-                Object value = table.getValueAt(row, col);
-                if (value == null) continue;
-
-                // We will store the font style inside the cell renderer via a client property
-                TableCellRenderer renderer = table.getCellRenderer(row, col);
-                Component comp = table.prepareRenderer(renderer, row, col);
-                Font currentFont = comp.getFont();
-
-                // Calculate new font style: toggle given style bit
-                int newStyle;
-                if ((currentFont.getStyle() & style) != 0) {
-                    // Style is on, remove it
-                    newStyle = currentFont.getStyle() & ~style;
-                } else {
-                    // Style is off, add it
-                    newStyle = currentFont.getStyle() | style;
-                }
-
-                // Update cell font via a custom renderer - Here simplified by setting cell's font directly
-                // JTable doesn’t support per-cell font out of the box, so we’ll store info in the table model or use a map
-                // For simplicity, we just set the value to a JLabel with styled font
-
-                // Save styled value as JLabel (not perfect, but demonstrates concept)
-                JLabel label = new JLabel(value.toString());
-                label.setFont(new Font("Segoe UI", newStyle, 14));
-                label.setOpaque(true);
-                label.setBackground(row % 2 == 0 ? new Color(250, 250, 250) : Color.WHITE);
-                label.setForeground(Color.BLACK);
-
-                // Hack: set JLabel as the cell renderer temporarily for this cell:
-                table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
-                    @Override
-                    public Component getTableCellRendererComponent(JTable table, Object val, boolean isSelected, boolean hasFocus, int rowR, int colR) {
-                        JLabel comp = (JLabel) super.getTableCellRendererComponent(table, val, isSelected, hasFocus, rowR, colR);
-                        if (rowR == row && colR == col) {
-                            comp.setFont(label.getFont());
-                        } else {
-                            comp.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-                        }
-                        if (!isSelected) {
-                            comp.setBackground(rowR % 2 == 0 ? new Color(250, 250, 250) : Color.WHITE);
-                        }
-                        return comp;
-                    }
-                });
+        int anchorRow = table.getSelectionModel().getAnchorSelectionIndex();
+        int anchorCol = table.getColumnModel().getSelectionModel().getAnchorSelectionIndex();
+        if (anchorRow < 0 || anchorCol < 0) return;
+
+        SheetModel model = (SheetModel) table.getModel();
+        CellStyles styles = model.getStyles();
+        boolean add = (styles.fontStyle(anchorRow, table.convertColumnIndexToModel(anchorCol)) & style) == 0;
 
-                table.repaint();
+        int[] rows = selectedIntervals(table.getSelectionModel());
+        int[] cols = selectedIntervals(table.getColumnModel().getSelectionModel());
+        for (int c = 0; c < cols.length; c += 2) {
+            for (int viewCol = cols[c]; viewCol <= cols[c + 1]; viewCol++) {
+                int col = table.convertColumnIndexToModel(viewCol);
+                for (int r = 0; r < rows.length; r += 2) {
+                    styles.applyFontStyle(col, rows[r], rows[r + 1], style, add);
+                }
             }
         }
+        table.repaint();
+    }
+
+    // Selected [from, to] index pairs of a selection model
+    private static int[] selectedIntervals(ListSelectionModel selection) {
+        int min = selection.getMinSelectionIndex();
+        int max = selection.getMaxSelectionIndex();
+        if (min < 0) return new int[0];
+        int[] intervals = new int[4];
+        int n = 0;
+        int i = min;
+        while (i <= max) {
+            while (i <= max && !selection.isSelectedIndex(i)) i++;
+            if (i > max) break;
+            int start = i;
+            while (i <= max && selection.isSelectedIndex(i)) i++;
+            if (n == intervals.length) intervals = Arrays.copyOf(intervals, n * 2);
+            intervals[n++] = start;
+            intervals[n++] = i - 1;
+        }
+        return Arrays.copyOf(intervals, n);
     }
 
     public static void main(String[] args) {
@@ -139,4 +282,2028 @@ public class MsExcel extends JFrame {
             app.setVisible(true);
         });
     }
+
+    // Table model over a sparse cell store. JTable only asks for the visible
+    // cells, so paging through a huge sheet never touches the empty ones.
+    static class SheetModel extends AbstractTableModel {
+        private final SheetStore store = new SheetStore();
+        private final CellStyles styles = new CellStyles();
+        private final FormulaEngine formulas;
+        private volatile int rowCount;
+        private volatile int columnCount;
+
+        SheetModel(int rows, int columns) {
+            this.rowCount = rows;
+            this.columnCount = columns;
+            this.formulas = new FormulaEngine(this);
+        }
+
+        @Override
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnCount;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnName(column);
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int col) {
+            return true;
+        }
+
+        @Override
+        public Object getValueAt(int row, int col) {
+            return store.get(row, col);
+        }
+
+        @Override
+        public void setValueAt(Object value, int row, int col) {
+            // The store is written on the recalc thread; the cell repaints once
+            // the edit and its dependents have been recalculated
+            formulas.submitEdit(row, col, value == null ? "" : value.toString().trim());
+        }
+
+        static void writeLiteral(SheetStore store, int row, int col, String text) {
+            if (text.isEmpty()) {
+                store.clear(row, col);
+            } else if (looksNumeric(text)) {
+                try {
+                    store.setNumber(row, col, Double.parseDouble(text));
+                } catch (NumberFormatException ex) {
+                    store.setText(row, col, text);
+                }
+            } else {
+                store.setText(row, col, text);
+            }
+        }
+
+        // Text shown in the cell editor: the formula source for formula cells,
+        // numbers without a trailing ".0"
+        String getEditText(int row, int col) {
+            String source = formulas.getSource(row, col);
+            if (source != null) return source;
+            Object value = store.get(row, col);
+            if (value instanceof Double) return formatNumber((Double) value);
+            return value == null ? "" : value.toString();
+        }
+
+        // Grows the sheet to at least rows x columns; safe from any thread
+        void ensureSize(int rows, int columns) {
+            if (rows <= rowCount && columns <= columnCount) return;
+            SwingUtilities.invokeLater(() -> {
+                if (rows > rowCount) {
+                    int old = rowCount;
+                    rowCount = rows;
+                    fireTableRowsInserted(old, rows - 1);
+                }
+                if (columns > columnCount) {
+                    columnCount = columns;
+                    fireTableStructureChanged();
+                }
+            });
+        }
+
+        void dispose() {
+            formulas.dispose();
+        }
+
+        SheetStore getStore() {
+            return store;
+        }
+
+        FormulaEngine getFormulas() {
+            return formulas;
+        }
+
+        CellStyles getStyles() {
+            return styles;
+        }
+
+        static String columnName(int column) {
+            StringBuilder name = new StringBuilder();
+            for (int c = column + 1; c > 0; c = (c - 1) / 26) {
+                name.insert(0, (char) ('A' + (c - 1) % 26));
+            }
+            return name.toString();
+        }
+
+        static String formatNumber(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+
+        // Double.parseDouble also accepts "NaN", "Infinity" and a trailing 'd'/'f',
+        // none of which should turn a text cell into a number
+        private static boolean looksNumeric(String text) {
+            char first = text.charAt(0);
+            char last = text.charAt(text.length() - 1);
+            boolean firstOk = Character.isDigit(first) || first == '-' || first == '+' || first == '.';
+            return firstOk && (Character.isDigit(last) || last == '.');
+        }
+    }
+
+    // Column-major sparse storage. Each column is split into blocks of
+    // BLOCK_SIZE rows that are only allocated once a cell in them is set.
+    // Inside a block an occupancy bitmap says which rows hold a value and the
+    // values themselves are packed by rank into a primitive double[]; text
+    // cells additionally get a (lazily created) String[] slot.
+    //
+    // Blocks are immutable and so is every published column: a write builds
+    // new blocks, path-copies the column trees it touches and publishes them
+    // with one volatile store, so the EDT and the recalculation workers can
+    // read without locking while the single writer (the recalc thread)
+    // updates the sheet.
+    static class SheetStore {
+        static final int BLOCK_SHIFT = 10;
+        static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+        private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+        private volatile ColumnTree[] columns = new ColumnTree[0];
+        private final HashMap<String, String> textPool = new HashMap<>();
+
+        Object get(int row, int col) {
+            CellBlock block = block(row, col);
+            return block == null ? null : block.get(row & (BLOCK_SIZE - 1));
+        }
+
+        // SUM/COUNT/MIN/MAX of the numbers in col between fromRow and toRow.
+        // Whole blocks come from the column's tree in O(log blocks); only the
+        // two partial blocks at the ends are scanned.
+        void aggregate(int col, int fromRow, int toRow, RangeAggregate agg) {
+            ColumnTree[] cols = columns;
+            if (col >= cols.length || cols[col] == null) return;
+            ColumnTree tree = cols[col];
+            int first = fromRow >>> BLOCK_SHIFT;
+            int last = toRow >>> BLOCK_SHIFT;
+            boolean clipped = last >= tree.capacity();
+            if (clipped) last = tree.capacity() - 1;
+            if (first > last) return;
+            int firstFull = (fromRow & BLOCK_MASK) == 0 ? first : first + 1;
+            int lastFull = clipped || (toRow & BLOCK_MASK) == BLOCK_MASK ? last : last - 1;
+            if (first == last && firstFull > lastFull) {
+                // Part of a single block
+                int end = clipped ? BLOCK_MASK : toRow & BLOCK_MASK;
+                CellBlock block = tree.block(first);
+                if (block != null) block.scanNumbers(fromRow & BLOCK_MASK, end, agg);
+                return;
+            }
+            if (first < firstFull) {
+                CellBlock block = tree.block(first);
+                if (block != null) block.scanNumbers(fromRow & BLOCK_MASK, BLOCK_MASK, agg);
+            }
+            if (firstFull <= lastFull) tree.query(firstFull, lastFull, agg);
+            if (last > lastFull) {
+                CellBlock block = tree.block(last);
+                if (block != null) block.scanNumbers(0, toRow & BLOCK_MASK, agg);
+            }
+        }
+
+        boolean isNumber(int row, int col) {
+            CellBlock block = block(row, col);
+            return block != null && block.isNumber(row & (BLOCK_SIZE - 1));
+        }
+
+        double getNumber(int row, int col) {
+            CellBlock block = block(row, col);
+            return block == null ? 0 : block.getNumber(row & (BLOCK_SIZE - 1));
+        }
+
+        void setNumber(int row, int col, double value) {
+            CellBlock block = block(row, col);
+            int slot = row & (BLOCK_SIZE - 1);
+            put(row, col, block == null ? CellBlock.EMPTY.withNumber(slot, value) : block.withNumber(slot, value));
+        }
+
+        void setText(int row, int col, String text) {
+            String pooled = textPool.putIfAbsent(text, text);
+            if (pooled != null) text = pooled;
+            CellBlock block = block(row, col);
+            int slot = row & (BLOCK_SIZE - 1);
+            put(row, col, block == null ? CellBlock.EMPTY.withText(slot, text) : block.withText(slot, text));
+        }
+
+        void clear(int row, int col) {
+            CellBlock block = block(row, col);
+            if (block != null) put(row, col, block.without(row & (BLOCK_SIZE - 1)));
+        }
+
+        void setNumbers(int[] cols, int[] rows, double[] values, int n) {
+            setCells(cols, rows, values, null, n);
+        }
+
+        // Writes n cells at once, building one new block per touched block
+        // instead of copying a block for every cell. A non-null texts[i] makes
+        // cell i a text cell. The arrays are reordered in place.
+        void setCells(int[] cols, int[] rows, double[] values, String[] texts, int n) {
+            if (texts != null) {
+                for (int i = 0; i < n; i++) {
+                    if (texts[i] == null) continue;
+                    String pooled = textPool.putIfAbsent(texts[i], texts[i]);
+                    if (pooled != null) texts[i] = pooled;
+                }
+            }
+            sortCells(cols, rows, values, texts, 0, n - 1);
+            int[] blockCols = new int[n];
+            int[] blockIndexes = new int[n];
+            CellBlock[] built = new CellBlock[n];
+            int m = 0;
+            int start = 0;
+            while (start < n) {
+                int col = cols[start];
+                int blockIndex = rows[start] >>> BLOCK_SHIFT;
+                int end = start + 1;
+                while (end < n && cols[end] == col && rows[end] >>> BLOCK_SHIFT == blockIndex) end++;
+                CellBlock block = block(rows[start], col);
+                if (block == null) block = CellBlock.EMPTY;
+                blockCols[m] = col;
+                blockIndexes[m] = blockIndex;
+                built[m++] = block.withCells(rows, values, texts, start, end);
+                start = end;
+            }
+            publish(blockCols, blockIndexes, built, m);
+        }
+
+        // Quicksort by (col, row), carrying rows, values and texts along
+        private static void sortCells(int[] cols, int[] rows, double[] values, String[] texts, int lo, int hi) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long pivot = ((long) cols[mid] << 32) | rows[mid];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while ((((long) cols[i] << 32) | rows[i]) < pivot) i++;
+                    while ((((long) cols[j] << 32) | rows[j]) > pivot) j--;
+                    if (i <= j) {
+                        int c = cols[i]; cols[i] = cols[j]; cols[j] = c;
+                        int r = rows[i]; rows[i] = rows[j]; rows[j] = r;
+                        double v = values[i]; values[i] = values[j]; values[j] = v;
+                        if (texts != null) {
+                            String t = texts[i]; texts[i] = texts[j]; texts[j] = t;
+                        }
+                        i++;
+                        j--;
+                    }
+                }
+                // Recurse into the smaller half to bound stack depth
+                if (j - lo < hi - i) {
+                    sortCells(cols, rows, values, texts, lo, j);
+                    lo = i;
+                } else {
+                    sortCells(cols, rows, values, texts, i, hi);
+                    hi = j;
+                }
+            }
+        }
+
+        // Index of the last column holding any cell, or -1
+        int lastColumn() {
+            ColumnTree[] cols = columns;
+            for (int c = cols.length - 1; c >= 0; c--) {
+                if (lastRow(cols[c]) >= 0) return c;
+            }
+            return -1;
+        }
+
+        // Index of the last row holding any cell, or -1
+        int lastRow() {
+            ColumnTree[] cols = columns;
+            int last = -1;
+            for (int c = cols.length - 1; c >= 0; c--) {
+                last = Math.max(last, lastRow(cols[c]));
+            }
+            return last;
+        }
+
+        private static int lastRow(ColumnTree tree) {
+            if (tree == null) return -1;
+            int b = tree.lastBlock();
+            return b < 0 ? -1 : (b << BLOCK_SHIFT) + tree.block(b).lastSlot();
+        }
+
+        CellBlock blockAt(int col, int blockIndex) {
+            return block(blockIndex << BLOCK_SHIFT, col);
+        }
+
+        private CellBlock block(int row, int col) {
+            ColumnTree[] cols = columns;
+            if (col >= cols.length || cols[col] == null) return null;
+            return cols[col].block(row >>> BLOCK_SHIFT);
+        }
+
+        private void put(int row, int col, CellBlock block) {
+            publish(new int[] {col}, new int[] {row >>> BLOCK_SHIFT}, new CellBlock[] {block}, 1);
+        }
+
+        // Stores blocks[i] at block blockIndexes[i] of column blockCols[i]
+        // (sorted by column, then block; a null block clears). Each touched
+        // column is path-copied once and everything becomes visible in one
+        // volatile store.
+        private void publish(int[] blockCols, int[] blockIndexes, CellBlock[] blocks, int n) {
+            ColumnTree[] cols = columns;
+            ColumnTree[] copy = null;
+            int start = 0;
+            while (start < n) {
+                int col = blockCols[start];
+                int end = start + 1;
+                while (end < n && blockCols[end] == col) end++;
+                ColumnTree old = col < cols.length ? cols[col] : null;
+                ColumnTree tree = (old == null ? ColumnTree.EMPTY : old).with(blockIndexes, blocks, start, end);
+                if (tree != old && (old != null || tree != ColumnTree.EMPTY)) {
+                    if (copy == null) copy = Arrays.copyOf(cols, Math.max(cols.length, blockCols[n - 1] + 1));
+                    copy[col] = tree;
+                }
+                start = end;
+            }
+            if (copy != null) columns = copy;
+        }
+    }
+
+    // Persistent segment tree over the blocks of one column. Leaves hold the
+    // blocks and every node the summary of the numbers below it, so a range
+    // query combines O(log blocks) nodes. Nodes are immutable and empty
+    // subtrees are null: an update copies only the path from the changed
+    // leaves to the root and shares everything else with the old version,
+    // which readers may still be using.
+    static final class ColumnTree {
+        static final ColumnTree EMPTY = new ColumnTree(null, 0);
+
+        private final Node root;
+        private final int depth;
+
+        private static final class Node {
+            final Node left;
+            final Node right;
+            final CellBlock block;
+            final double sum;
+            final long count;
+            final double min;
+            final double max;
+
+            Node(CellBlock block) {
+                this.left = null;
+                this.right = null;
+                this.block = block;
+                this.sum = block.sum;
+                this.count = block.numericCount;
+                this.min = block.min;
+                this.max = block.max;
+            }
+
+            Node(Node left, Node right) {
+                this.left = left;
+                this.right = right;
+                this.block = null;
+                this.sum = (left == null ? 0 : left.sum) + (right == null ? 0 : right.sum);
+                this.count = (left == null ? 0 : left.count) + (right == null ? 0 : right.count);
+                this.min = Math.min(left == null ? Double.POSITIVE_INFINITY : left.min,
+                        right == null ? Double.POSITIVE_INFINITY : right.min);
+                this.max = Math.max(left == null ? Double.NEGATIVE_INFINITY : left.max,
+                        right == null ? Double.NEGATIVE_INFINITY : right.max);
+            }
+        }
+
+        private ColumnTree(Node root, int depth) {
+            this.root = root;
+            this.depth = depth;
+        }
+
+        int capacity() {
+            return 1 << depth;
+        }
+
+        CellBlock block(int blockIndex) {
+            if (blockIndex >= capacity()) return null;
+            Node node = root;
+            for (int level = depth - 1; node != null && level >= 0; level--) {
+                node = (blockIndex >>> level & 1) == 0 ? node.left : node.right;
+            }
+            return node == null ? null : node.block;
+        }
+
+        // Index of the last non-empty block, or -1
+        int lastBlock() {
+            Node node = root;
+            if (node == null) return -1;
+            int index = 0;
+            for (int level = depth - 1; level >= 0; level--) {
+                if (node.right != null) {
+                    node = node.right;
+                    index |= 1 << level;
+                } else {
+                    node = node.left;
+                }
+            }
+            return index;
+        }
+
+        // A new version with blocks[i] at blockIndexes[i] for i in [from, to),
+        // which must be sorted by block index; a null block clears
+        ColumnTree with(int[] blockIndexes, CellBlock[] blocks, int from, int to) {
+            Node node = root;
+            int levels = depth;
+            for (int i = from; i < to; i++) {
+                if (blocks[i] == null) continue;
+                while (blockIndexes[i] >= 1 << levels) {
+                    if (node != null) node = new Node(node, null);
+                    levels++;
+                }
+            }
+            while (to > from && blockIndexes[to - 1] >= 1 << levels) to--;
+            node = set(node, levels, 0, blockIndexes, blocks, from, to);
+            return node == root && levels == depth ? this : new ColumnTree(node, levels);
+        }
+
+        private static Node set(Node node, int level, int offset, int[] blockIndexes, CellBlock[] blocks, int from, int to) {
+            if (from == to) return node;
+            if (level == 0) return blocks[to - 1] == null ? null : new Node(blocks[to - 1]);
+            int mid = offset + (1 << (level - 1));
+            int split = from;
+            while (split < to && blockIndexes[split] < mid) split++;
+            Node oldLeft = node == null ? null : node.left;
+            Node oldRight = node == null ? null : node.right;
+            Node left = set(oldLeft, level - 1, offset, blockIndexes, blocks, from, split);
+            Node right = set(oldRight, level - 1, mid, blockIndexes, blocks, split, to);
+            if (left == oldLeft && right == oldRight) return node;
+            return left == null && right == null ? null : new Node(left, right);
+        }
+
+        void query(int fromBlock, int toBlock, RangeAggregate agg) {
+            query(root, depth, 0, fromBlock, toBlock, agg);
+        }
+
+        private static void query(Node node, int level, int offset, int from, int to, RangeAggregate agg) {
+            if (node == null || node.count == 0) return;
+            int end = offset + (1 << level) - 1;
+            if (to < offset || from > end) return;
+            if (from <= offset && end <= to) {
+                agg.merge(node.sum, node.count, node.min, node.max);
+                return;
+            }
+            int mid = offset + (1 << (level - 1));
+            query(node.left, level - 1, offset, from, to, agg);
+            query(node.right, level - 1, mid, from, to, agg);
+        }
+    }
+
+    static final class CellBlock {
+        static final CellBlock EMPTY = new CellBlock(new long[SheetStore.BLOCK_SIZE / 64], new double[0], null);
+
+        private final long[] occupied;
+        private final double[] numbers;
+        private final String[] texts;
+
+        // Summary of the numeric cells, feeding the column's ColumnTree
+        final double sum;
+        final int numericCount;
+        final double min;
+        final double max;
+
+        private CellBlock(long[] occupied, double[] numbers, String[] texts) {
+            this.occupied = occupied;
+            this.numbers = numbers;
+            this.texts = texts;
+            double s = 0;
+            int n = 0;
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < numbers.length; i++) {
+                if (texts != null && texts[i] != null) continue;
+                double v = numbers[i];
+                s += v;
+                n++;
+                if (v < lo) lo = v;
+                if (v > hi) hi = v;
+            }
+            sum = s;
+            numericCount = n;
+            min = lo;
+            max = hi;
+        }
+
+        int count() {
+            return numbers.length;
+        }
+
+        boolean has(int slot) {
+            return (occupied[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        int lastSlot() {
+            for (int word = occupied.length - 1; word >= 0; word--) {
+                if (occupied[word] != 0) return (word << 6) + 63 - Long.numberOfLeadingZeros(occupied[word]);
+            }
+            return -1;
+        }
+
+        // Position of the slot's value in the packed arrays
+        private int rank(int slot) {
+            int word = slot >>> 6;
+            int r = 0;
+            for (int i = 0; i < word; i++) {
+                r += Long.bitCount(occupied[i]);
+            }
+            return r + Long.bitCount(occupied[word] & ((1L << slot) - 1));
+        }
+
+        Object get(int slot) {
+            if (!has(slot)) return null;
+            int r = rank(slot);
+            if (texts != null && texts[r] != null) return texts[r];
+            return numbers[r];
+        }
+
+        boolean isNumber(int slot) {
+            return has(slot) && (texts == null || texts[rank(slot)] == null);
+        }
+
+        double getNumber(int slot) {
+            return isNumber(slot) ? numbers[rank(slot)] : 0;
+        }
+
+        void scanNumbers(int fromSlot, int toSlot, RangeAggregate agg) {
+            int r = rank(fromSlot);
+            for (int word = fromSlot >>> 6; word <= toSlot >>> 6; word++) {
+                long bits = occupied[word];
+                while (bits != 0) {
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (slot < fromSlot) continue;
+                    if (slot > toSlot) return;
+                    if (texts == null || texts[r] == null) agg.add(numbers[r]);
+                    r++;
+                }
+            }
+        }
+
+        CellBlock withNumber(int slot, double value) {
+            int r = rank(slot);
+            if (has(slot)) {
+                double[] n = numbers.clone();
+                n[r] = value;
+                String[] t = texts;
+                if (t != null && t[r] != null) {
+                    t = t.clone();
+                    t[r] = null;
+                }
+                return new CellBlock(occupied, n, t);
+            }
+            double[] n = insert(numbers, r);
+            n[r] = value;
+            return new CellBlock(occupy(slot), n, texts == null ? null : insert(texts, r));
+        }
+
+        CellBlock withText(int slot, String text) {
+            int r = rank(slot);
+            if (has(slot)) {
+                String[] t = texts == null ? new String[numbers.length] : texts.clone();
+                t[r] = text;
+                double[] n = numbers.clone();
+                n[r] = 0;
+                return new CellBlock(occupied, n, t);
+            }
+            String[] t = texts == null ? new String[numbers.length + 1] : insert(texts, r);
+            t[r] = text;
+            return new CellBlock(occupy(slot), insert(numbers, r), t);
+        }
+
+        // Merges rows[from, to) (sorted, all inside this block); a non-null
+        // newTexts[i] makes that cell a text cell
+        CellBlock withCells(int[] rows, double[] values, String[] newTexts, int from, int to) {
+            long[] o = occupied.clone();
+            boolean anyText = texts != null;
+            for (int i = from; i < to; i++) {
+                int slot = rows[i] & (SheetStore.BLOCK_SIZE - 1);
+                o[slot >>> 6] |= 1L << slot;
+                anyText |= newTexts != null && newTexts[i] != null;
+            }
+            int count = 0;
+            for (long word : o) count += Long.bitCount(word);
+            double[] n = new double[count];
+            String[] t = anyText ? new String[count] : null;
+            int oldIndex = 0;
+            int next = from;
+            int r = 0;
+            for (int word = 0; word < o.length; word++) {
+                long bits = o[word];
+                while (bits != 0) {
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    boolean existed = has(slot);
+                    if (next < to && (rows[next] & (SheetStore.BLOCK_SIZE - 1)) == slot) {
+                        if (newTexts != null && newTexts[next] != null) {
+                            t[r] = newTexts[next];
+                        } else {
+                            n[r] = values[next];
+                        }
+                        next++;
+                    } else {
+                        n[r] = numbers[oldIndex];
+                        if (texts != null) t[r] = texts[oldIndex];
+                    }
+                    if (existed) oldIndex++;
+                    r++;
+                }
+            }
+            return new CellBlock(o, n, t);
+        }
+
+        // Returns null once the block has no cells left
+        CellBlock without(int slot) {
+            if (!has(slot)) return this;
+            if (numbers.length == 1) return null;
+            int r = rank(slot);
+            long[] o = occupied.clone();
+            o[slot >>> 6] &= ~(1L << slot);
+            double[] n = new double[numbers.length - 1];
+            System.arraycopy(numbers, 0, n, 0, r);
+            System.arraycopy(numbers, r + 1, n, r, n.length - r);
+            String[] t = null;
+            if (texts != null) {
+                t = new String[n.length];
+                System.arraycopy(texts, 0, t, 0, r);
+                System.arraycopy(texts, r + 1, t, r, n.length - r);
+            }
+            return new CellBlock(o, n, t);
+        }
+
+        private long[] occupy(int slot) {
+            long[] o = occupied.clone();
+            o[slot >>> 6] |= 1L << slot;
+            return o;
+        }
+
+        private static double[] insert(double[] values, int at) {
+            double[] copy = new double[values.length + 1];
+            System.arraycopy(values, 0, copy, 0, at);
+            System.arraycopy(values, at, copy, at + 1, values.length - at);
+            return copy;
+        }
+
+        private static String[] insert(String[] values, int at) {
+            String[] copy = new String[values.length + 1];
+            System.arraycopy(values, 0, copy, 0, at);
+            System.arraycopy(values, at, copy, at + 1, values.length - at);
+            return copy;
+        }
+    }
+
+    static class RangeAggregate {
+        double sum;
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            sum += value;
+            count++;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        void merge(double otherSum, long otherCount, double otherMin, double otherMax) {
+            sum += otherSum;
+            count += otherCount;
+            if (otherMin < min) min = otherMin;
+            if (otherMax > max) max = otherMax;
+        }
+    }
+
+    static class FormulaException extends RuntimeException {
+        final String code;
+
+        FormulaException(String code) {
+            super(code, null, false, false);
+            this.code = code;
+        }
+    }
+
+    // Owns every formula on the sheet and the dependency graph between cells.
+    // Single-cell references are kept as precedent -> dependents edges; range
+    // references are indexed by column so a SUM(C1:C100000) costs one entry
+    // instead of 100k edges. An edit only re-evaluates the transitive
+    // dependents of the changed cell, in topological order (Kahn), and
+    // whatever is left over after the sort sits on a cycle.
+    //
+    // All edits run on a single "sheet-recalc" thread, which is the only
+    // writer of the store and the graph, so the EDT never waits on a
+    // recalculation. The dirty set is evaluated level by level: every cell of
+    // a level only depends on earlier levels, so a level is evaluated in
+    // parallel on a ForkJoinPool and then committed before the next one. The
+    // changed rows are handed to the EDT as one table event.
+    static class FormulaEngine {
+        private static final int PARALLEL_THRESHOLD = 256;
+
+        private final SheetModel model;
+        private final SheetStore store;
+        private final ConcurrentHashMap<Long, Formula> formulas = new ConcurrentHashMap<>();
+        private final HashMap<Long, HashSet<Long>> dependents = new HashMap<>();
+        private final HashMap<Integer, ArrayList<RangeRef>> rangeDependents = new HashMap<>();
+        // Rows of the formula cells showing an error, by column, so a range
+        // can find them without a scan; like the graph it is only changed
+        // between levels, never while one is being evaluated
+        private final HashMap<Integer, TreeSet<Integer>> errorRows = new HashMap<>();
+        private final ExecutorService recalcThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "sheet-recalc");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ForkJoinPool workers = new ForkJoinPool();
+
+        // Rows changed since the last EDT publish; guarded by this
+        private int publishFrom = Integer.MAX_VALUE;
+        private int publishTo = -1;
+        private boolean publishScheduled;
+
+        FormulaEngine(SheetModel model) {
+            this.model = model;
+            this.store = model.getStore();
+        }
+
+        static long key(int row, int col) {
+            return ((long) row << 32) | col;
+        }
+
+        static int row(long key) {
+            return (int) (key >>> 32);
+        }
+
+        static int col(long key) {
+            return (int) key;
+        }
+
+        String getSource(int row, int col) {
+            Formula formula = formulas.get(key(row, col));
+            return formula == null ? null : formula.source;
+        }
+
+        Future<?> submit(Runnable task) {
+            return recalcThread.submit(task);
+        }
+
+        // Queues an edit typed into a cell; a leading '=' makes it a formula
+        void submitEdit(int row, int col, String text) {
+            submit(() -> {
+                if (text.length() > 1 && text.charAt(0) == '=') {
+                    setFormula(row, col, text);
+                } else {
+                    SheetModel.writeLiteral(store, row, col, text);
+                    cellChanged(row, col);
+                }
+            });
+        }
+
+        // Installs (or replaces) the formula in a cell and recalculates it and
+        // everything downstream. Must run on the recalc thread.
+        void setFormula(int row, int col, String source) {
+            long key = key(row, col);
+            boolean valid = install(row, col, source, model.getRowCount(), model.getColumnCount());
+            markChanged(row, row);
+            recalculate(Collections.singletonList(key), valid ? Collections.singletonList(key) : Collections.emptyList());
+        }
+
+        // Called on the recalc thread after a literal was written to a cell
+        void cellChanged(int row, int col) {
+            long key = key(row, col);
+            unregister(key);
+            markChanged(row, row);
+            recalculate(Collections.singletonList(key), Collections.emptyList());
+        }
+
+        // Writes a bulk-loaded batch and recalculates once for all of it.
+        // Must run on the recalc thread.
+        void applyBatch(CellBatch batch) {
+            if (batch.isEmpty()) return;
+            model.ensureSize(batch.maxRow + 1, batch.maxCol + 1);
+            boolean hadFormulas = !formulas.isEmpty();
+            ArrayList<Long> origins = new ArrayList<>();
+            if (hadFormulas) {
+                for (int i = 0; i < batch.count; i++) {
+                    long key = key(batch.rows[i], batch.cols[i]);
+                    unregister(key);
+                    origins.add(key);
+                }
+            }
+            store.setCells(batch.cols, batch.rows, batch.values, batch.texts, batch.count);
+            ArrayList<Long> installed = new ArrayList<>();
+            for (int i = 0; i < batch.formulaSources.size(); i++) {
+                int row = batch.formulaRows.get(i);
+                int col = batch.formulaCols.get(i);
+                long key = key(row, col);
+                origins.add(key);
+                // A loaded formula may point at rows of a later batch, and the
+                // model only grows on the EDT, so it is checked against the
+                // sheet's limits rather than its current size
+                if (install(row, col, batch.formulaSources.get(i), Integer.MAX_VALUE, MAX_COLUMNS)) installed.add(key);
+            }
+            markChanged(batch.minRow, batch.maxRow);
+            recalculate(origins, installed);
+        }
+
+        // Parses and registers a formula without recalculating; returns
+        // false if it did not parse (the cell then shows the error)
+        private boolean install(int row, int col, String source, int maxRows, int maxCols) {
+            long key = key(row, col);
+            unregister(key);
+            Formula formula = new Formula(source);
+            try {
+                formula.root = new FormulaParser(source, maxRows, maxCols).parse();
+                formula.root.collect(formula);
+            } catch (FormulaException ex) {
+                formula.error = ex.code;
+            } catch (RuntimeException ex) {
+                // Registered with no references, so a parser bug cannot spill into the graph
+                formula.root = null;
+                formula.error = "#ERROR!";
+                formula.cells.clear();
+                formula.ranges.clear();
+            }
+            formulas.put(key, formula);
+            register(key, formula);
+            if (formula.root == null) {
+                markError(key, formula, formula.error);
+                store.setText(row, col, formula.error);
+            }
+            return formula.root != null;
+        }
+
+        boolean hasFormulas() {
+            return !formulas.isEmpty();
+        }
+
+        void dispose() {
+            recalcThread.shutdown();
+            workers.shutdown();
+        }
+
+        private void register(long key, Formula formula) {
+            for (long ref : formula.cells) {
+                dependents.computeIfAbsent(ref, k -> new HashSet<>()).add(key);
+            }
+            for (RangeRef range : formula.ranges) {
+                range.owner = key;
+                for (int c = range.col0; c <= range.col1; c++) {
+                    rangeDependents.computeIfAbsent(c, k -> new ArrayList<>()).add(range);
+                }
+            }
+        }
+
+        private void unregister(long key) {
+            Formula old = formulas.remove(key);
+            if (old == null) return;
+            clearError(key);
+            for (long ref : old.cells) {
+                HashSet<Long> set = dependents.get(ref);
+                if (set != null && set.remove(key) && set.isEmpty()) dependents.remove(ref);
+            }
+            for (RangeRef range : old.ranges) {
+                for (int c = range.col0; c <= range.col1; c++) {
+                    ArrayList<RangeRef> list = rangeDependents.get(c);
+                    if (list != null && list.remove(range) && list.isEmpty()) rangeDependents.remove(c);
+                }
+            }
+        }
+
+        private void forEachDependent(long key, LongConsumer action) {
+            HashSet<Long> direct = dependents.get(key);
+            if (direct != null) {
+                for (long d : direct) action.accept(d);
+            }
+            ArrayList<RangeRef> ranges = rangeDependents.get(col(key));
+            if (ranges != null) {
+                int row = row(key);
+                for (RangeRef range : ranges) {
+                    if (row >= range.row0 && row <= range.row1) action.accept(range.owner);
+                }
+            }
+        }
+
+        // origins are the cells that changed; formulaCells are the (new)
+        // formulas among them that need evaluating themselves
+        private void recalculate(Collection<Long> origins, Collection<Long> formulaCells) {
+            HashSet<Long> dirty = new HashSet<>(formulaCells);
+            ArrayDeque<Long> work = new ArrayDeque<>(origins);
+            while (!work.isEmpty()) {
+                forEachDependent(work.poll(), d -> {
+                    if (dirty.add(d)) work.add(d);
+                });
+            }
+            if (dirty.isEmpty()) {
+                publish();
+                return;
+            }
+
+            HashMap<Long, Integer> indegree = new HashMap<>();
+            for (long d : dirty) {
+                forEachDependent(d, x -> {
+                    if (dirty.contains(x)) indegree.merge(x, 1, Integer::sum);
+                });
+            }
+            ArrayList<Long> level = new ArrayList<>();
+            for (long d : dirty) {
+                if (!indegree.containsKey(d)) level.add(d);
+            }
+            int evaluated = 0;
+            while (!level.isEmpty()) {
+                long[] cells = new long[level.size()];
+                for (int i = 0; i < cells.length; i++) cells[i] = level.get(i);
+                evaluateLevel(cells);
+                evaluated += cells.length;
+
+                ArrayList<Long> next = new ArrayList<>();
+                for (long k : cells) {
+                    forEachDependent(k, x -> {
+                        if (dirty.contains(x) && indegree.merge(x, -1, Integer::sum) == 0) next.add(x);
+                    });
+                }
+                level = next;
+            }
+            if (evaluated < dirty.size()) {
+                for (long k : dirty) {
+                    Integer pending = indegree.get(k);
+                    if (pending != null && pending > 0) fail(k, "#CYCLE!");
+                }
+            }
+            publish();
+        }
+
+        // Cells of one level never read each other, so they can be evaluated
+        // concurrently against the current store; results are written back
+        // afterwards on this thread, keeping it the only writer.
+        private void evaluateLevel(long[] cells) {
+            double[] values = new double[cells.length];
+            String[] errors = new String[cells.length];
+            if (cells.length < PARALLEL_THRESHOLD) {
+                evaluateRange(cells, values, errors, 0, cells.length);
+            } else {
+                workers.invoke(new LevelTask(this, cells, values, errors, 0, cells.length));
+            }
+            int[] cols = new int[cells.length];
+            int[] rows = new int[cells.length];
+            double[] results = new double[cells.length];
+            int n = 0;
+            int minRow = Integer.MAX_VALUE;
+            int maxRow = -1;
+            for (int i = 0; i < cells.length; i++) {
+                Formula formula = formulas.get(cells[i]);
+                if (formula == null || formula.root == null) continue;
+                if (errors[i] != null) {
+                    fail(cells[i], errors[i]);
+                    continue;
+                }
+                if (formula.error != null) {
+                    formula.error = null;
+                    clearError(cells[i]);
+                }
+                cols[n] = col(cells[i]);
+                rows[n] = row(cells[i]);
+                results[n++] = values[i];
+                minRow = Math.min(minRow, row(cells[i]));
+                maxRow = Math.max(maxRow, row(cells[i]));
+            }
+            if (n > 0) {
+                store.setNumbers(cols, rows, results, n);
+                markChanged(minRow, maxRow);
+            }
+        }
+
+        void evaluateRange(long[] cells, double[] values, String[] errors, int from, int to) {
+            for (int i = from; i < to; i++) {
+                Formula formula = formulas.get(cells[i]);
+                if (formula == null || formula.root == null) continue;
+                try {
+                    double value = formula.root.eval(this);
+                    if (Double.isNaN(value) || Double.isInfinite(value)) throw new FormulaException("#NUM!");
+                    values[i] = value;
+                } catch (FormulaException ex) {
+                    errors[i] = ex.code;
+                } catch (RuntimeException ex) {
+                    // A bug in one formula must not take down the whole level
+                    errors[i] = "#VALUE!";
+                }
+            }
+        }
+
+        private void fail(long key, String code) {
+            Formula formula = formulas.get(key);
+            if (formula != null) markError(key, formula, code);
+            store.setText(row(key), col(key), code);
+            markChanged(row(key), row(key));
+        }
+
+        private void markError(long key, Formula formula, String code) {
+            formula.error = code;
+            errorRows.computeIfAbsent(col(key), k -> new TreeSet<>()).add(row(key));
+        }
+
+        private void clearError(long key) {
+            TreeSet<Integer> rows = errorRows.get(col(key));
+            if (rows != null && rows.remove(row(key)) && rows.isEmpty()) errorRows.remove(col(key));
+        }
+
+        double valueOf(int row, int col) {
+            Formula formula = formulas.get(key(row, col));
+            if (formula != null && formula.error != null) throw new FormulaException(formula.error);
+            Object value = store.get(row, col);
+            if (value == null) return 0;
+            if (value instanceof Double) return (Double) value;
+            throw new FormulaException("#VALUE!");
+        }
+
+        // Fails with the first error cell in the range, as a single reference
+        // to that cell would, rather than skipping it like text
+        void aggregate(RangeRef range, RangeAggregate agg) {
+            for (int c = range.col0; c <= range.col1; c++) {
+                TreeSet<Integer> rows = errorRows.get(c);
+                Integer row = rows == null ? null : rows.ceiling(range.row0);
+                if (row != null && row <= range.row1) throw new FormulaException(formulas.get(key(row, c)).error);
+                store.aggregate(c, range.row0, range.row1, agg);
+            }
+        }
+
+        synchronized void markChanged(int fromRow, int toRow) {
+            publishFrom = Math.min(publishFrom, fromRow);
+            publishTo = Math.max(publishTo, toRow);
+        }
+
+        // Hands all rows changed since the last publish to the EDT as a single
+        // event; changes made before that event runs are folded into it
+        private void publish() {
+            synchronized (this) {
+                if (publishTo < 0 || publishScheduled) return;
+                publishScheduled = true;
+            }
+            SwingUtilities.invokeLater(() -> {
+                int from;
+                int to;
+                synchronized (this) {
+                    from = publishFrom;
+                    to = publishTo;
+                    publishFrom = Integer.MAX_VALUE;
+                    publishTo = -1;
+                    publishScheduled = false;
+                }
+                if (to >= 0) model.fireTableRowsUpdated(from, to);
+            });
+        }
+    }
+
+    static class LevelTask extends RecursiveAction {
+        private final FormulaEngine engine;
+        private final long[] cells;
+        private final double[] values;
+        private final String[] errors;
+        private final int from;
+        private final int to;
+
+        LevelTask(FormulaEngine engine, long[] cells, double[] values, String[] errors, int from, int to) {
+            this.engine = engine;
+            this.cells = cells;
+            this.values = values;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FormulaEngine.PARALLEL_THRESHOLD) {
+                engine.evaluateRange(cells, values, errors, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LevelTask(engine, cells, values, errors, from, mid),
+                    new LevelTask(engine, cells, values, errors, mid, to));
+        }
+    }
+    static class Formula {
+        final String source;
+        Node root;
+        String error;
+        final ArrayList<Long> cells = new ArrayList<>();
+        final ArrayList<RangeRef> ranges = new ArrayList<>();
+
+        Formula(String source) {
+            this.source = source;
+        }
+    }
+
+    // Compiled formula tree
+    abstract static class Node {
+        abstract double eval(FormulaEngine engine);
+
+        void collect(Formula formula) {
+        }
+    }
+
+    static class NumberNode extends Node {
+        private final double value;
+
+        NumberNode(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(FormulaEngine engine) {
+            return value;
+        }
+    }
+
+    static class CellNode extends Node {
+        private final int row;
+        private final int col;
+
+        CellNode(int row, int col) {
+            this.row = row;
+            this.col = col;
+        }
+
+        @Override
+        double eval(FormulaEngine engine) {
+            return engine.valueOf(row, col);
+        }
+
+        @Override
+        void collect(Formula formula) {
+            formula.cells.add(FormulaEngine.key(row, col));
+        }
+    }
+
+    static class RangeRef extends Node {
+        final int row0, col0, row1, col1;
+        long owner;
+
+        RangeRef(int row0, int col0, int row1, int col1) {
+            this.row0 = Math.min(row0, row1);
+            this.col0 = Math.min(col0, col1);
+            this.row1 = Math.max(row0, row1);
+            this.col1 = Math.max(col0, col1);
+        }
+
+        // A bare range outside a function call has no single value
+        @Override
+        double eval(FormulaEngine engine) {
+            throw new FormulaException("#VALUE!");
+        }
+
+        @Override
+        void collect(Formula formula) {
+            formula.ranges.add(this);
+        }
+    }
+
+    static class UnaryNode extends Node {
+        private final Node operand;
+
+        UnaryNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(FormulaEngine engine) {
+            return -operand.eval(engine);
+        }
+
+        @Override
+        void collect(Formula formula) {
+            operand.collect(formula);
+        }
+    }
+
+    static class BinaryNode extends Node {
+        private final char op;
+        private final Node left;
+        private final Node right;
+
+        BinaryNode(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(FormulaEngine engine) {
+            double a = left.eval(engine);
+            double b = right.eval(engine);
+            switch (op) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/':
+                    if (b == 0) throw new FormulaException("#DIV/0!");
+                    return a / b;
+                default: return Math.pow(a, b);
+            }
+        }
+
+        @Override
+        void collect(Formula formula) {
+            left.collect(formula);
+            right.collect(formula);
+        }
+    }
+
+    static class CallNode extends Node {
+        private final String function;
+        private final Node[] args;
+
+        CallNode(String function, Node[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        double eval(FormulaEngine engine) {
+            RangeAggregate agg = new RangeAggregate();
+            for (Node arg : args) {
+                if (arg instanceof RangeRef) {
+                    engine.aggregate((RangeRef) arg, agg);
+                } else {
+                    agg.add(arg.eval(engine));
+                }
+            }
+            switch (function) {
+                case "SUM": return agg.sum;
+                case "COUNT": return agg.count;
+                case "MIN": return agg.count == 0 ? 0 : agg.min;
+                case "MAX": return agg.count == 0 ? 0 : agg.max;
+                default:
+                    if (agg.count == 0) throw new FormulaException("#DIV/0!");
+                    return agg.sum / agg.count;
+            }
+        }
+
+        @Override
+        void collect(Formula formula) {
+            for (Node arg : args) arg.collect(formula);
+        }
+    }
+
+    // Recursive-descent parser for formulas such as =A1+B2*SUM(C1:C100).
+    //   expr  := term (('+' | '-') term)*
+    //   term  := power (('*' | '/') power)*
+    //   power := unary ('^' unary)*
+    //   unary := ('-' | '+') unary | primary
+    //   primary := number | cell | name '(' args ')' | '(' expr ')'
+    static class FormulaParser {
+        private static final Set<String> FUNCTIONS =
+                new HashSet<>(Arrays.asList("SUM", "AVERAGE", "AVG", "MIN", "MAX", "COUNT"));
+
+        private final String text;
+        private final int maxRows;
+        private final int maxCols;
+        private int pos;
+
+        FormulaParser(String source, int maxRows, int maxCols) {
+            this.text = source.substring(1).toUpperCase(Locale.ROOT);
+            this.maxRows = maxRows;
+            this.maxCols = maxCols;
+        }
+
+        Node parse() {
+            Node node = expr();
+            skipSpaces();
+            if (pos != text.length()) throw new FormulaException("#ERROR!");
+            return node;
+        }
+
+        private Node expr() {
+            Node node = term();
+            for (char c = peek(); c == '+' || c == '-'; c = peek()) {
+                pos++;
+                node = new BinaryNode(c, node, term());
+            }
+            return node;
+        }
+
+        private Node term() {
+            Node node = power();
+            for (char c = peek(); c == '*' || c == '/'; c = peek()) {
+                pos++;
+                node = new BinaryNode(c, node, power());
+            }
+            return node;
+        }
+
+        private Node power() {
+            Node node = unary();
+            while (peek() == '^') {
+                pos++;
+                node = new BinaryNode('^', node, unary());
+            }
+            return node;
+        }
+
+        private Node unary() {
+            char c = peek();
+            if (c == '-') {
+                pos++;
+                return new UnaryNode(unary());
+            }
+            if (c == '+') {
+                pos++;
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            char c = peek();
+            if (c == '(') {
+                pos++;
+                Node node = expr();
+                expect(')');
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') return number();
+            if (Character.isLetter(c) || c == '$') {
+                int start = pos;
+                String name = letters();
+                if (peek() == '(') {
+                    if (!FUNCTIONS.contains(name)) throw new FormulaException("#NAME?");
+                    return call(name.equals("AVG") ? "AVERAGE" : name);
+                }
+                pos = start;
+                return reference();
+            }
+            throw new FormulaException("#ERROR!");
+        }
+
+        private Node call(String function) {
+            expect('(');
+            ArrayList<Node> args = new ArrayList<>();
+            if (peek() != ')') {
+                do {
+                    args.add(argument());
+                } while (accept(','));
+            }
+            expect(')');
+            return new CallNode(function, args.toArray(new Node[0]));
+        }
+
+        // Inside a call a reference may be the start of a range
+        private Node argument() {
+            int start = pos;
+            char c = peek();
+            if (Character.isLetter(c) || c == '$') {
+                letters();
+                boolean isFunction = peek() == '(';
+                pos = start;
+                if (!isFunction) {
+                    CellNode first = reference();
+                    if (accept(':')) {
+                        CellNode last = reference();
+                        return new RangeRef(first.row, first.col, last.row, last.col);
+                    }
+                    pos = start;
+                }
+            }
+            return expr();
+        }
+
+        private CellNode reference() {
+            skipSpaces();
+            accept('$');
+            int col = 0;
+            int letters = 0;
+            while (pos < text.length() && text.charAt(pos) >= 'A' && text.charAt(pos) <= 'Z') {
+                col = Math.min(col * 26 + (text.charAt(pos++) - 'A' + 1), (Integer.MAX_VALUE - 26) / 26);
+                letters++;
+            }
+            accept('$');
+            int row = 0;
+            int digits = 0;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                row = Math.min(row * 10 + (text.charAt(pos++) - '0'), Integer.MAX_VALUE / 10);
+                digits++;
+            }
+            if (letters == 0 || digits == 0) throw new FormulaException(letters > 0 ? "#NAME?" : "#ERROR!");
+            if (col < 1 || col > maxCols || row < 1 || row > maxRows) throw new FormulaException("#REF!");
+            return new CellNode(row - 1, col - 1);
+        }
+
+        private Node number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) pos++;
+            if (pos < text.length() && text.charAt(pos) == 'E') {
+                int mark = pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) pos++;
+                if (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+                } else {
+                    pos = mark;
+                }
+            }
+            try {
+                return new NumberNode(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException ex) {
+                throw new FormulaException("#ERROR!");
+            }
+        }
+
+        private String letters() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length() && (Character.isLetter(text.charAt(pos)) || text.charAt(pos) == '$')) pos++;
+            return text.substring(start, pos).replace("$", "");
+        }
+
+        private char peek() {
+            skipSpaces();
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+
+        private boolean accept(char c) {
+            if (peek() != c) return false;
+            pos++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) throw new FormulaException("#ERROR!");
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && text.charAt(pos) == ' ') pos++;
+        }
+    }
+
+    // Cells collected by a bulk load before they are handed to the recalc
+    // thread in one go. Formulas are kept apart since they need parsing.
+    static class CellBatch {
+        int count;
+        final int[] rows;
+        final int[] cols;
+        final double[] values;
+        final String[] texts;
+        final ArrayList<Integer> formulaRows = new ArrayList<>();
+        final ArrayList<Integer> formulaCols = new ArrayList<>();
+        final ArrayList<String> formulaSources = new ArrayList<>();
+        int minRow = Integer.MAX_VALUE;
+        int maxRow = -1;
+        int maxCol = -1;
+
+        CellBatch(int capacity) {
+            rows = new int[capacity];
+            cols = new int[capacity];
+            values = new double[capacity];
+            texts = new String[capacity];
+        }
+
+        void addNumber(int row, int col, double value) {
+            track(row, col);
+            rows[count] = row;
+            cols[count] = col;
+            values[count++] = value;
+        }
+
+        void addText(int row, int col, String text) {
+            track(row, col);
+            rows[count] = row;
+            cols[count] = col;
+            texts[count++] = text;
+        }
+
+        void addFormula(int row, int col, String source) {
+            track(row, col);
+            formulaRows.add(row);
+            formulaCols.add(col);
+            formulaSources.add(source);
+        }
+
+        // Whether cells more cells (say one whole row) are sure to fit
+        boolean hasRoomFor(int cells) {
+            return count + cells <= rows.length && formulaSources.size() + cells <= rows.length;
+        }
+
+        boolean isEmpty() {
+            return count == 0 && formulaSources.isEmpty();
+        }
+
+        private void track(int row, int col) {
+            minRow = Math.min(minRow, row);
+            maxRow = Math.max(maxRow, row);
+            maxCol = Math.max(maxCol, col);
+        }
+    }
+
+    // Streaming RFC 4180 tokenizer. The file is mapped one window at a time
+    // and scanned byte by byte; the tokenizer state survives window
+    // boundaries, so a quoted field may span windows and the file is never
+    // held in the heap. Field bytes are collected in one reusable buffer.
+    static class CsvReader {
+        private static final long WINDOW = 64L << 20;
+
+        interface Sink {
+            // bytes[0, length) is only valid for the duration of the call
+            void field(byte[] bytes, int length) throws IOException;
+
+            void endRow() throws IOException;
+        }
+
+        private final Path path;
+        private byte[] field = new byte[256];
+        private int length;
+
+        CsvReader(Path path) {
+            this.path = path;
+        }
+
+        void read(Sink sink, LongConsumer progress) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                boolean quoted = false;
+                boolean quoteSeen = false;
+                boolean inField = false;
+                boolean afterCr = false;
+                boolean rowOpen = false;
+                for (long pos = 0; pos < size; pos += WINDOW) {
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+                    int i = 0;
+                    if (pos == 0 && window.limit() >= 3 && (window.get(0) & 0xFF) == 0xEF
+                            && (window.get(1) & 0xFF) == 0xBB && (window.get(2) & 0xFF) == 0xBF) {
+                        i = 3;
+                    }
+                    for (int end = window.limit(); i < end; i++) {
+                        byte b = window.get(i);
+                        if (afterCr) {
+                            afterCr = false;
+                            if (b == '\n') continue;
+                        }
+                        if (quoted) {
+                            if (b == '"') {
+                                quoted = false;
+                                quoteSeen = true;
+                            } else {
+                                append(b);
+                            }
+                            continue;
+                        }
+                        if (b == '"' && (quoteSeen || !inField)) {
+                            // "" inside a quoted field is an escaped quote
+                            if (quoteSeen) append(b);
+                            quoted = true;
+                            quoteSeen = false;
+                            inField = true;
+                            rowOpen = true;
+                        } else if (b == ',') {
+                            sink.field(field, length);
+                            length = 0;
+                            quoteSeen = false;
+                            inField = false;
+                            rowOpen = true;
+                        } else if (b == '\n' || b == '\r') {
+                            afterCr = b == '\r';
+                            sink.field(field, length);
+                            sink.endRow();
+                            length = 0;
+                            quoteSeen = false;
+                            inField = false;
+                            rowOpen = false;
+                        } else {
+                            // A stray quote inside an unquoted field is kept as is
+                            append(b);
+                            quoteSeen = false;
+                            inField = true;
+                            rowOpen = true;
+                        }
+                    }
+                    progress.accept(Math.min(size, pos + WINDOW));
+                }
+                if (rowOpen || length > 0) {
+                    sink.field(field, length);
+                    sink.endRow();
+                }
+            }
+        }
+
+        private void append(byte b) {
+            if (length == field.length) field = Arrays.copyOf(field, length * 2);
+            field[length++] = b;
+        }
+
+        // Parses a plain decimal straight from the bytes; returns NaN when
+        // the field is not a number so the caller keeps it as text. Accepts
+        // the same shapes as SheetModel.looksNumeric. Values whose mantissa
+        // fits in 53 bits with a small power of ten are exact this way; the
+        // rest fall back to Double.parseDouble.
+        static double parseNumber(byte[] b, int length) {
+            int i = 0;
+            boolean negative = false;
+            if (b[0] == '-' || b[0] == '+') {
+                negative = b[0] == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            boolean digits = false;
+            boolean dot = false;
+            for (; i < length; i++) {
+                byte c = b[i];
+                if (c >= '0' && c <= '9') {
+                    digits = true;
+                    if (mantissa < 100_000_000_000_000_000L) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if (dot) exponent--;
+                    } else if (!dot) {
+                        exponent++;
+                    }
+                } else if (c == '.' && !dot) {
+                    dot = true;
+                } else if ((c == 'e' || c == 'E') && digits) {
+                    return parseSlow(b, length);
+                } else {
+                    return Double.NaN;
+                }
+            }
+            if (!digits) return Double.NaN;
+            if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+                double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+                return negative ? -value : value;
+            }
+            return parseSlow(b, length);
+        }
+
+        private static final double[] POWERS_OF_TEN = new double[23];
+
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+
+        private static double parseSlow(byte[] b, int length) {
+            String text = new String(b, 0, length, StandardCharsets.ISO_8859_1);
+            char last = text.charAt(length - 1);
+            if (!Character.isDigit(last) && last != '.') return Double.NaN;
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+    }
+
+    // Writes RFC 4180 CSV through a reusable direct buffer. ASCII is copied
+    // straight in; anything else goes through one reused encoder.
+    static class CsvWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+        CsvWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void field(String text) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < text.length() && !quote; i++) {
+                char c = text.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                put(text);
+                return;
+            }
+            putByte('"');
+            put(text.replace("\"", "\"\""));
+            putByte('"');
+        }
+
+        void separator() throws IOException {
+            putByte(',');
+        }
+
+        void endRow() throws IOException {
+            putByte('\r');
+            putByte('\n');
+        }
+
+        private void put(String text) throws IOException {
+            int i = 0;
+            for (; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) break;
+                putByte(c);
+            }
+            if (i == text.length()) return;
+            CharBuffer rest = CharBuffer.wrap(text, i, text.length());
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(rest, buffer, true);
+                if (result.isOverflow()) {
+                    drain();
+                } else {
+                    break;
+                }
+            }
+            while (encoder.flush(buffer).isOverflow()) drain();
+        }
+
+        private void putByte(int b) throws IOException {
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) b);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Parses a CSV on a background thread and feeds the sheet in batches.
+    // The first batch is small so the top of the sheet shows up right away.
+    // Batches are only cut between rows, so each has room for BATCH_CELLS
+    // plus one more row of up to MAX_COLUMNS cells.
+    static class CsvImportWorker extends SwingWorker<Integer, Void> implements CsvReader.Sink {
+        private static final int FIRST_BATCH_ROWS = 100;
+        private static final int BATCH_CELLS = 1 << 16;
+
+        private final SheetModel model;
+        private final Path path;
+        private CellBatch batch = new CellBatch(BATCH_CELLS + MAX_COLUMNS);
+        private Future<?> inFlight;
+        private int row;
+        private int col;
+
+        CsvImportWorker(SheetModel model, Path path) {
+            this.model = model;
+            this.path = path;
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            long size = Math.max(1, Files.size(path));
+            new CsvReader(path).read(this, pos -> setProgress((int) (pos * 100 / size)));
+            flush();
+            if (inFlight != null) inFlight.get();
+            return row;
+        }
+
+        @Override
+        public void field(byte[] bytes, int length) {
+            if (length > 0 && col < MAX_COLUMNS) {
+                double number = CsvReader.parseNumber(bytes, length);
+                if (!Double.isNaN(number)) {
+                    batch.addNumber(row, col, number);
+                } else {
+                    String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    if (text.length() > 1 && text.charAt(0) == '=') {
+                        batch.addFormula(row, col, text);
+                    } else {
+                        batch.addText(row, col, text);
+                    }
+                }
+            }
+            col++;
+        }
+
+        @Override
+        public void endRow() throws IOException {
+            row++;
+            col = 0;
+            if (!batch.hasRoomFor(MAX_COLUMNS) || (row == FIRST_BATCH_ROWS && inFlight == null)) flush();
+        }
+
+        // Keeps at most one batch queued behind the one being applied so a
+        // fast parser cannot run ahead of the store by more than that
+        private void flush() throws IOException {
+            if (batch.isEmpty()) return;
+            try {
+                if (inFlight != null) inFlight.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+            CellBatch full = batch;
+            FormulaEngine engine = model.getFormulas();
+            inFlight = engine.submit(() -> engine.applyBatch(full));
+            batch = new CellBatch(BATCH_CELLS + MAX_COLUMNS);
+        }
+    }
+
+    // Writes the sheet out one 1024-row block band at a time, touching only
+    // the columns that have a block in that band
+    static class CsvExportWorker extends SwingWorker<Integer, Void> {
+        private final SheetModel model;
+        private final Path path;
+
+        CsvExportWorker(SheetModel model, Path path) {
+            this.model = model;
+            this.path = path;
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            SheetStore store = model.getStore();
+            FormulaEngine engine = model.getFormulas();
+            boolean formulas = engine.hasFormulas();
+            int lastRow = store.lastRow();
+            int lastCol = store.lastColumn();
+            CellBlock[] band = new CellBlock[lastCol + 1];
+            int[] bandCols = new int[lastCol + 1];
+            try (CsvWriter writer = new CsvWriter(path)) {
+                for (int base = 0; base <= lastRow; base += SheetStore.BLOCK_SIZE) {
+                    if (isCancelled()) break;
+                    int n = 0;
+                    for (int c = 0; c <= lastCol; c++) {
+                        CellBlock block = store.blockAt(c, base >>> SheetStore.BLOCK_SHIFT);
+                        if (block != null) {
+                            band[n] = block;
+                            bandCols[n++] = c;
+                        }
+                    }
+                    int end = Math.min(lastRow, base + SheetStore.BLOCK_SIZE - 1);
+                    for (int r = base; r <= end; r++) {
+                        int position = 0;
+                        for (int i = 0; i < n; i++) {
+                            Object value = band[i].get(r - base);
+                            if (value == null) continue;
+                            for (; position < bandCols[i]; position++) writer.separator();
+                            String source = formulas ? engine.getSource(r, bandCols[i]) : null;
+                            if (source != null) {
+                                writer.field(source);
+                            } else if (value instanceof Double) {
+                                writer.field(SheetModel.formatNumber((Double) value));
+                            } else {
+                                writer.field((String) value);
+                            }
+                        }
+                        writer.endRow();
+                    }
+                    setProgress((int) ((long) end * 100 / Math.max(1, lastRow)));
+                }
+            }
+            return lastRow + 1;
+        }
+    }
+
+    // Cell formatting. Each distinct style is interned once in a palette and
+    // cells refer to it by a small int id, with the Font built once per id.
+    // Per column, ids are stored as sorted runs (starts[i] begins a run of
+    // ids[i] that lasts until starts[i + 1]), so styling a whole column or a
+    // 100k-row selection is a handful of run splits, not a per-cell loop.
+    // Only touched on the EDT.
+    static class CellStyles {
+        private static final Font BASE_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+
+        private final ArrayList<Integer> paletteStyles = new ArrayList<>();
+        private final ArrayList<Font> paletteFonts = new ArrayList<>();
+        private final HashMap<Integer, Integer> paletteIds = new HashMap<>();
+        private StyleRuns[] columns = new StyleRuns[0];
+
+        CellStyles() {
+            intern(Font.PLAIN);
+        }
+
+        int styleAt(int row, int col) {
+            return col < columns.length && columns[col] != null ? columns[col].idAt(row) : 0;
+        }
+
+        Font font(int id) {
+            return paletteFonts.get(id);
+        }
+
+        int fontStyle(int row, int col) {
+            return paletteStyles.get(styleAt(row, col));
+        }
+
+        void applyFontStyle(int col, int fromRow, int toRow, int style, boolean add) {
+            if (col >= columns.length) columns = Arrays.copyOf(columns, col + 1);
+            if (columns[col] == null) columns[col] = new StyleRuns();
+            columns[col].apply(fromRow, toRow, id -> {
+                int bits = paletteStyles.get(id);
+                return intern(add ? bits | style : bits & ~style);
+            });
+        }
+
+        private int intern(int fontStyle) {
+            Integer id = paletteIds.get(fontStyle);
+            if (id != null) return id;
+            paletteStyles.add(fontStyle);
+            paletteFonts.add(BASE_FONT.deriveFont(fontStyle));
+            paletteIds.put(fontStyle, paletteStyles.size() - 1);
+            return paletteStyles.size() - 1;
+        }
+    }
+
+    static class StyleRuns {
+        // Always starts with a run at row 0
+        private int[] starts = {0};
+        private int[] ids = {0};
+        private int size = 1;
+
+        int idAt(int row) {
+            return ids[runAt(row)];
+        }
+
+        private int runAt(int row) {
+            int lo = 0;
+            int hi = size - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= row) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        // Maps the id of every run intersecting [from, to] through f, splitting
+        // the runs at the range edges and merging equal neighbours afterwards
+        void apply(int from, int to, IntUnaryOperator f) {
+            split(from);
+            if (to < Integer.MAX_VALUE) split(to + 1);
+            for (int i = runAt(from); i < size && starts[i] <= to; i++) {
+                ids[i] = f.applyAsInt(ids[i]);
+            }
+            int n = 1;
+            for (int i = 1; i < size; i++) {
+                if (ids[i] == ids[n - 1]) continue;
+                starts[n] = starts[i];
+                ids[n++] = ids[i];
+            }
+            size = n;
+        }
+
+        private void split(int row) {
+            int i = runAt(row);
+            if (starts[i] == row) return;
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(starts, i + 1, starts, i + 2, size - i - 1);
+            System.arraycopy(ids, i + 1, ids, i + 2, size - i - 1);
+            starts[i + 1] = row;
+            ids[i + 1] = ids[i];
+            size++;
+        }
+    }
+
+    // The single renderer for every cell: fonts come from the style palette
+    // and colours are shared constants, so painting allocates nothing
+    static class SheetCellRenderer extends DefaultTableCellRenderer {
+        private static final Color EVEN_ROW = new Color(250, 250, 250);
+        private static final Color ODD_ROW = Color.WHITE;
+        private static final Color SELECTED = new Color(184, 207, 229);
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int col) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, col);
+            CellStyles styles = ((SheetModel) table.getModel()).getStyles();
+            int modelRow = table.convertRowIndexToModel(row);
+            int modelCol = table.convertColumnIndexToModel(col);
+            setFont(styles.font(styles.styleAt(modelRow, modelCol)));
+            setForeground(Color.BLACK);
+            setBackground(isSelected ? SELECTED : row % 2 == 0 ? EVEN_ROW : ODD_ROW);
+            return this;
+        }
+
+        @Override
+        protected void setValue(Object value) {
+            if (value instanceof Double) {
+                setHorizontalAlignment(SwingConstants.RIGHT);
+                setText(SheetModel.formatNumber((Double) value));
+            } else {
+                setHorizontalAlignment(SwingConstants.LEFT);
+                setText(value == null ? "" : value.toString());
+            }
+        }
+    }
+
+    static class SheetCellEditor extends DefaultCellEditor {
+        SheetCellEditor() {
+            super(new JTextField());
+        }
+
+        @Override
+        public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int col) {
+            SheetModel model = (SheetModel) table.getModel();
+            int modelRow = table.convertRowIndexToModel(row);
+            int modelCol = table.convertColumnIndexToModel(col);
+            return super.getTableCellEditorComponent(table, model.getEditText(modelRow, modelCol), isSelected, row, col);
+        }
+    }
 }
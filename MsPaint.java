@@ -1,62 +1,2091 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 public class DrawingApp extends JFrame {
-    private BufferedImage canvas;
-    private Graphics2D drawTool;
-    private int lastX, lastY;
-    private boolean canDraw = false;
+    private TiledCanvas canvas;
+    private TileHistory history;
+    private StrokeRenderer renderer;
+    private DrawingPanel panel;
+    private JFileChooser chooser;
+    private FileNameExtensionFilter pngFilter;
+    private SwingWorker<TiledCanvas, Void> loader;
+    private SwingWorker<Void, Void> saver;
+    private Color color = Color.BLACK;
+    private BasicStroke stroke = new BasicStroke(3);
+    private boolean fillTool;
 
     public DrawingApp() {
+        this(800, 600);
+    }
+
+    public DrawingApp(int width, int height) {
         setTitle("Drawing Board");
         setSize(800, 600);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
 
-        canvas = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
-        drawTool = canvas.createGraphics();
-        drawTool.setColor(Color.BLACK);
-        drawTool.setStroke(new BasicStroke(3));
+        canvas = new TiledCanvas(width, height, defaultConfiguration());
+        history = new TileHistory(canvas, TileHistory.DEFAULT_BUDGET);
+        canvas.setChangeListener(history);
 
-        DrawingPanel panel = new DrawingPanel();
-        add(panel);
+        panel = new DrawingPanel();
+        add(new JScrollPane(panel));
+        renderer = new StrokeRenderer(canvas, history, panel);
+        setupMenu();
 
-        addMouseListener(new MouseAdapter() {
+        chooser = new JFileChooser();
+        pngFilter = new FileNameExtensionFilter("PNG Image (*.png)", "png");
+        chooser.addChoosableFileFilter(new FileNameExtensionFilter("Drawing Project (*.dbp)", "dbp"));
+        chooser.addChoosableFileFilter(pngFilter);
+        chooser.setFileFilter(new FileNameExtensionFilter("Drawings (*.dbp, *.png)", "dbp", "png"));
+
+        // The EDT only queues input; drawing happens on the renderer's
+        // thread. Every stroke, press to release, is one undoable edit.
+        panel.addMouseListener(new MouseAdapter() {
             public void mousePressed(MouseEvent e) {
-                lastX = e.getX();
-                lastY = e.getY();
-                canDraw = true;
+                int x = e.getX();
+                int y = e.getY();
+                Color c = color;
+                if (fillTool) {
+                    renderer.apply(target -> ImageFilters.fill(target, x, y, c));
+                } else {
+                    renderer.begin(x, y, c, stroke);
+                }
             }
 
             public void mouseReleased(MouseEvent e) {
-                canDraw = false;
+                renderer.end();
             }
         });
 
-        addMouseMotionListener(new MouseMotionAdapter() {
+        panel.addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseDragged(MouseEvent e) {
-                if (canDraw) {
-                    int currentX = e.getX();
-                    int currentY = e.getY();
-                    drawTool.drawLine(lastX, lastY, currentX, currentY);
-                    lastX = currentX;
-                    lastY = currentY;
-                    panel.repaint();
+                renderer.lineTo(e.getX(), e.getY());
+            }
+        });
+    }
+
+    private void setupMenu() {
+        JMenuBar bar = new JMenuBar();
+        JMenu file = new JMenu("File");
+        JMenuItem open = new JMenuItem("Open");
+        JMenuItem save = new JMenuItem("Save");
+        JMenuItem close = new JMenuItem("Exit");
+        JMenu edit = new JMenu("Edit");
+        JMenuItem undo = new JMenuItem("Undo");
+        JMenuItem redo = new JMenuItem("Redo");
+        JMenu tools = new JMenu("Tools");
+        JRadioButtonMenuItem pencil = new JRadioButtonMenuItem("Pencil", true);
+        JRadioButtonMenuItem fill = new JRadioButtonMenuItem("Fill");
+        ButtonGroup toolGroup = new ButtonGroup();
+        JMenu image = new JMenu("Image");
+        JMenuItem blur = new JMenuItem("Blur");
+        JMenuItem sharpen = new JMenuItem("Sharpen");
+        JMenuItem invert = new JMenuItem("Invert Colors");
+        JMenuItem grayscale = new JMenuItem("Grayscale");
+        JMenuItem clear = new JMenuItem("Clear");
+        JMenu view = new JMenu("View");
+        JMenuItem stats = new JMenuItem("Stroke Statistics");
+
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+
+        open.addActionListener(e -> openFile());
+        save.addActionListener(e -> saveFile());
+        close.addActionListener(e -> System.exit(0));
+        undo.addActionListener(e -> renderer.undo());
+        redo.addActionListener(e -> renderer.redo());
+        pencil.addActionListener(e -> fillTool = false);
+        fill.addActionListener(e -> fillTool = true);
+        blur.addActionListener(e -> renderer.apply(c -> ImageFilters.blur(c, ImageFilters.BLUR_RADIUS)));
+        sharpen.addActionListener(e -> renderer.apply(ImageFilters::sharpen));
+        invert.addActionListener(e -> renderer.apply(ImageFilters::invert));
+        grayscale.addActionListener(e -> renderer.apply(ImageFilters::grayscale));
+        clear.addActionListener(e -> renderer.apply(ImageFilters::clear));
+        stats.addActionListener(e -> showStatistics());
+
+        file.add(open);
+        file.add(save);
+        file.addSeparator();
+        file.add(close);
+        edit.add(undo);
+        edit.add(redo);
+        toolGroup.add(pencil);
+        toolGroup.add(fill);
+        tools.add(pencil);
+        tools.add(fill);
+        image.add(blur);
+        image.add(sharpen);
+        image.add(invert);
+        image.add(grayscale);
+        image.addSeparator();
+        image.add(clear);
+        view.add(stats);
+        bar.add(file);
+        bar.add(edit);
+        bar.add(tools);
+        bar.add(image);
+        bar.add(view);
+        setJMenuBar(bar);
+    }
+
+    // Projects are mapped rather than read, so even a huge one opens at
+    // once; other images are decoded on a worker
+    private void openFile() {
+        if (loader != null || chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File source = chooser.getSelectedFile();
+        GraphicsConfiguration config = defaultConfiguration();
+        setTitle("Drawing Board - opening " + source.getName());
+
+        loader = new SwingWorker<TiledCanvas, Void>() {
+            @Override
+            protected TiledCanvas doInBackground() throws IOException {
+                if (ProjectFile.matches(source)) {
+                    ProjectFile project = new ProjectFile(source.toPath());
+                    return new TiledCanvas(project.getWidth(), project.getHeight(), config, project);
                 }
+                BufferedImage image = ImageIO.read(source);
+                if (image == null) throw new IOException("Unsupported image");
+                return TiledCanvas.of(image, config);
             }
+
+            @Override
+            protected void done() {
+                loader = null;
+                try {
+                    canvas = get();
+                } catch (ExecutionException | InterruptedException ex) {
+                    setTitle("Drawing Board");
+                    alert("Unable to open file");
+                    return;
+                }
+                history = new TileHistory(canvas, TileHistory.DEFAULT_BUDGET);
+                canvas.setChangeListener(history);
+                renderer.replace(canvas, history);
+                panel.revalidate();
+                panel.repaint();
+                setTitle("Drawing Board - " + source.getName());
+            }
+        };
+        loader.execute();
+    }
+
+    // Saves a project unless the file is named .png (or the PNG filter is
+    // picked for a name without extension). The renderer takes a snapshot
+    // between two edits; encoding and writing happen on a worker while
+    // drawing carries on.
+    private void saveFile() {
+        if (saver != null) {
+            alert("The drawing is still being saved");
+            return;
+        }
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File selected = chooser.getSelectedFile();
+        if (selected.getName().indexOf('.') < 0) {
+            selected = new File(selected.getPath() + (chooser.getFileFilter() == pngFilter ? ".png" : ".dbp"));
+        }
+        File target = selected;
+        boolean png = target.getName().toLowerCase(Locale.ROOT).endsWith(".png");
+        CompletableFuture<TiledCanvas.Snapshot> snapshot = new CompletableFuture<>();
+        renderer.apply(c -> {
+            try {
+                snapshot.complete(c.snapshot());
+            } catch (RuntimeException | Error ex) {
+                // The saver is waiting on this; let it fail instead of hang
+                snapshot.completeExceptionally(ex);
+                throw ex;
+            }
+            return null;
         });
+        String title = getTitle();
+        setTitle("Drawing Board - saving " + target.getName());
+
+        saver = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                if (png) {
+                    PngWriter.write(snapshot.get(), target.toPath());
+                } else {
+                    ProjectFile.write(snapshot.get(), target.toPath());
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                saver = null;
+                try {
+                    get();
+                    setTitle("Drawing Board - " + target.getName());
+                } catch (ExecutionException | InterruptedException ex) {
+                    setTitle(title);
+                    alert("Unable to save file");
+                }
+            }
+        };
+        saver.execute();
+    }
+
+    private void alert(String text) {
+        JOptionPane.showMessageDialog(this, text, "Alert", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void showStatistics() {
+        String message = String.format(
+                "Points received: %d%nCoalesced: %d%nDropped: %d%n"
+                        + "Input to screen: %.1f ms average, %.1f ms worst (%d updates)",
+                renderer.getReceived(), renderer.getCoalesced(), renderer.getDropped(),
+                renderer.getAverageLatencyMillis(), renderer.getMaxLatencyMillis(), renderer.getPresented());
+        JOptionPane.showMessageDialog(this, message, "Stroke Statistics", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private static GraphicsConfiguration defaultConfiguration() {
+        if (GraphicsEnvironment.isHeadless()) return null;
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
     }
 
     private class DrawingPanel extends JPanel {
+        public Dimension getPreferredSize() {
+            return new Dimension(canvas.getWidth(), canvas.getHeight());
+        }
+
+        // Only the tiles under the clip are blitted; unpainted tiles are
+        // never allocated and show the panel background
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            g.drawImage(canvas, 0, 0, null);
+            canvas.paint(g);
         }
     }
 
+    // Optional arguments: canvas width and height
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new DrawingApp().setVisible(true));
+        int width = args.length > 1 ? Integer.parseInt(args[0]) : 800;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        SwingUtilities.invokeLater(() -> new DrawingApp(width, height).setVisible(true));
+    }
+
+    // Canvas split into TILE_SIZE square tiles that are allocated the first
+    // time something is drawn on them, so a 16k x 16k canvas costs nothing
+    // until it is painted and then only as much as the painted area. Tiles
+    // are compatible images of the screen's GraphicsConfiguration, which
+    // the pipeline can cache and blit accelerated.
+    static class TiledCanvas {
+        static final int TILE_SIZE = 256;
+        static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+
+        // Told about a tile right before it is first modified by an edit
+        interface ChangeListener {
+            void tileChanging(int col, int row);
+        }
+
+        private final int width;
+        private final int height;
+        private final int cols;
+        private final int rows;
+        private final BufferedImage[] tiles;
+        private final GraphicsConfiguration config;
+        private final boolean premultiplied;
+        // Tiles of an opened project still to be copied out of its mapping
+        private final ProjectFile project;
+        private final boolean[] pending;
+        // Tiles a snapshot holds, to be copied before they next change
+        private final boolean[] shared;
+        private ChangeListener listener;
+
+        TiledCanvas(int width, int height, GraphicsConfiguration config) {
+            this(width, height, config, null);
+        }
+
+        // With a project, the canvas starts out as the project's tiles;
+        // each is copied out of the mapped file when first shown or changed
+        TiledCanvas(int width, int height, GraphicsConfiguration config, ProjectFile project) {
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("Canvas size " + width + "x" + height);
+            this.width = width;
+            this.height = height;
+            this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            this.tiles = new BufferedImage[cols * rows];
+            this.config = config;
+            this.premultiplied = newImage(1, 1).isAlphaPremultiplied();
+            this.project = project;
+            this.pending = new boolean[tiles.length];
+            this.shared = new boolean[tiles.length];
+            for (int i = 0; project != null && i < tiles.length; i++) {
+                pending[i] = project.has(i);
+            }
+        }
+
+        // A canvas holding a copy of image, which may be of any type
+        static TiledCanvas of(BufferedImage image, GraphicsConfiguration config) {
+            TiledCanvas canvas = new TiledCanvas(image.getWidth(), image.getHeight(), config);
+            int[] pixels = new int[TILE_PIXELS];
+            for (int row = 0; row < canvas.rows; row++) {
+                for (int col = 0; col < canvas.cols; col++) {
+                    Rectangle r = canvas.tileBounds(col, row);
+                    Arrays.fill(pixels, 0);
+                    image.getRGB(r.x, r.y, r.width, r.height, pixels, 0, TILE_SIZE);
+                    if (canvas.premultiplied) ImageFilters.premultiply(pixels);
+                    int any = 0;
+                    for (int p : pixels) {
+                        any |= p;
+                    }
+                    if (any != 0) canvas.writeTile(col, row, pixels);
+                }
+            }
+            return canvas;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        int getColumns() {
+            return cols;
+        }
+
+        int getRows() {
+            return rows;
+        }
+
+        // Whether packed pixels carry premultiplied colour (INT_ARGB_PRE),
+        // which depends on what the screen's configuration hands out
+        boolean isPremultiplied() {
+            return premultiplied;
+        }
+
+        void setChangeListener(ChangeListener listener) {
+            this.listener = listener;
+        }
+
+        // Null while the tile is blank
+        BufferedImage getTile(int col, int row) {
+            BufferedImage tile = tiles[row * cols + col];
+            return tile != null ? tile : slot(row * cols + col, false);
+        }
+
+        // The tile to modify; only the renderer's thread modifies tiles
+        private BufferedImage tile(int col, int row) {
+            int i = row * cols + col;
+            BufferedImage tile = tiles[i];
+            if (tile == null || shared[i]) tile = slot(i, true);
+            return tile;
+        }
+
+        // Copies a tile out of the project, or when about to modify it,
+        // creates it or copies it away from a snapshot. Locked, as painting
+        // on the EDT may be the first to need a project tile.
+        private synchronized BufferedImage slot(int i, boolean modify) {
+            BufferedImage tile = tiles[i];
+            if (tile == null && pending[i]) {
+                tile = newImage(TILE_SIZE, TILE_SIZE);
+                int[] pixels = new int[TILE_PIXELS];
+                project.readTile(i, pixels, premultiplied);
+                tile.getRaster().setDataElements(0, 0, TILE_SIZE, TILE_SIZE, pixels);
+                pending[i] = false;
+            } else if (modify && tile == null) {
+                tile = newImage(TILE_SIZE, TILE_SIZE);
+            } else if (modify && shared[i]) {
+                BufferedImage copy = newImage(TILE_SIZE, TILE_SIZE);
+                copy.setData(tile.getRaster());
+                tile = copy;
+            }
+            if (modify) shared[i] = false;
+            tiles[i] = tile;
+            return tile;
+        }
+
+        private synchronized void clear(int i) {
+            tiles[i] = null;
+            pending[i] = false;
+            shared[i] = false;
+        }
+
+        // The canvas as it is now, to be saved on another thread while
+        // drawing goes on. Nothing is copied up front: the snapshot shares
+        // the tiles, and the canvas copies a shared tile before it changes
+        // it (once; the flags stay set after the save, which only costs
+        // that copy). Must be taken on the renderer's thread.
+        synchronized Snapshot snapshot() {
+            for (int i = 0; i < tiles.length; i++) {
+                if (tiles[i] != null) shared[i] = true;
+            }
+            return new Snapshot(this, tiles.clone(), pending.clone());
+        }
+
+        // Pixels are always packed ints, which the history and the filters
+        // rely on; a configuration that offers something else gets ARGB
+        private BufferedImage newImage(int w, int h) {
+            BufferedImage image = null;
+            if (config != null) image = config.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+            if (image == null || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+                image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            }
+            return image;
+        }
+
+        // Tells the listener a tile is about to change. Writers that bypass
+        // draw() call it for every tile first, from the thread that owns
+        // the edit, since the listener is not thread-safe.
+        void changing(int col, int row) {
+            if (listener != null) listener.tileChanging(col, row);
+        }
+
+        // Copies a tile's packed pixels into into (zeros for a blank tile).
+        // The raster is copied rather than exposed, so the image stays
+        // eligible for accelerated caching.
+        void readTile(int col, int row, int[] into) {
+            BufferedImage tile = getTile(col, row);
+            if (tile == null) {
+                Arrays.fill(into, 0);
+            } else {
+                tile.getRaster().getDataElements(0, 0, TILE_SIZE, TILE_SIZE, into);
+            }
+        }
+
+        // Null pixels make the tile blank again and free it
+        void writeTile(int col, int row, int[] pixels) {
+            if (pixels == null) {
+                clear(row * cols + col);
+            } else {
+                tile(col, row).getRaster().setDataElements(0, 0, TILE_SIZE, TILE_SIZE, pixels);
+            }
+        }
+
+        // Copies canvas rows y0 to y0 + h - 1, full width, into into from
+        // offset at a stride of the canvas width; blank tiles read as zeros
+        void readRows(int y0, int h, int[] into, int offset) {
+            int[] scratch = new int[TILE_PIXELS];
+            for (int y = y0; y < y0 + h; ) {
+                int row = y / TILE_SIZE;
+                int ty = y - row * TILE_SIZE;
+                int n = Math.min(TILE_SIZE - ty, y0 + h - y);
+                for (int col = 0; col < cols; col++) {
+                    int x = col * TILE_SIZE;
+                    int w = Math.min(TILE_SIZE, width - x);
+                    int at = offset + (y - y0) * width + x;
+                    BufferedImage tile = getTile(col, row);
+                    if (tile == null) {
+                        for (int i = 0; i < n; i++) {
+                            Arrays.fill(into, at + i * width, at + i * width + w, 0);
+                        }
+                    } else {
+                        tile.getRaster().getDataElements(0, ty, w, n, scratch);
+                        for (int i = 0; i < n; i++) {
+                            System.arraycopy(scratch, i * w, into, at + i * width, w);
+                        }
+                    }
+                }
+                y += n;
+            }
+        }
+
+        // The reverse of readRows(). An all-zero area over a blank tile
+        // leaves it blank. Does not notify the listener; see changing().
+        void writeRows(int y0, int h, int[] from, int offset) {
+            int[] scratch = new int[TILE_PIXELS];
+            for (int y = y0; y < y0 + h; ) {
+                int row = y / TILE_SIZE;
+                int ty = y - row * TILE_SIZE;
+                int n = Math.min(TILE_SIZE - ty, y0 + h - y);
+                for (int col = 0; col < cols; col++) {
+                    int x = col * TILE_SIZE;
+                    int w = Math.min(TILE_SIZE, width - x);
+                    int any = 0;
+                    for (int i = 0; i < n; i++) {
+                        int at = offset + (y - y0 + i) * width + x;
+                        System.arraycopy(from, at, scratch, i * w, w);
+                        for (int j = at; j < at + w; j++) {
+                            any |= from[j];
+                        }
+                    }
+                    if (any == 0 && getTile(col, row) == null) continue;
+                    tile(col, row).getRaster().setDataElements(0, ty, w, n, scratch);
+                }
+                y += n;
+            }
+        }
+
+        Rectangle tileBounds(int col, int row) {
+            return new Rectangle(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE)
+                    .intersection(new Rectangle(0, 0, width, height));
+        }
+
+        // Strokes a shape into the tiles its outline touches and returns the
+        // outline's bounds plus a pixel for rounding, or null if the shape
+        // lies off the canvas. Tiles inside the bounds that the outline
+        // misses are neither allocated nor recorded as changed, so a long
+        // diagonal stroke costs the tiles along it, not its bounding box.
+        Rectangle draw(Shape shape, Color color, BasicStroke stroke) {
+            Shape outline = stroke.createStrokedShape(shape);
+            Rectangle bounds = outline.getBounds();
+            bounds.grow(1, 1);
+            bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+            if (bounds.isEmpty()) return null;
+
+            for (int row = bounds.y / TILE_SIZE; row <= (bounds.y + bounds.height - 1) / TILE_SIZE; row++) {
+                for (int col = bounds.x / TILE_SIZE; col <= (bounds.x + bounds.width - 1) / TILE_SIZE; col++) {
+                    // A pixel of slack for pixels the rasterizer rounds outwards
+                    if (!outline.intersects(col * TILE_SIZE - 1, row * TILE_SIZE - 1, TILE_SIZE + 2, TILE_SIZE + 2)) {
+                        continue;
+                    }
+                    changing(col, row);
+                    Graphics2D g = tile(col, row).createGraphics();
+                    g.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+                    g.clipRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                    g.setColor(color);
+                    g.setStroke(stroke);
+                    g.draw(shape);
+                    g.dispose();
+                }
+            }
+            return bounds;
+        }
+
+        void paint(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = new Rectangle(0, 0, width, height);
+            int firstCol = Math.max(clip.x, 0) / TILE_SIZE;
+            int firstRow = Math.max(clip.y, 0) / TILE_SIZE;
+            int lastCol = Math.min((clip.x + clip.width - 1) / TILE_SIZE, cols - 1);
+            int lastRow = Math.min((clip.y + clip.height - 1) / TILE_SIZE, rows - 1);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    BufferedImage tile = getTile(col, row);
+                    if (tile != null) g.drawImage(tile, col * TILE_SIZE, row * TILE_SIZE, null);
+                }
+            }
+        }
+
+        // Tiles as they were when the snapshot was taken, read in the
+        // canvas's own pixel format
+        static class Snapshot {
+            private final TiledCanvas canvas;
+            private final BufferedImage[] tiles;
+            private final boolean[] pending;
+
+            private Snapshot(TiledCanvas canvas, BufferedImage[] tiles, boolean[] pending) {
+                this.canvas = canvas;
+                this.tiles = tiles;
+                this.pending = pending;
+            }
+
+            int getWidth() {
+                return canvas.width;
+            }
+
+            int getHeight() {
+                return canvas.height;
+            }
+
+            int getColumns() {
+                return canvas.cols;
+            }
+
+            int getRows() {
+                return canvas.rows;
+            }
+
+            boolean isPremultiplied() {
+                return canvas.premultiplied;
+            }
+
+            boolean isBlank(int col, int row) {
+                int i = row * canvas.cols + col;
+                return tiles[i] == null && !pending[i];
+            }
+
+            void readTile(int col, int row, int[] into) {
+                int i = row * canvas.cols + col;
+                if (tiles[i] != null) {
+                    tiles[i].getRaster().getDataElements(0, 0, TILE_SIZE, TILE_SIZE, into);
+                } else if (pending[i]) {
+                    canvas.project.readTile(i, into, canvas.premultiplied);
+                } else {
+                    Arrays.fill(into, 0);
+                }
+            }
+        }
+    }
+
+    // Canvas areas changed since the last take(), so a burst of segments
+    // turns into one repaint of just those areas. Areas are merged only
+    // when their union costs no more than the two apart, so a diagonal
+    // stroke stays a chain of small boxes instead of its bounding box;
+    // past MAX_AREAS a new area joins the one it grows least. It also
+    // remembers when the oldest input behind the areas arrived, for the
+    // latency figures.
+    static class DirtyRegion {
+        static final int MAX_AREAS = 32;
+
+        private final ArrayList<Rectangle> areas = new ArrayList<>();
+        private long since;
+
+        synchronized void add(Rectangle r, long inputTime) {
+            if (r == null || r.isEmpty()) return;
+            since = areas.isEmpty() ? inputTime : Math.min(since, inputTime);
+            Rectangle added = new Rectangle(r);
+            boolean merged = true;
+            while (merged) {
+                merged = false;
+                for (int i = areas.size() - 1; i >= 0; i--) {
+                    Rectangle a = areas.get(i);
+                    Rectangle union = a.union(added);
+                    if (size(union) <= size(a) + size(added)) {
+                        areas.remove(i);
+                        added = union;
+                        merged = true;
+                    }
+                }
+            }
+            if (areas.size() < MAX_AREAS) {
+                areas.add(added);
+                return;
+            }
+            int best = 0;
+            long growth = Long.MAX_VALUE;
+            for (int i = 0; i < areas.size(); i++) {
+                long g = size(areas.get(i).union(added)) - size(areas.get(i));
+                if (g < growth) {
+                    growth = g;
+                    best = i;
+                }
+            }
+            areas.get(best).add(added);
+        }
+
+        private static long size(Rectangle r) {
+            return (long) r.width * r.height;
+        }
+
+        // System.nanoTime() of the oldest input behind the current areas
+        synchronized long since() {
+            return since;
+        }
+
+        // Null when nothing changed
+        synchronized Rectangle[] take() {
+            if (areas.isEmpty()) return null;
+            Rectangle[] taken = areas.toArray(new Rectangle[0]);
+            areas.clear();
+            return taken;
+        }
+    }
+
+    // Undo/redo for the tiled canvas that keeps only what an edit changed.
+    // While an edit is open, the first change to a tile saves a deflated
+    // copy of it, so a canvas-wide edit holds compressed tiles, not raw ones.
+    // On commit every touched tile is stored as the XOR of its old and new
+    // pixels, deflated: unchanged pixels XOR to zero, so a delta costs
+    // about as much as the area really changed, and as XOR is its own
+    // inverse one delta serves both undo and redo. Undo and redo inflate
+    // and XOR the touched tiles only. Deltas count against a byte budget
+    // and the oldest edits are dropped to stay within it.
+    static class TileHistory implements TiledCanvas.ChangeListener {
+        static final long DEFAULT_BUDGET = 64L << 20;
+
+        private final TiledCanvas canvas;
+        private final long budget;
+        private final ArrayDeque<Edit> undoStack = new ArrayDeque<>();
+        private final ArrayDeque<Edit> redoStack = new ArrayDeque<>();
+        private long bytes;
+
+        // Tiles touched by the open edit with their deflated pixels from
+        // before it; null values stand for blank tiles
+        private LinkedHashMap<Integer, byte[]> before;
+
+        private final int[] pixels = new int[TiledCanvas.TILE_PIXELS];
+        private final int[] delta = new int[TiledCanvas.TILE_PIXELS];
+        private final ByteBuffer raw = ByteBuffer.allocate(TiledCanvas.TILE_PIXELS * 4);
+        private final byte[] packed = new byte[TiledCanvas.TILE_PIXELS * 4 + 1024];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+
+        static class Edit {
+            final int[] tiles;
+            final byte[][] deltas;
+            final boolean[] blankBefore;
+            final boolean[] blankAfter;
+            final long bytes;
+
+            Edit(int[] tiles, byte[][] deltas, boolean[] blankBefore, boolean[] blankAfter) {
+                this.tiles = tiles;
+                this.deltas = deltas;
+                this.blankBefore = blankBefore;
+                this.blankAfter = blankAfter;
+                long size = 0;
+                for (byte[] d : deltas) {
+                    size += d.length;
+                }
+                this.bytes = size;
+            }
+        }
+
+        TileHistory(TiledCanvas canvas, long budget) {
+            this.canvas = canvas;
+            this.budget = budget;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        void begin() {
+            if (before != null) commit();
+            before = new LinkedHashMap<>();
+        }
+
+        // Changes made while no edit is open are not recorded
+        @Override
+        public void tileChanging(int col, int row) {
+            if (before == null) return;
+            Integer key = row * canvas.getColumns() + col;
+            if (before.containsKey(key)) return;
+            byte[] copy = null;
+            if (canvas.getTile(col, row) != null) {
+                canvas.readTile(col, row, pixels);
+                copy = deflate(pixels);
+            }
+            before.put(key, copy);
+        }
+
+        // Closes the open edit; one that changed nothing is not kept
+        void commit() {
+            if (before == null) return;
+            LinkedHashMap<Integer, byte[]> touched = before;
+            before = null;
+
+            int cols = canvas.getColumns();
+            int n = 0;
+            int[] tiles = new int[touched.size()];
+            byte[][] deltas = new byte[tiles.length][];
+            boolean[] blankBefore = new boolean[tiles.length];
+            boolean[] blankAfter = new boolean[tiles.length];
+            for (Map.Entry<Integer, byte[]> entry : touched.entrySet()) {
+                int key = entry.getKey();
+                byte[] old = entry.getValue();
+                boolean blank = canvas.getTile(key % cols, key / cols) == null;
+                canvas.readTile(key % cols, key / cols, pixels);
+                if (old != null) inflate(old, delta);
+                int changed = 0;
+                for (int i = 0; i < pixels.length; i++) {
+                    if (old != null) pixels[i] ^= delta[i];
+                    changed |= pixels[i];
+                }
+                if (changed == 0 && (old == null) == blank) continue;
+                tiles[n] = key;
+                deltas[n] = deflate(pixels);
+                blankBefore[n] = old == null;
+                blankAfter[n] = blank;
+                n++;
+            }
+            if (n == 0) return;
+
+            for (Edit undone : redoStack) {
+                bytes -= undone.bytes;
+            }
+            redoStack.clear();
+            Edit edit = new Edit(Arrays.copyOf(tiles, n), Arrays.copyOf(deltas, n),
+                    Arrays.copyOf(blankBefore, n), Arrays.copyOf(blankAfter, n));
+            undoStack.push(edit);
+            bytes += edit.bytes;
+            while (bytes > budget && undoStack.size() > 1) {
+                bytes -= undoStack.removeLast().bytes;
+            }
+        }
+
+        // Both return the canvas area to repaint, or null if there was
+        // nothing to undo or redo
+        Rectangle undo() {
+            commit();
+            Edit edit = undoStack.poll();
+            if (edit == null) return null;
+            redoStack.push(edit);
+            return apply(edit, edit.blankAfter, edit.blankBefore);
+        }
+
+        Rectangle redo() {
+            commit();
+            Edit edit = redoStack.poll();
+            if (edit == null) return null;
+            undoStack.push(edit);
+            return apply(edit, edit.blankBefore, edit.blankAfter);
+        }
+
+        private Rectangle apply(Edit edit, boolean[] blankNow, boolean[] blankThen) {
+            int cols = canvas.getColumns();
+            Rectangle area = null;
+            for (int t = 0; t < edit.tiles.length; t++) {
+                int col = edit.tiles[t] % cols;
+                int row = edit.tiles[t] / cols;
+                if (blankThen[t]) {
+                    canvas.writeTile(col, row, null);
+                } else {
+                    if (blankNow[t]) {
+                        Arrays.fill(pixels, 0);
+                    } else {
+                        canvas.readTile(col, row, pixels);
+                    }
+                    inflate(edit.deltas[t], delta);
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] ^= delta[i];
+                    }
+                    canvas.writeTile(col, row, pixels);
+                }
+                Rectangle r = canvas.tileBounds(col, row);
+                if (area == null) {
+                    area = r;
+                } else {
+                    area.add(r);
+                }
+            }
+            return area;
+        }
+
+        private byte[] deflate(int[] values) {
+            raw.clear();
+            raw.asIntBuffer().put(values);
+            deflater.reset();
+            deflater.setInput(raw.array());
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished()) {
+                n += deflater.deflate(packed, n, packed.length - n);
+            }
+            return Arrays.copyOf(packed, n);
+        }
+
+        private void inflate(byte[] data, int[] into) {
+            inflater.reset();
+            inflater.setInput(data);
+            try {
+                int n = 0;
+                while (n < raw.capacity() && !inflater.finished()) {
+                    n += inflater.inflate(raw.array(), n, raw.capacity() - n);
+                }
+                if (n != raw.capacity()) throw new IllegalStateException("Truncated tile delta");
+            } catch (DataFormatException ex) {
+                throw new IllegalStateException(ex);
+            }
+            raw.clear();
+            raw.asIntBuffer().get(into);
+        }
+    }
+
+    // Draws strokes on a thread of its own so the EDT only queues points
+    // and blits finished regions. Input goes through a lock-free queue.
+    // Each pass the renderer drains whatever has piled up, folds points
+    // that moved less than MIN_STEP into the next one, smooths the rest
+    // with a Catmull-Rom spline and strokes the batch as one path, so a
+    // burst of events costs a single pass over the tiles it covers. The
+    // changed area goes back to the EDT through the dirty region.
+    //
+    // Every canvas change, undo and redo included, happens on this thread
+    // in input order, which is what keeps the tile history consistent.
+    // The EDT may blit a tile while a stroke is being drawn into it; the
+    // repaint that follows the stroke shows the finished pixels.
+    static class StrokeRenderer implements Runnable {
+        // Points waiting beyond this are dropped rather than queued
+        static final int CAPACITY = 8192;
+        static final float MIN_STEP = 1.5f;
+        // Catmull-Rom segments are split into lines about this long
+        static final float CURVE_STEP = 4f;
+        // A batch is stroked once it holds this many spline segments, even
+        // if more input is waiting, to bound latency under a flood
+        static final int MAX_BATCH = 64;
+
+        private static final int BEGIN = 0;
+        private static final int POINT = 1;
+        private static final int END = 2;
+        private static final int UNDO = 3;
+        private static final int REDO = 4;
+        private static final int APPLY = 5;
+        private static final int REPLACE = 6;
+
+        // A whole-canvas edit such as a fill or filter, run as one
+        // undoable step; returns the area it changed or null
+        interface Operation {
+            Rectangle apply(TiledCanvas canvas);
+        }
+
+        private static class Input {
+            final int kind;
+            final float x, y;
+            final long time = System.nanoTime();
+            final Color color;
+            final BasicStroke stroke;
+            final Operation operation;
+            final TiledCanvas canvas;
+            final TileHistory history;
+
+            Input(int kind, float x, float y, Color color, BasicStroke stroke) {
+                this(kind, x, y, color, stroke, null);
+            }
+
+            Input(int kind, float x, float y, Color color, BasicStroke stroke, Operation operation) {
+                this.kind = kind;
+                this.x = x;
+                this.y = y;
+                this.color = color;
+                this.stroke = stroke;
+                this.operation = operation;
+                this.canvas = null;
+                this.history = null;
+            }
+
+            Input(TiledCanvas canvas, TileHistory history) {
+                this.kind = REPLACE;
+                this.x = 0;
+                this.y = 0;
+                this.color = null;
+                this.stroke = null;
+                this.operation = null;
+                this.canvas = canvas;
+                this.history = history;
+            }
+        }
+
+        private TiledCanvas canvas;
+        private TileHistory history;
+        private final JComponent view;
+        private final DirtyRegion dirty = new DirtyRegion();
+        private final ConcurrentLinkedQueue<Input> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean presentPending = new AtomicBoolean();
+        private final Thread thread;
+
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong presented = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        // Stroke state, touched by the render thread only. The window holds
+        // the last four kept points; the segment drawn is w1 to w2, so a
+        // point is drawn once the one after it arrives (or the stroke ends).
+        private boolean drawing;
+        private Color color;
+        private BasicStroke stroke;
+        private final float[] wx = new float[4];
+        private final float[] wy = new float[4];
+        private final long[] wt = new long[4];
+        private int kept;
+        private Input skipped;
+        private final Path2D.Float path = new Path2D.Float();
+        // Bounds of each segment's points, as minX, minY, maxX, maxY
+        private float[] segmentBounds = new float[4 * (MAX_BATCH + 4)];
+        private int segments;
+        private long batchSince = Long.MAX_VALUE;
+
+        StrokeRenderer(TiledCanvas canvas, TileHistory history, JComponent view) {
+            this.canvas = canvas;
+            this.history = history;
+            this.view = view;
+            thread = new Thread(this, "Stroke renderer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void begin(int x, int y, Color color, BasicStroke stroke) {
+            enqueue(new Input(BEGIN, x, y, color, stroke));
+        }
+
+        void lineTo(int x, int y) {
+            received.incrementAndGet();
+            if (queued.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            enqueue(new Input(POINT, x, y, null, null));
+        }
+
+        void end() {
+            enqueue(new Input(END, 0, 0, null, null));
+        }
+
+        void undo() {
+            enqueue(new Input(UNDO, 0, 0, null, null));
+        }
+
+        void redo() {
+            enqueue(new Input(REDO, 0, 0, null, null));
+        }
+
+        void apply(Operation operation) {
+            enqueue(new Input(APPLY, 0, 0, null, null, operation));
+        }
+
+        // Input queued before this still goes to the old canvas
+        void replace(TiledCanvas canvas, TileHistory history) {
+            enqueue(new Input(canvas, history));
+        }
+
+        long getReceived() {
+            return received.get();
+        }
+
+        long getCoalesced() {
+            return coalesced.get();
+        }
+
+        long getDropped() {
+            return dropped.get();
+        }
+
+        long getPresented() {
+            return presented.get();
+        }
+
+        double getAverageLatencyMillis() {
+            long n = presented.get();
+            return n == 0 ? 0 : totalLatency.get() / 1e6 / n;
+        }
+
+        double getMaxLatencyMillis() {
+            return maxLatency.get() / 1e6;
+        }
+
+        private void enqueue(Input in) {
+            queued.incrementAndGet();
+            queue.offer(in);
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Input in = queue.poll();
+                if (in == null) {
+                    try {
+                        flush();
+                    } catch (RuntimeException | Error ex) {
+                        recover(ex, System.nanoTime());
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                queued.decrementAndGet();
+                try {
+                    switch (in.kind) {
+                        case BEGIN:
+                            finish();
+                            history.begin();
+                            drawing = true;
+                            color = in.color;
+                            stroke = in.stroke;
+                            kept = 0;
+                            skipped = null;
+                            keep(in);
+                            break;
+                        case POINT:
+                            if (!drawing) break;
+                            int last = kept == 1 ? 1 : 2;
+                            float dx = in.x - wx[last];
+                            float dy = in.y - wy[last];
+                            if (dx * dx + dy * dy < MIN_STEP * MIN_STEP) {
+                                skipped = in;
+                                coalesced.incrementAndGet();
+                            } else {
+                                skipped = null;
+                                keep(in);
+                                if (segments >= MAX_BATCH) flush();
+                            }
+                            break;
+                        case END:
+                            finish();
+                            break;
+                        case UNDO:
+                            finish();
+                            dirty.add(history.undo(), in.time);
+                            requestPresent();
+                            break;
+                        case REDO:
+                            finish();
+                            dirty.add(history.redo(), in.time);
+                            requestPresent();
+                            break;
+                        case APPLY:
+                            // Shown before the history compresses the change
+                            finish();
+                            history.begin();
+                            dirty.add(in.operation.apply(canvas), in.time);
+                            requestPresent();
+                            history.commit();
+                            break;
+                        case REPLACE:
+                            finish();
+                            canvas = in.canvas;
+                            history = in.history;
+                            dirty.add(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()), in.time);
+                            requestPresent();
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown input " + in.kind);
+                    }
+                } catch (RuntimeException | Error ex) {
+                    // This is the only thread that draws, so one failed
+                    // input (say a fill running out of memory) must not end it
+                    recover(ex, in.time);
+                }
+            }
+        }
+
+        // Drops the broken stroke, keeps whatever the failed input already
+        // changed as an undoable edit and tells the user
+        private void recover(Throwable failure, long inputTime) {
+            drawing = false;
+            skipped = null;
+            kept = 0;
+            path.reset();
+            segments = 0;
+            batchSince = Long.MAX_VALUE;
+            String message = "Drawing failed: " + failure;
+            try {
+                history.commit();
+            } catch (RuntimeException | Error ex) {
+                message += "\nThe last change could not be recorded for undo: " + ex;
+            }
+            dirty.add(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()), inputTime);
+            requestPresent();
+            String text = message;
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(view, text, "Alert", JOptionPane.ERROR_MESSAGE));
+        }
+
+        private void keep(Input in) {
+            kept++;
+            int at = kept == 1 ? 1 : kept == 2 ? 2 : 3;
+            wx[at] = in.x;
+            wy[at] = in.y;
+            wt[at] = in.time;
+            if (kept == 1) {
+                wx[0] = in.x;
+                wy[0] = in.y;
+            } else if (kept > 2) {
+                emit();
+                shift();
+            }
+        }
+
+        private void shift() {
+            for (int i = 0; i < 3; i++) {
+                wx[i] = wx[i + 1];
+                wy[i] = wy[i + 1];
+                wt[i] = wt[i + 1];
+            }
+        }
+
+        // Closes the open stroke: draws up to its last point, the one the
+        // pointer was released at even if it moved too little to keep
+        private void finish() {
+            if (!drawing) return;
+            if (skipped != null) {
+                coalesced.decrementAndGet();
+                keep(skipped);
+                skipped = null;
+            }
+            if (kept >= 2) {
+                wx[3] = wx[2];
+                wy[3] = wy[2];
+                emit();
+            }
+            flush();
+            history.commit();
+            drawing = false;
+        }
+
+        // Appends the spline segment from w1 to w2 to the batch path
+        private void emit() {
+            float x0 = wx[0], y0 = wy[0], x1 = wx[1], y1 = wy[1];
+            float x2 = wx[2], y2 = wy[2], x3 = wx[3], y3 = wy[3];
+            if (path.getCurrentPoint() == null) path.moveTo(x1, y1);
+            if (4 * segments + 4 > segmentBounds.length) segmentBounds = Arrays.copyOf(segmentBounds, 8 * segments + 8);
+            int b = 4 * segments;
+            segmentBounds[b] = Math.min(x1, x2);
+            segmentBounds[b + 1] = Math.min(y1, y2);
+            segmentBounds[b + 2] = Math.max(x1, x2);
+            segmentBounds[b + 3] = Math.max(y1, y2);
+            double length = Math.hypot(x2 - x1, y2 - y1);
+            int steps = (int) Math.min(32, Math.max(1, Math.ceil(length / CURVE_STEP)));
+            for (int s = 1; s < steps; s++) {
+                float t = (float) s / steps;
+                float t2 = t * t;
+                float t3 = t2 * t;
+                float x = 0.5f * (2 * x1 + (x2 - x0) * t + (2 * x0 - 5 * x1 + 4 * x2 - x3) * t2 + (3 * x1 - x0 - 3 * x2 + x3) * t3);
+                float y = 0.5f * (2 * y1 + (y2 - y0) * t + (2 * y0 - 5 * y1 + 4 * y2 - y3) * t2 + (3 * y1 - y0 - 3 * y2 + y3) * t3);
+                path.lineTo(x, y);
+                segmentBounds[b] = Math.min(segmentBounds[b], x);
+                segmentBounds[b + 1] = Math.min(segmentBounds[b + 1], y);
+                segmentBounds[b + 2] = Math.max(segmentBounds[b + 2], x);
+                segmentBounds[b + 3] = Math.max(segmentBounds[b + 3], y);
+            }
+            path.lineTo(x2, y2);
+            segments++;
+            batchSince = Math.min(batchSince, wt[2]);
+        }
+
+        // Strokes the batch, then marks each segment's own area dirty: the
+        // batch bounds of a diagonal stroke would repaint a whole square
+        private void flush() {
+            if (segments == 0) return;
+            Rectangle drawn = canvas.draw(path, color, stroke);
+            if (drawn != null) {
+                float pad = reach(stroke) + 1;
+                for (int b = 0; b < 4 * segments; b += 4) {
+                    int x = (int) Math.floor(segmentBounds[b] - pad);
+                    int y = (int) Math.floor(segmentBounds[b + 1] - pad);
+                    Rectangle r = new Rectangle(x, y,
+                            (int) Math.ceil(segmentBounds[b + 2] + pad) - x, (int) Math.ceil(segmentBounds[b + 3] + pad) - y);
+                    dirty.add(r.intersection(drawn), batchSince);
+                }
+            }
+            path.reset();
+            segments = 0;
+            batchSince = Long.MAX_VALUE;
+            requestPresent();
+        }
+
+        // How far a stroke's outline reaches from its path: half the width,
+        // stretched by a miter join or the corner of a square cap
+        private static float reach(BasicStroke stroke) {
+            float half = stroke.getLineWidth() / 2;
+            float miter = stroke.getLineJoin() == BasicStroke.JOIN_MITER ? Math.max(1, stroke.getMiterLimit()) : 1;
+            float cap = stroke.getEndCap() == BasicStroke.CAP_SQUARE ? (float) Math.sqrt(2) : 1;
+            return half * Math.max(miter, cap);
+        }
+
+        private void requestPresent() {
+            if (presentPending.compareAndSet(false, true)) SwingUtilities.invokeLater(this::present);
+        }
+
+        // On the EDT: paints everything drawn so far right away, so the
+        // latency measured is input arrival to pixels in the back buffer
+        private void present() {
+            presentPending.set(false);
+            Rectangle[] areas;
+            long since;
+            synchronized (dirty) {
+                since = dirty.since();
+                areas = dirty.take();
+            }
+            if (areas == null) return;
+            for (Rectangle r : areas) view.paintImmediately(r);
+            long latency = System.nanoTime() - since;
+            presented.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    // Filters and fills over the canvas's packed ARGB pixels. They run as
+    // renderer operations, so they are ordered with strokes and undoable.
+    //
+    // The filters work in tile-row bands split across the common
+    // ForkJoinPool. A neighbourhood filter gathers its band plus a halo of
+    // rows above and below, filters that and writes its own rows back. The
+    // halo rows are snapshotted before any band writes, so no band sees
+    // another's output. Pixels are copied out of and into the tiles a tile
+    // row at a time instead of through the DataBufferInt's array, as
+    // taking that array would stop Java2D caching the tiles on the card.
+    static class ImageFilters {
+        static final int BLUR_RADIUS = 3;
+        static final int MAX_BLUR_RADIUS = 64;
+
+        private static final int INVERT = 0;
+        private static final int GRAYSCALE = 1;
+        private static final int BLUR = 2;
+        private static final int SHARPEN = 3;
+
+        private ImageFilters() {
+        }
+
+        static Rectangle invert(TiledCanvas canvas) {
+            return pointwise(canvas, INVERT);
+        }
+
+        static Rectangle grayscale(TiledCanvas canvas) {
+            return pointwise(canvas, GRAYSCALE);
+        }
+
+        // Box blur, run horizontally then vertically with running sums, so
+        // the cost per pixel does not depend on the radius
+        static Rectangle blur(TiledCanvas canvas, int radius) {
+            if (radius < 1 || radius > MAX_BLUR_RADIUS) throw new IllegalArgumentException("Blur radius " + radius);
+            return neighbourhood(canvas, BLUR, radius);
+        }
+
+        static Rectangle sharpen(TiledCanvas canvas) {
+            return neighbourhood(canvas, SHARPEN, 1);
+        }
+
+        // Frees every tile, leaving the canvas blank
+        static Rectangle clear(TiledCanvas canvas) {
+            boolean any = false;
+            for (int row = 0; row < canvas.getRows(); row++) {
+                for (int col = 0; col < canvas.getColumns(); col++) {
+                    if (canvas.getTile(col, row) == null) continue;
+                    canvas.changing(col, row);
+                    canvas.writeTile(col, row, null);
+                    any = true;
+                }
+            }
+            return any ? new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()) : null;
+        }
+
+        static Rectangle fill(TiledCanvas canvas, int x, int y, Color color) {
+            if (x < 0 || y < 0 || x >= canvas.getWidth() || y >= canvas.getHeight()) return null;
+            int argb = color.getRGB();
+            if (canvas.isPremultiplied()) argb = premultiply(argb);
+            return new Fill(canvas).run(x, y, argb);
+        }
+
+        // Transparent pixels are left alone, so only painted tiles are visited
+        private static Rectangle pointwise(TiledCanvas canvas, int op) {
+            boolean pre = canvas.isPremultiplied();
+            int[] bands = bands(canvas, 0);
+            if (bands.length == 0) return null;
+            for (int row : bands) {
+                for (int col = 0; col < canvas.getColumns(); col++) {
+                    if (canvas.getTile(col, row) != null) canvas.changing(col, row);
+                }
+            }
+            inBands(bands, row -> {
+                int[] pixels = new int[TiledCanvas.TILE_PIXELS];
+                for (int col = 0; col < canvas.getColumns(); col++) {
+                    if (canvas.getTile(col, row) == null) continue;
+                    canvas.readTile(col, row, pixels);
+                    if (op == INVERT) {
+                        invert(pixels, pre);
+                    } else {
+                        grayscale(pixels);
+                    }
+                    canvas.writeTile(col, row, pixels);
+                }
+            });
+            return area(canvas, bands);
+        }
+
+        private static Rectangle neighbourhood(TiledCanvas canvas, int op, int radius) {
+            int width = canvas.getWidth();
+            int height = canvas.getHeight();
+            int size = TiledCanvas.TILE_SIZE;
+            boolean pre = canvas.isPremultiplied();
+            int[] bands = bands(canvas, 1);
+            if (bands.length == 0) return null;
+
+            // halo[b] holds rows b * size - radius up to b * size + radius,
+            // around the top edge of tile row b, as they were before
+            int[][] halo = new int[canvas.getRows() + 1][];
+            for (int row : bands) {
+                for (int b = row; b <= row + 1; b++) {
+                    if (b == 0 || b * size >= height || halo[b] != null) continue;
+                    halo[b] = new int[2 * radius * width];
+                    int top = b * size - radius;
+                    canvas.readRows(top, Math.min(2 * radius, height - top), halo[b], 0);
+                }
+                for (int col = 0; col < canvas.getColumns(); col++) {
+                    canvas.changing(col, row);
+                }
+            }
+
+            inBands(bands, row -> {
+                int top = row * size;
+                int h = Math.min(size, height - top);
+                int[] band = new int[(h + 2 * radius) * width];
+                canvas.readRows(top, h, band, radius * width);
+                // Band row at shows canvas row top - radius + at; past the
+                // canvas edges the edge row is repeated
+                for (int i = 0; i < 2 * radius; i++) {
+                    int at = i < radius ? i : h + i;
+                    int y = Math.min(Math.max(top - radius + at, 0), height - 1);
+                    if (y >= top && y < top + h) {
+                        System.arraycopy(band, (radius + y - top) * width, band, at * width, width);
+                    } else if (y < top) {
+                        System.arraycopy(halo[row], (y - top + radius) * width, band, at * width, width);
+                    } else {
+                        System.arraycopy(halo[row + 1], (y - top - h + radius) * width, band, at * width, width);
+                    }
+                }
+                if (!pre) premultiply(band);
+                int[] out = new int[h * width];
+                if (op == BLUR) {
+                    blurRows(band, h + 2 * radius, width, radius);
+                    blurColumns(band, out, h, width, radius);
+                } else {
+                    sharpen(band, out, h, width);
+                }
+                if (!pre) unpremultiply(out);
+                canvas.writeRows(top, h, out, 0);
+            });
+            return area(canvas, bands);
+        }
+
+        private static void invert(int[] pixels, boolean pre) {
+            for (int i = 0; i < pixels.length; i++) {
+                int p = pixels[i];
+                int a = p >>> 24;
+                if (a == 0) continue;
+                if (pre) {
+                    pixels[i] = p & 0xFF000000 | (a - (p >> 16 & 0xFF)) << 16 | (a - (p >> 8 & 0xFF)) << 8 | (a - (p & 0xFF));
+                } else {
+                    pixels[i] = p ^ 0x00FFFFFF;
+                }
+            }
+        }
+
+        // Rec. 601 luma in 8-bit fixed point; being linear it works on
+        // premultiplied and straight colour alike
+        private static void grayscale(int[] pixels) {
+            for (int i = 0; i < pixels.length; i++) {
+                int p = pixels[i];
+                if (p >>> 24 == 0) continue;
+                int y = (77 * (p >> 16 & 0xFF) + 150 * (p >> 8 & 0xFF) + 29 * (p & 0xFF) + 128) >> 8;
+                pixels[i] = p & 0xFF000000 | y * 0x010101;
+            }
+        }
+
+        // In place, clamping at the left and right canvas edges. Sums are
+        // kept two channels to an int (alpha|green and red|blue, 16 bits
+        // each), which is enough for any radius up to MAX_BLUR_RADIUS.
+        private static void blurRows(int[] px, int rows, int width, int radius) {
+            int mul = reciprocal(2 * radius + 1);
+            int[] line = new int[width];
+            for (int row = 0; row < rows; row++) {
+                int o = row * width;
+                int ag = 0, rb = 0;
+                for (int i = -radius; i <= radius; i++) {
+                    int p = px[o + Math.min(Math.max(i, 0), width - 1)];
+                    ag += p >>> 8 & 0x00FF00FF;
+                    rb += p & 0x00FF00FF;
+                }
+                for (int x = 0; x < width; x++) {
+                    line[x] = average(ag, rb, mul);
+                    int add = px[o + (x + radius + 1 < width ? x + radius + 1 : width - 1)];
+                    int sub = px[o + (x > radius ? x - radius : 0)];
+                    ag += (add >>> 8 & 0x00FF00FF) - (sub >>> 8 & 0x00FF00FF);
+                    rb += (add & 0x00FF00FF) - (sub & 0x00FF00FF);
+                }
+                System.arraycopy(line, 0, px, o, width);
+            }
+        }
+
+        // Row by row with running sums per column, which keeps memory
+        // access sequential; band has the halo rows, out gets h rows
+        private static void blurColumns(int[] band, int[] out, int h, int width, int radius) {
+            int mul = reciprocal(2 * radius + 1);
+            int[] ag = new int[width];
+            int[] rb = new int[width];
+            for (int row = 0; row <= 2 * radius; row++) {
+                for (int x = 0, o = row * width; x < width; x++) {
+                    ag[x] += band[o + x] >>> 8 & 0x00FF00FF;
+                    rb[x] += band[o + x] & 0x00FF00FF;
+                }
+            }
+            int last = band.length - width;
+            for (int row = 0; row < h; row++) {
+                int o = row * width;
+                int add = Math.min((row + 2 * radius + 1) * width, last);
+                for (int x = 0; x < width; x++) {
+                    out[o + x] = average(ag[x], rb[x], mul);
+                    int p = band[add + x];
+                    int q = band[o + x];
+                    ag[x] += (p >>> 8 & 0x00FF00FF) - (q >>> 8 & 0x00FF00FF);
+                    rb[x] += (p & 0x00FF00FF) - (q & 0x00FF00FF);
+                }
+            }
+        }
+
+        // 2^22 / n rounded: sum * reciprocal(n) >> 22, rounded, is then the
+        // mean of n channel values, rounded, for every window up to
+        // 2 * MAX_BLUR_RADIUS + 1, without overflowing an int
+        private static int reciprocal(int n) {
+            return ((1 << 22) + n / 2) / n;
+        }
+
+        private static int average(int ag, int rb, int mul) {
+            int half = 1 << 21;
+            return ((ag >>> 16) * mul + half) >>> 22 << 24 | ((rb >>> 16) * mul + half) >>> 22 << 16
+                    | ((ag & 0xFFFF) * mul + half) >>> 22 << 8 | ((rb & 0xFFFF) * mul + half) >>> 22;
+        }
+
+        // 3x3 sharpen (centre 5, edge neighbours -1) on premultiplied
+        // pixels; colour is clamped to alpha to stay valid
+        private static void sharpen(int[] band, int[] out, int h, int width) {
+            for (int row = 0; row < h; row++) {
+                int c = (row + 1) * width;
+                for (int x = 0; x < width; x++) {
+                    int p = band[c + x];
+                    int n = band[c - width + x];
+                    int s = band[c + width + x];
+                    int w = band[c + Math.max(x - 1, 0)];
+                    int e = band[c + Math.min(x + 1, width - 1)];
+                    int a = clamp(5 * (p >>> 24) - (n >>> 24) - (s >>> 24) - (w >>> 24) - (e >>> 24), 255);
+                    int r = clamp(5 * (p >> 16 & 0xFF) - (n >> 16 & 0xFF) - (s >> 16 & 0xFF) - (w >> 16 & 0xFF) - (e >> 16 & 0xFF), a);
+                    int g = clamp(5 * (p >> 8 & 0xFF) - (n >> 8 & 0xFF) - (s >> 8 & 0xFF) - (w >> 8 & 0xFF) - (e >> 8 & 0xFF), a);
+                    int b = clamp(5 * (p & 0xFF) - (n & 0xFF) - (s & 0xFF) - (w & 0xFF) - (e & 0xFF), a);
+                    out[row * width + x] = a << 24 | r << 16 | g << 8 | b;
+                }
+            }
+        }
+
+        private static int clamp(int v, int max) {
+            return v < 0 ? 0 : Math.min(v, max);
+        }
+
+        private static int premultiply(int p) {
+            int a = p >>> 24;
+            if (a == 255) return p;
+            if (a == 0) return 0;
+            return a << 24 | scale(p >> 16 & 0xFF, a) << 16 | scale(p >> 8 & 0xFF, a) << 8 | scale(p & 0xFF, a);
+        }
+
+        // c * a / 255, rounded, without a division
+        private static int scale(int c, int a) {
+            int t = c * a + 128;
+            return (t + (t >> 8)) >> 8;
+        }
+
+        private static void premultiply(int[] pixels) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = premultiply(pixels[i]);
+            }
+        }
+
+        private static void unpremultiply(int[] pixels) {
+            for (int i = 0; i < pixels.length; i++) {
+                int p = pixels[i];
+                int a = p >>> 24;
+                if (a == 255 || a == 0) continue;
+                int mul = (255 * 65536 + a / 2) / a;
+                pixels[i] = a << 24 | Math.min(255, ((p >> 16 & 0xFF) * mul + 32768) >>> 16) << 16
+                        | Math.min(255, ((p >> 8 & 0xFF) * mul + 32768) >>> 16) << 8
+                        | Math.min(255, ((p & 0xFF) * mul + 32768) >>> 16);
+            }
+        }
+
+        // Tile rows that have a painted tile within reach rows of them
+        private static int[] bands(TiledCanvas canvas, int reach) {
+            int rows = canvas.getRows();
+            boolean[] painted = new boolean[rows];
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < canvas.getColumns() && !painted[row]; col++) {
+                    painted[row] = canvas.getTile(col, row) != null;
+                }
+            }
+            int[] bands = new int[rows];
+            int n = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int near = Math.max(row - reach, 0); near <= Math.min(row + reach, rows - 1); near++) {
+                    if (painted[near]) {
+                        bands[n++] = row;
+                        break;
+                    }
+                }
+            }
+            return Arrays.copyOf(bands, n);
+        }
+
+        private static Rectangle area(TiledCanvas canvas, int[] bands) {
+            Rectangle area = null;
+            for (int row : bands) {
+                Rectangle r = canvas.tileBounds(0, row).union(canvas.tileBounds(canvas.getColumns() - 1, row));
+                if (area == null) {
+                    area = r;
+                } else {
+                    area.add(r);
+                }
+            }
+            return area;
+        }
+
+        private static void inBands(int[] bands, IntConsumer body) {
+            ForkJoinPool.commonPool().invoke(new BandTask(bands, 0, bands.length, body));
+        }
+
+        private static class BandTask extends RecursiveAction {
+            private final int[] bands;
+            private final int from, to;
+            private final IntConsumer body;
+
+            BandTask(int[] bands, int from, int to, IntConsumer body) {
+                this.bands = bands;
+                this.from = from;
+                this.to = to;
+                this.body = body;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    body.accept(bands[from]);
+                } else {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new BandTask(bands, from, mid, body), new BandTask(bands, mid, to, body));
+                }
+            }
+        }
+
+        // Scanline flood fill (Heckbert's span algorithm): it fills a whole
+        // run of a row at a time and keeps the spans still to look at on an
+        // int stack, so it neither recurses nor allocates per pixel. Tiles
+        // are copied out on first use and written back once at the end.
+        private static class Fill {
+            private final TiledCanvas canvas;
+            private final int width, height, cols;
+            private final int[][] tiles;
+            private final boolean[] changed;
+            private int[] stack = new int[256];
+            private int sp;
+            private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            private int maxX = -1, maxY = -1;
+
+            Fill(TiledCanvas canvas) {
+                this.canvas = canvas;
+                this.width = canvas.getWidth();
+                this.height = canvas.getHeight();
+                this.cols = canvas.getColumns();
+                this.tiles = new int[cols * canvas.getRows()][];
+                this.changed = new boolean[tiles.length];
+            }
+
+            Rectangle run(int seedX, int seedY, int fill) {
+                int old = get(seedX, seedY);
+                if (old == fill) return null;
+                push(seedY, seedX, seedX, 1);
+                push(seedY + 1, seedX, seedX, -1);
+                while (sp > 0) {
+                    sp -= 4;
+                    int dy = stack[sp + 3];
+                    int y = stack[sp] + dy;
+                    int x1 = stack[sp + 1];
+                    int x2 = stack[sp + 2];
+
+                    // Extend the span left of x1, then walk right across it
+                    int x = x1;
+                    while (x >= 0 && get(x, y) == old) {
+                        set(x, y, fill);
+                        x--;
+                    }
+                    boolean skip = x >= x1;
+                    int left = x + 1;
+                    if (!skip) {
+                        if (left < x1) push(y, left, x1 - 1, -dy);
+                        x = x1 + 1;
+                    }
+                    do {
+                        if (!skip) {
+                            while (x < width && get(x, y) == old) {
+                                set(x, y, fill);
+                                x++;
+                            }
+                            push(y, left, x - 1, dy);
+                            if (x > x2 + 1) push(y, x2 + 1, x - 1, -dy);
+                        }
+                        skip = false;
+                        for (x++; x <= x2 && get(x, y) != old; x++) {
+                        }
+                        left = x;
+                    } while (x <= x2);
+                }
+
+                for (int i = 0; i < tiles.length; i++) {
+                    if (changed[i]) canvas.writeTile(i % cols, i / cols, tiles[i]);
+                }
+                return maxX < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+            }
+
+            // Spans whose next row lies off the canvas are never stored
+            private void push(int y, int x1, int x2, int dy) {
+                if (y + dy < 0 || y + dy >= height) return;
+                if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                stack[sp] = y;
+                stack[sp + 1] = x1;
+                stack[sp + 2] = x2;
+                stack[sp + 3] = dy;
+                sp += 4;
+            }
+
+            private int get(int x, int y) {
+                return tile(x, y)[y % TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE + x % TiledCanvas.TILE_SIZE];
+            }
+
+            private void set(int x, int y, int argb) {
+                int i = y / TiledCanvas.TILE_SIZE * cols + x / TiledCanvas.TILE_SIZE;
+                if (!changed[i]) {
+                    canvas.changing(i % cols, i / cols);
+                    changed[i] = true;
+                }
+                tile(x, y)[y % TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE + x % TiledCanvas.TILE_SIZE] = argb;
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+            }
+
+            private int[] tile(int x, int y) {
+                int i = y / TiledCanvas.TILE_SIZE * cols + x / TiledCanvas.TILE_SIZE;
+                int[] tile = tiles[i];
+                if (tile == null) {
+                    tile = new int[TiledCanvas.TILE_PIXELS];
+                    canvas.readTile(i % cols, i / cols, tile);
+                    tiles[i] = tile;
+                }
+                return tile;
+            }
+        }
+    }
+
+    // The project format: the canvas's tiles exactly as they are in
+    // memory, so a project opens by mapping the file instead of decoding
+    // it, however big the canvas. Little-endian throughout:
+    //   header, HEADER_BYTES: magic, version, width, height, tile size,
+    //     flags (1 = premultiplied colour), tile count
+    //   index: one long per tile, the file offset of its pixels or 0 for
+    //     a blank tile, which is not stored
+    //   pixels: TILE_PIXELS ints per stored tile, from a 4 KB boundary on
+    static class ProjectFile {
+        static final int MAGIC = 0x50504244; // "DBPP" read little-endian
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 64;
+        static final int TILE_BYTES = TiledCanvas.TILE_PIXELS * 4;
+        // One mapping covers at most 2 GB, so the pixels are mapped in
+        // pieces; a whole number of tiles fits in each
+        private static final long SEGMENT_BYTES = 1L << 30;
+
+        private final int width;
+        private final int height;
+        private final boolean premultiplied;
+        private final long dataOffset;
+        private final long[] offsets;
+        private final MappedByteBuffer[] segments;
+
+        static boolean matches(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                return Integer.reverseBytes(in.readInt()) == MAGIC;
+            } catch (EOFException ex) {
+                return false;
+            }
+        }
+
+        ProjectFile(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = read(channel, 0, HEADER_BYTES);
+                if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                    throw new IOException("Not a drawing project");
+                }
+                if (header.getInt() != VERSION) throw new IOException("Unsupported project version");
+                width = header.getInt();
+                height = header.getInt();
+                int tileSize = header.getInt();
+                premultiplied = (header.getInt() & 1) != 0;
+                int count = header.getInt();
+                long cols = (width + (long) TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE;
+                long rows = (height + (long) TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE;
+                if (count < 1 || count > Integer.MAX_VALUE / 8) throw corrupt();
+                dataOffset = dataOffset(count);
+                if (width <= 0 || height <= 0 || tileSize != TiledCanvas.TILE_SIZE || cols * rows != count
+                        || dataOffset > size) {
+                    throw corrupt();
+                }
+
+                ByteBuffer index = read(channel, HEADER_BYTES, count * 8);
+                if (index.remaining() < count * 8) throw corrupt();
+                offsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long at = index.getLong();
+                    if (at != 0 && (at < dataOffset || (at - dataOffset) % TILE_BYTES != 0 || at + TILE_BYTES > size)) {
+                        throw corrupt();
+                    }
+                    offsets[i] = at;
+                }
+
+                segments = new MappedByteBuffer[(int) ((size - dataOffset + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = dataOffset + i * SEGMENT_BYTES;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, size - start));
+                }
+            }
+        }
+
+        private static IOException corrupt() {
+            return new IOException("Damaged drawing project");
+        }
+
+        private static long dataOffset(int tiles) {
+            return (HEADER_BYTES + tiles * 8L + 4095) & ~4095L;
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                // reads until the buffer is full or the file ends
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        boolean has(int tile) {
+            return offsets[tile] != 0;
+        }
+
+        // Copies a stored tile into into, in the colour form asked for
+        void readTile(int tile, int[] into, boolean premultiplied) {
+            long at = offsets[tile] - dataOffset;
+            ByteBuffer segment = segments[(int) (at / SEGMENT_BYTES)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            segment.position((int) (at % SEGMENT_BYTES));
+            segment.asIntBuffer().get(into, 0, TiledCanvas.TILE_PIXELS);
+            if (premultiplied && !this.premultiplied) {
+                ImageFilters.premultiply(into);
+            } else if (!premultiplied && this.premultiplied) {
+                ImageFilters.unpremultiply(into);
+            }
+        }
+
+        static void write(TiledCanvas.Snapshot snapshot, Path target) throws IOException {
+            writeAtomically(target, out -> write(snapshot, out));
+        }
+
+        private static void write(TiledCanvas.Snapshot snapshot, FileChannel out) throws IOException {
+            int cols = snapshot.getColumns();
+            int count = cols * snapshot.getRows();
+            long data = dataOffset(count);
+            ByteBuffer head = ByteBuffer.allocate((int) data).order(ByteOrder.LITTLE_ENDIAN);
+            head.putInt(MAGIC).putInt(VERSION).putInt(snapshot.getWidth()).putInt(snapshot.getHeight())
+                    .putInt(TiledCanvas.TILE_SIZE).putInt(snapshot.isPremultiplied() ? 1 : 0).putInt(count);
+            head.position(HEADER_BYTES);
+            long at = data;
+            for (int i = 0; i < count; i++) {
+                if (snapshot.isBlank(i % cols, i / cols)) {
+                    head.putLong(0);
+                } else {
+                    head.putLong(at);
+                    at += TILE_BYTES;
+                }
+            }
+            head.clear();
+            writeFully(out, head, 0);
+
+            ByteBuffer pixels = ByteBuffer.allocateDirect(TILE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            int[] tile = new int[TiledCanvas.TILE_PIXELS];
+            at = data;
+            for (int i = 0; i < count; i++) {
+                if (snapshot.isBlank(i % cols, i / cols)) continue;
+                snapshot.readTile(i % cols, i / cols, tile);
+                pixels.clear();
+                pixels.asIntBuffer().put(tile);
+                writeFully(out, pixels, at);
+                at += TILE_BYTES;
+            }
+        }
+
+        private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+
+    // PNG encoder that streams: the canvas is read a tile row at a time,
+    // each pixel row is Sub-filtered and fed through a Deflater, and the
+    // output leaves in IDAT chunks of CHUNK_BYTES. Only one band of pixels
+    // and one chunk are in memory at once, whatever the canvas size.
+    static class PngWriter {
+        private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        private static final int CHUNK_BYTES = 1 << 16;
+
+        static void write(TiledCanvas.Snapshot snapshot, Path target) throws IOException {
+            writeAtomically(target, channel -> {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_BYTES + 12);
+                write(snapshot, out);
+                out.flush();
+            });
+        }
+
+        static void write(TiledCanvas.Snapshot snapshot, OutputStream out) throws IOException {
+            int width = snapshot.getWidth();
+            int height = snapshot.getHeight();
+            out.write(SIGNATURE);
+            ByteBuffer header = ByteBuffer.allocate(13);
+            header.putInt(width).putInt(height).put((byte) 8).put((byte) 6); // 8-bit RGBA
+            writeChunk(out, "IHDR", header.array(), 13);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                ChunkStream idat = new ChunkStream(out);
+                DeflaterOutputStream z = new DeflaterOutputStream(idat, deflater, CHUNK_BYTES);
+                int size = TiledCanvas.TILE_SIZE;
+                int[] tile = new int[TiledCanvas.TILE_PIXELS];
+                int[] band = new int[width * size];
+                byte[] line = new byte[1 + 4 * width];
+                line[0] = 1; // Sub: each byte minus the one a pixel to the left
+                for (int row = 0; row < snapshot.getRows(); row++) {
+                    int h = Math.min(size, height - row * size);
+                    for (int col = 0; col < snapshot.getColumns(); col++) {
+                        int w = Math.min(size, width - col * size);
+                        snapshot.readTile(col, row, tile);
+                        for (int y = 0; y < h; y++) {
+                            System.arraycopy(tile, y * size, band, y * width + col * size, w);
+                        }
+                    }
+                    if (snapshot.isPremultiplied()) ImageFilters.unpremultiply(band);
+                    for (int y = 0; y < h; y++) {
+                        int left = 0;
+                        for (int x = 0, o = y * width, b = 1; x < width; x++, b += 4) {
+                            int p = band[o + x];
+                            line[b] = (byte) ((p >> 16) - (left >> 16));
+                            line[b + 1] = (byte) ((p >> 8) - (left >> 8));
+                            line[b + 2] = (byte) (p - left);
+                            line[b + 3] = (byte) ((p >>> 24) - (left >>> 24));
+                            left = p;
+                        }
+                        z.write(line);
+                    }
+                }
+                z.finish();
+                idat.flushChunk();
+            } finally {
+                deflater.end();
+            }
+            writeChunk(out, "IEND", new byte[0], 0);
+        }
+
+        private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+            byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(data, 0, length);
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(length);
+            dout.write(name);
+            dout.write(data, 0, length);
+            dout.writeInt((int) crc.getValue());
+        }
+
+        // Collects compressed bytes and writes them out as IDAT chunks
+        private static class ChunkStream extends OutputStream {
+            private final OutputStream out;
+            private final byte[] buffer = new byte[CHUNK_BYTES];
+            private int count;
+
+            ChunkStream(OutputStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) flushChunk();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length) flushChunk();
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            void flushChunk() throws IOException {
+                if (count == 0) return;
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+    interface ChannelWriter {
+        void write(FileChannel out) throws IOException;
+    }
+
+    // Writes to a hidden file next to the target (one save runs at a
+    // time), forces it to disk and renames it over the target, so a failed
+    // save leaves the old file. A project that is open stays readable, as
+    // its mapping keeps the replaced file alive.
+    static void writeAtomically(Path target, ChannelWriter writer) throws IOException {
+        target = target.toAbsolutePath();
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writer.write(out);
+                out.force(true);
+            }
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ex) {
+                    // not a POSIX file system
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
     }
 }
@@ -1,15 +1,55 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.*;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.rtf.RTFEditorKit;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.undo.UndoManager;
 import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.BreakIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 public class SimpleWord extends JFrame {
 
     private JTextPane editor;
     private JFileChooser chooser;
+    private FileNameExtensionFilter rtfFilter;
     private JComboBox<String> fontSelector;
     private JComboBox<Integer> sizeSelector;
+    private DocumentLoader loader;
+    private SwingWorker<Void, Void> saver;
+    private final UndoManager undoManager = new UndoManager();
 
     public SimpleWord() {
         setTitle("Simple Word");
@@ -18,13 +58,18 @@ public class SimpleWord extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
 
         editor = new JTextPane();
+        editor.setEditorKit(new WordEditorKit());
+        watch(editor.getDocument());
         add(new JScrollPane(editor), BorderLayout.CENTER);
 
         setupMenu();
         setupToolbar();
 
         chooser = new JFileChooser();
-        chooser.setFileFilter(new FileNameExtensionFilter("Rich Text Format (*.rtf)", "rtf"));
+        rtfFilter = new FileNameExtensionFilter("Rich Text Format (*.rtf)", "rtf");
+        chooser.addChoosableFileFilter(new FileNameExtensionFilter("Simple Word Document (*.swd)", "swd"));
+        chooser.addChoosableFileFilter(rtfFilter);
+        chooser.setFileFilter(new FileNameExtensionFilter("Documents (*.swd, *.rtf)", "swd", "rtf"));
     }
 
     private void setupMenu() {
@@ -44,7 +89,25 @@ public class SimpleWord extends JFrame {
         file.addSeparator();
         file.add(close);
 
+        JMenu edit = new JMenu("Edit");
+        JMenuItem undo = new JMenuItem("Undo");
+        JMenuItem redo = new JMenuItem("Redo");
+
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+
+        undo.addActionListener(e -> {
+            if (undoManager.canUndo()) undoManager.undo();
+        });
+        redo.addActionListener(e -> {
+            if (undoManager.canRedo()) undoManager.redo();
+        });
+
+        edit.add(undo);
+        edit.add(redo);
+
         bar.add(file);
+        bar.add(edit);
         setJMenuBar(bar);
     }
 
@@ -93,26 +156,23 @@ public class SimpleWord extends JFrame {
         return btn;
     }
 
+    // Turns the style on for the whole selection unless every run in it
+    // already has it, in which case it is turned off
     private void toggleStyle(Object key) {
         StyledDocument doc = editor.getStyledDocument();
         int start = editor.getSelectionStart();
         int end = editor.getSelectionEnd();
         if (start == end) return;
 
-        MutableAttributeSet attr = new SimpleAttributeSet(doc.getCharacterElement(start).getAttributes());
-        boolean state = false;
-
-        if (key == StyleConstants.Bold) {
-            state = StyleConstants.isBold(attr);
-            StyleConstants.setBold(attr, !state);
-        } else if (key == StyleConstants.Italic) {
-            state = StyleConstants.isItalic(attr);
-            StyleConstants.setItalic(attr, !state);
-        } else if (key == StyleConstants.Underline) {
-            state = StyleConstants.isUnderline(attr);
-            StyleConstants.setUnderline(attr, !state);
+        boolean allSet = true;
+        for (int pos = start; pos < end && allSet; ) {
+            Element run = doc.getCharacterElement(pos);
+            allSet = Boolean.TRUE.equals(run.getAttributes().getAttribute(key));
+            pos = run.getEndOffset();
         }
 
+        MutableAttributeSet attr = new SimpleAttributeSet();
+        attr.addAttribute(key, !allSet);
         doc.setCharacterAttributes(start, end - start, attr, false);
     }
 
@@ -126,26 +186,112 @@ public class SimpleWord extends JFrame {
         editor.setCharacterAttributes(attr, false);
     }
 
+    // Undo history follows the editor's document
+    private void watch(Document doc) {
+        undoManager.discardAllEdits();
+        doc.addUndoableEditListener(undoManager);
+    }
+
     private void loadFile() {
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try (FileInputStream in = new FileInputStream(chooser.getSelectedFile())) {
-                editor.read(in, null);
-            } catch (Exception ex) {
-                alert("Unable to load file");
-            }
+            load(chooser.getSelectedFile());
         }
     }
 
-    private void saveFile() {
-        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try (FileOutputStream out = new FileOutputStream(chooser.getSelectedFile())) {
-                editor.write(out);
-            } catch (Exception ex) {
-                alert("Unable to save file");
+    // Parses the file on a worker thread into a fresh document that is
+    // already on screen. Paragraphs arrive in batches and are appended on
+    // the EDT, so the first page shows long before a big file is read.
+    private void load(File file) {
+        if (loader != null) loader.cancel(true);
+        BatchDocument doc = (BatchDocument) editor.getEditorKit().createDefaultDocument();
+        undoManager.discardAllEdits();
+        editor.setDocument(doc);
+        editor.setEditable(false);
+        setTitle("Simple Word - loading " + file.getName());
+        long length = Math.max(file.length(), 1);
+
+        DocumentLoader worker = new DocumentLoader(file, doc, read ->
+                setTitle("Simple Word - loading " + file.getName() + " (" + read * 100 / length + "%)")) {
+            @Override
+            protected void done() {
+                if (isCancelled()) return;
+                loader = null;
+                watch(doc);
+                editor.setEditable(true);
+                setTitle("Simple Word - " + file.getName());
+                try {
+                    get();
+                } catch (ExecutionException | InterruptedException ex) {
+                    alert("Unable to load file");
+                }
             }
+        };
+        loader = worker;
+        worker.execute();
+    }
+
+    // Saves in the native format unless the file is named .rtf (or the RTF
+    // filter is picked for a name without extension); RTF is kept for
+    // exchanging documents with other programs
+    private void saveFile() {
+        if (loader != null) {
+            alert("The document is still loading");
+            return;
+        }
+        if (saver != null) {
+            alert("The document is still being saved");
+            return;
+        }
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File target = chooser.getSelectedFile();
+        if (target.getName().indexOf('.') < 0) {
+            target = new File(target.getPath() + (chooser.getFileFilter() == rtfFilter ? ".rtf" : ".swd"));
+        }
+        if (target.getName().toLowerCase(Locale.ROOT).endsWith(".rtf")) {
+            exportRtf(target);
+        } else {
+            saveNative(target);
         }
     }
 
+    private void exportRtf(File target) {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            Document doc = editor.getDocument();
+            editor.getEditorKit().write(out, doc, 0, doc.getLength());
+        } catch (Exception ex) {
+            alert("Unable to save file");
+        }
+    }
+
+    // Only the snapshot is taken on the EDT; the file is encoded and
+    // written on a worker while the document stays editable
+    private void saveNative(File target) {
+        SwdWriter writer = SwdWriter.snapshot(editor.getDocument());
+        String title = getTitle();
+        setTitle("Simple Word - saving " + target.getName());
+
+        saver = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                writer.write(target.toPath());
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                saver = null;
+                try {
+                    get();
+                    setTitle("Simple Word - " + target.getName());
+                } catch (ExecutionException | InterruptedException ex) {
+                    setTitle(title);
+                    alert("Unable to save file");
+                }
+            }
+        };
+        saver.execute();
+    }
+
     private void alert(String text) {
         JOptionPane.showMessageDialog(this, text, "Alert", JOptionPane.ERROR_MESSAGE);
     }
@@ -153,4 +299,1875 @@ public class SimpleWord extends JFrame {
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new SimpleWord().setVisible(true));
     }
+
+    // DefaultStyledDocument that takes a prepared batch of paragraphs under
+    // one write lock, as a single document event, instead of one
+    // insertString per run, and that formats ranges without fragmenting
+    // the element tree
+    static class BatchDocument extends DefaultStyledDocument {
+        void append(ElementSpec[] specs) {
+            try {
+                insert(getLength(), specs);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // One run of a paragraph being rebuilt; leaf is the existing element
+        // when the run is exactly one unchanged original run
+        private static class Run {
+            final int start;
+            int end;
+            final AttributeSet format;
+            Element leaf;
+
+            Run(int start, int end, AttributeSet format, Element leaf) {
+                this.start = start;
+                this.end = end;
+                this.format = format;
+                this.leaf = leaf;
+            }
+        }
+
+        // Formats a range in one pass under one write lock. Each distinct run
+        // format in the range is combined with attrs once and interned
+        // through the StyleContext pool, so equal runs share one immutable
+        // set. Every touched paragraph is rebuilt from its runs with adjacent
+        // equal runs merged, so formatting a selection again and again does
+        // not pile up elements. The change is one event and one undoable
+        // edit.
+        @Override
+        public void setCharacterAttributes(int offset, int length, AttributeSet attrs, boolean replace) {
+            int end = Math.min(offset + length, getLength() + 1);
+            if (offset < 0 || end <= offset) return;
+            try {
+                writeLock();
+                DefaultDocumentEvent changes = new DefaultDocumentEvent(offset, end - offset, DocumentEvent.EventType.CHANGE);
+                HashMap<AttributeSet, AttributeSet> formats = new HashMap<>();
+                Element root = getDefaultRootElement();
+                int last = root.getElementIndex(end - 1);
+                boolean changed = false;
+                for (int i = root.getElementIndex(offset); i <= last; i++) {
+                    changed |= restyle((BranchElement) root.getElement(i), offset, end, attrs, replace, formats, changes);
+                }
+                if (!changed) return;
+                changes.end();
+                fireChangedUpdate(changes);
+                fireUndoableEditUpdate(new UndoableEditEvent(this, changes));
+            } finally {
+                writeUnlock();
+            }
+        }
+
+        private boolean restyle(BranchElement paragraph, int from, int to, AttributeSet attrs, boolean replace,
+                HashMap<AttributeSet, AttributeSet> formats, DefaultDocumentEvent changes) {
+            StyleContext context = (StyleContext) getAttributeContext();
+            int count = paragraph.getElementCount();
+            Element[] leaves = new Element[count];
+            ArrayList<Run> runs = new ArrayList<>(count + 2);
+            for (int i = 0; i < count; i++) {
+                Element leaf = paragraph.getElement(i);
+                leaves[i] = leaf;
+                int p0 = leaf.getStartOffset();
+                int p1 = leaf.getEndOffset();
+                AttributeSet format = leaf.getAttributes().copyAttributes();
+                int a = Math.max(p0, from);
+                int b = Math.min(p1, to);
+                if (a >= b) {
+                    addRun(runs, p0, p1, format, leaf);
+                    continue;
+                }
+                AttributeSet restyled = formats.get(format);
+                if (restyled == null) {
+                    restyled = replace ? context.addAttributes(context.getEmptySet(), attrs)
+                            : context.addAttributes(format, attrs);
+                    formats.put(format, restyled);
+                }
+                if (p0 < a) addRun(runs, p0, a, format, null);
+                addRun(runs, a, b, restyled, a == p0 && b == p1 && restyled.isEqual(format) ? leaf : null);
+                if (b < p1) addRun(runs, b, p1, format, null);
+            }
+
+            // Runs that came back out exactly as they were keep their element
+            int j = 0;
+            for (Run run : runs) {
+                while (j < count && leaves[j].getStartOffset() < run.start) j++;
+                if (run.leaf == null && j < count && leaves[j].getStartOffset() == run.start
+                        && leaves[j].getEndOffset() == run.end && leaves[j].getAttributes().isEqual(run.format)) {
+                    run.leaf = leaves[j];
+                }
+            }
+            int head = 0;
+            while (head < count && head < runs.size() && runs.get(head).leaf == leaves[head]) head++;
+            if (head == count && runs.size() == count) return false;
+            int tail = 0;
+            while (tail < count - head && tail < runs.size() - head
+                    && runs.get(runs.size() - 1 - tail).leaf == leaves[count - 1 - tail]) tail++;
+
+            Element[] removed = Arrays.copyOfRange(leaves, head, count - tail);
+            Element[] added = new Element[runs.size() - head - tail];
+            for (int i = 0; i < added.length; i++) {
+                Run run = runs.get(head + i);
+                added[i] = run.leaf != null ? run.leaf : createLeafElement(paragraph, run.format, run.start, run.end);
+            }
+            paragraph.replace(head, removed.length, added);
+            changes.addEdit(new ElementEdit(paragraph, head, removed, added));
+            return true;
+        }
+
+        // The paragraph that closes a document is never inserted, it is always
+        // there; a loader that knows its formatting applies it here
+        void formatLastParagraph(AttributeSet paragraph, AttributeSet newline) {
+            int end = getLength();
+            setParagraphAttributes(end, 0, paragraph, true);
+            setCharacterAttributes(end, 1, newline, true);
+        }
+
+        private static void addRun(ArrayList<Run> runs, int start, int end, AttributeSet format, Element leaf) {
+            if (!runs.isEmpty()) {
+                Run prev = runs.get(runs.size() - 1);
+                if (prev.format == format || prev.format.isEqual(format)) {
+                    prev.end = end;
+                    prev.leaf = null;
+                    return;
+                }
+            }
+            runs.add(new Run(start, end, format, leaf));
+        }
+    }
+
+    // Parses a file on a worker thread and appends it to a document that
+    // is already on screen. Every batch is handed over with invokeAndWait,
+    // so the parser never runs more than one batch ahead of the EDT and
+    // input events wait behind one append at most. The first page is
+    // followed by an empty round trip through the event queue so the
+    // repaint it caused runs before the parser takes the CPU back. Native
+    // .swd files are not parsed at all: each batch is one chunk decoded
+    // straight from the mapped file.
+    static class DocumentLoader extends SwingWorker<Void, Void> {
+        private final File file;
+        private final BatchDocument doc;
+        private final LongConsumer progress;
+        private boolean shown;
+
+        DocumentLoader(File file, BatchDocument doc, LongConsumer progress) {
+            this.file = file;
+            this.doc = doc;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            if (SwdFile.matches(file)) {
+                SwdFile swd = new SwdFile(file.toPath(), doc.getStyle(StyleContext.DEFAULT_STYLE));
+                for (int i = 0; i < swd.getChunkCount() && !isCancelled(); i++) {
+                    deliver(swd.chunk(i));
+                }
+                AttributeSet paragraph = swd.getLastParagraph();
+                AttributeSet newline = swd.getLastNewline();
+                deliver(() -> doc.formatLastParagraph(paragraph, newline), file.length());
+                return null;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                new RtfReader(in, doc.getStyle(StyleContext.DEFAULT_STYLE), this::deliver).read();
+            }
+            return null;
+        }
+
+        private void deliver(RtfReader.Batch batch) {
+            deliver(() -> doc.append(batch.specs), batch.position);
+        }
+
+        private void deliver(Runnable step, long position) {
+            try {
+                SwingUtilities.invokeAndWait(() -> {
+                    if (isCancelled()) return;
+                    step.run();
+                    progress.accept(position);
+                });
+                if (!shown) {
+                    shown = true;
+                    SwingUtilities.invokeAndWait(() -> { });
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
+    // Styled kit whose section view lays paragraphs out lazily on the text
+    // layout thread (AsyncBoxView): a long document is scrollable before
+    // every paragraph has been measured, and only the visible ones are
+    // laid out up front. Files go through RtfReader and RTFEditorKit.
+    static class WordEditorKit extends StyledEditorKit {
+        private final ViewFactory factory = new WordViewFactory();
+
+        @Override
+        public String getContentType() {
+            return "text/rtf";
+        }
+
+        @Override
+        public ViewFactory getViewFactory() {
+            return factory;
+        }
+
+        @Override
+        public Document createDefaultDocument() {
+            return new BatchDocument();
+        }
+
+        @Override
+        public Object clone() {
+            return new WordEditorKit();
+        }
+
+        @Override
+        public void read(InputStream in, Document doc, int pos) throws IOException, BadLocationException {
+            if (!(doc instanceof BatchDocument) || pos != doc.getLength()) {
+                super.read(in, doc, pos);
+                return;
+            }
+            BatchDocument target = (BatchDocument) doc;
+            new RtfReader(in, target.getStyle(StyleContext.DEFAULT_STYLE), batch -> target.append(batch.specs)).read();
+        }
+
+        @Override
+        public void write(OutputStream out, Document doc, int pos, int len) throws IOException, BadLocationException {
+            new RTFEditorKit().write(out, doc, pos, len);
+        }
+    }
+
+    static class WordViewFactory implements ViewFactory {
+        @Override
+        public View create(Element elem) {
+            String kind = elem.getName();
+            if (AbstractDocument.ParagraphElementName.equals(kind)) return new LazyParagraphView(elem);
+            if (AbstractDocument.SectionElementName.equals(kind)) return new LazySectionView(elem);
+            if (StyleConstants.ComponentElementName.equals(kind)) return new ComponentView(elem);
+            if (StyleConstants.IconElementName.equals(kind)) return new IconView(elem);
+            return new WordLabelView(elem);
+        }
+    }
+
+    // Works around two AsyncBoxView faults that show up with flowed
+    // paragraphs. A paragraph view reports a preference change while it is
+    // being adopted (FlowView.loadChildren during setParent), before its
+    // ChildState is registered, and the lookup then fails; a child that is
+    // not adopted yet starts out invalid anyway, so that notice is dropped.
+    // And forwarding a document event asks for each child's allocation,
+    // which lays a pending child out before it has seen the change; such a
+    // child gets no allocation and the host is repainted instead, which
+    // lays the visible ones out again on paint. When the document is
+    // replaced the children are dropped, which turns the layout work still
+    // queued for them into no-ops.
+    static class LazySectionView extends AsyncBoxView {
+        private boolean forwarding;
+
+        LazySectionView(Element elem) {
+            super(elem, View.Y_AXIS);
+        }
+
+        @Override
+        public void setParent(View parent) {
+            if (parent == null && getViewCount() > 0) replace(0, getViewCount(), null);
+            super.setParent(parent);
+        }
+
+        @Override
+        public synchronized void preferenceChanged(View child, boolean width, boolean height) {
+            if (child != null) {
+                int index = getViewIndex(child.getStartOffset(), Position.Bias.Forward);
+                if (index < 0 || index >= getViewCount() || getView(index) != child) return;
+            }
+            super.preferenceChanged(child, width, height);
+        }
+
+        @Override
+        protected void forwardUpdate(DocumentEvent.ElementChange ec, DocumentEvent e, Shape a, ViewFactory f) {
+            forwarding = true;
+            try {
+                super.forwardUpdate(ec, e, a, f);
+            } finally {
+                forwarding = false;
+            }
+        }
+
+        @Override
+        public Shape getChildAllocation(int index, Shape a) {
+            if (forwarding && !getChildState(index).isLayoutValid()) {
+                Container host = getContainer();
+                if (host != null) host.repaint();
+                return null;
+            }
+            return super.getChildAllocation(index, a);
+        }
+    }
+
+    // Paragraph view that creates its glyph views the first time it is
+    // measured, painted or queried instead of when it is attached. Batches
+    // of paragraphs are appended cheaply, and the views of off-screen ones
+    // are built by the layout thread or not at all.
+    static class LazyParagraphView extends ParagraphView {
+        // Document property AbstractDocument sets once multi-byte text is
+        // inserted (AbstractDocument.MultiByteProperty is not public)
+        private static final String MULTI_BYTE = "multiByte";
+
+        private boolean loaded;
+        private int[] lineBreaks;
+        private boolean multiByteBreaks;
+
+        LazyParagraphView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        protected void loadChildren(ViewFactory f) {
+            // deferred to load()
+        }
+
+        private synchronized void load() {
+            if (loaded || getParent() == null) return;
+            loaded = true;
+            super.loadChildren(getViewFactory());
+        }
+
+        // Line break opportunities in the paragraph, relative to its start.
+        // GlyphView runs a BreakIterator over the whole paragraph for every
+        // fragment it measures; here that is done once per edit, with the
+        // same rules: the locale's line breaks once the document holds
+        // multi-byte text, breaks after whitespace otherwise.
+        synchronized int[] lineBreaks() {
+            Document doc = getDocument();
+            boolean multiByte = Boolean.TRUE.equals(doc.getProperty(MULTI_BYTE));
+            if (lineBreaks == null || multiByte != multiByteBreaks) {
+                int p0 = getStartOffset();
+                Segment text = new Segment();
+                try {
+                    doc.getText(p0, getEndOffset() - p0, text);
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                int[] breaks = new int[text.count + 1];
+                int n = 0;
+                if (multiByte) {
+                    Container c = getContainer();
+                    BreakIterator breaker = BreakIterator.getLineInstance(c == null ? Locale.getDefault() : c.getLocale());
+                    text.first();
+                    breaker.setText(text);
+                    for (int b = breaker.first(); b != BreakIterator.DONE; b = breaker.next()) {
+                        breaks[n++] = b - text.offset;
+                    }
+                } else {
+                    breaks[n++] = 0;
+                    boolean inSpace = false;
+                    for (int i = 0; i < text.count; i++) {
+                        boolean space = Character.isWhitespace(text.array[text.offset + i]);
+                        if (inSpace && !space) breaks[n++] = i;
+                        inSpace = space;
+                    }
+                    if (text.count > 0) breaks[n++] = text.count;
+                }
+                lineBreaks = Arrays.copyOf(breaks, n);
+                multiByteBreaks = multiByte;
+            }
+            return lineBreaks;
+        }
+
+        @Override
+        public void setParent(View parent) {
+            super.setParent(parent);
+            if (parent == null) loaded = false;
+        }
+
+        @Override
+        public int getViewCount() {
+            load();
+            return super.getViewCount();
+        }
+
+        @Override
+        public float getMinimumSpan(int axis) {
+            load();
+            return super.getMinimumSpan(axis);
+        }
+
+        @Override
+        public float getPreferredSpan(int axis) {
+            load();
+            return super.getPreferredSpan(axis);
+        }
+
+        @Override
+        public float getMaximumSpan(int axis) {
+            load();
+            return super.getMaximumSpan(axis);
+        }
+
+        @Override
+        public void setSize(float width, float height) {
+            load();
+            super.setSize(width, height);
+        }
+
+        @Override
+        public void paint(Graphics g, Shape a) {
+            load();
+            super.paint(g, a);
+        }
+
+        @Override
+        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+            load();
+            return super.modelToView(pos, a, b);
+        }
+
+        @Override
+        public Shape modelToView(int p0, Position.Bias b0, int p1, Position.Bias b1, Shape a) throws BadLocationException {
+            load();
+            return super.modelToView(p0, b0, p1, b1, a);
+        }
+
+        @Override
+        public int viewToModel(float x, float y, Shape a, Position.Bias[] bias) {
+            load();
+            return super.viewToModel(x, y, a, bias);
+        }
+
+        @Override
+        public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a, int direction,
+                Position.Bias[] biasRet) throws BadLocationException {
+            load();
+            return super.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
+        }
+
+        // Until the glyph views exist there is nothing cached to update
+        @Override
+        public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            lineBreaks = null;
+            if (loaded) super.insertUpdate(e, a, f);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            lineBreaks = null;
+            if (loaded) super.removeUpdate(e, a, f);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            if (loaded) {
+                super.changedUpdate(e, a, f);
+            } else {
+                setPropertiesFromAttributes();
+            }
+        }
+    }
+
+    // Label view measured by a RunPainter built for its run, and broken
+    // into lines from its paragraph's break table. Fragments are clones, so
+    // they share the painter; an edit to the run drops it and the next
+    // measurement builds a new one. Runs the RunPainter cannot measure keep
+    // the stock painter and the stock GlyphView behaviour.
+    static class WordLabelView extends LabelView {
+        private float minimumSpan = -1;
+
+        WordLabelView(Element elem) {
+            super(elem);
+        }
+
+        @Override
+        protected void checkPainter() {
+            if (getGlyphPainter() == null) {
+                super.checkPainter();
+                RunPainter run = RunPainter.create(this, getGlyphPainter());
+                if (run != null) setGlyphPainter(run);
+            }
+        }
+
+        private LazyParagraphView paragraph() {
+            checkPainter();
+            if (!(getGlyphPainter() instanceof RunPainter)) return null;
+            for (View v = getParent(); v != null; v = v.getParent()) {
+                if (v instanceof LazyParagraphView) return (LazyParagraphView) v;
+            }
+            return null;
+        }
+
+        // The last break in (p0, p1] that GlyphView.getBreakSpot would find,
+        // or BreakIterator.DONE
+        private int breakSpot(LazyParagraphView paragraph, int p0, int p1) {
+            int base = paragraph.getStartOffset();
+            int end = getEndOffset();
+            int last = Math.min(p1, paragraph.getEndOffset() > end ? end : end - 1);
+            int[] breaks = paragraph.lineBreaks();
+            int i = Arrays.binarySearch(breaks, last - base);
+            if (i < 0) i = -i - 2;
+            if (i < 0) return BreakIterator.DONE;
+            int spot = breaks[i] + base;
+            return spot > Math.max(p0, getStartOffset()) ? spot : BreakIterator.DONE;
+        }
+
+        @Override
+        public float getMinimumSpan(int axis) {
+            LazyParagraphView paragraph = axis == View.X_AXIS ? paragraph() : null;
+            if (paragraph == null) return super.getMinimumSpan(axis);
+            if (minimumSpan < 0) {
+                // widest unbreakable piece, as GlyphView measures it
+                float span = 0;
+                int p0 = getStartOffset();
+                int p1 = getEndOffset();
+                while (p1 > p0) {
+                    int spot = breakSpot(paragraph, p0, p1);
+                    if (spot == BreakIterator.DONE) spot = p0;
+                    span = Math.max(span, getPartialSpan(spot, p1));
+                    p1 = spot - 1;
+                }
+                minimumSpan = span;
+            }
+            return minimumSpan;
+        }
+
+        @Override
+        public int getBreakWeight(int axis, float pos, float len) {
+            LazyParagraphView paragraph = axis == View.X_AXIS ? paragraph() : null;
+            if (paragraph == null) return super.getBreakWeight(axis, pos, len);
+            int p0 = getStartOffset();
+            int p1 = getGlyphPainter().getBoundedPosition(this, p0, pos, len);
+            if (p1 == p0) return View.BadBreakWeight;
+            return breakSpot(paragraph, p0, p1) != BreakIterator.DONE ? View.ExcellentBreakWeight : View.GoodBreakWeight;
+        }
+
+        @Override
+        public View breakView(int axis, int p0, float pos, float len) {
+            LazyParagraphView paragraph = axis == View.X_AXIS ? paragraph() : null;
+            if (paragraph == null) return super.breakView(axis, p0, pos, len);
+            int p1 = getGlyphPainter().getBoundedPosition(this, p0, pos, len);
+            int spot = breakSpot(paragraph, p0, p1);
+            if (spot != BreakIterator.DONE) p1 = spot;
+            if (p0 == getStartOffset() && p1 == getEndOffset()) return this;
+            GlyphView v = (GlyphView) createFragment(p0, p1);
+            // sets the fragment's tab base to pos, as GlyphView.breakView does
+            v.getTabbedSpan(pos, v.getTabExpander());
+            return v;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            setGlyphPainter(null);
+            minimumSpan = -1;
+            super.insertUpdate(e, a, f);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            setGlyphPainter(null);
+            minimumSpan = -1;
+            super.removeUpdate(e, a, f);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+            setGlyphPainter(null);
+            minimumSpan = -1;
+            super.changedUpdate(e, a, f);
+        }
+    }
+
+    // Glyph painter for one run of simple text: no complex scripts and no
+    // layout attributes, so the font measures it one character at a time.
+    // It keeps the run's font metrics and the advance of each character,
+    // taken from a table shared by all runs in the same font, instead of
+    // looking the metrics up and asking the font again on every call.
+    // Widths are summed in the same order and rounded the same way as in
+    // the stock painter, so lines break in the same places; painting and
+    // hit testing are left to the stock painter.
+    static class RunPainter extends GlyphView.GlyphPainter {
+        private static final float TAB = -1;
+        private static final float NEWLINE = -2;
+        // Document property set once bidi or complex text is inserted
+        // (AbstractDocument.I18NProperty is not public)
+        private static final String I18N = "i18n";
+        // Advances by (font, render context), in pages of 256 characters.
+        // Shared by the layout thread and the EDT: a page is NaN-filled
+        // before it is published, so no reader sees its zeroes.
+        private static final ConcurrentHashMap<Object, AtomicReferenceArray<float[]>> ADVANCES =
+                new ConcurrentHashMap<>();
+
+        private final GlyphView.GlyphPainter stock;
+        private final FontMetrics metrics;
+        private final float[] advances;
+        private final float tab;
+        private final float newline;
+        private final float space;
+
+        private RunPainter(GlyphView.GlyphPainter stock, FontMetrics metrics, AtomicReferenceArray<float[]> table, float[] advances) {
+            this.stock = stock;
+            this.metrics = metrics;
+            this.advances = advances;
+            this.tab = advance(table, metrics, '\t');
+            this.newline = advance(table, metrics, '\n');
+            this.space = advance(table, metrics, ' ');
+        }
+
+        // Returns null when the run has to be left to the stock painter
+        @SuppressWarnings("deprecation")
+        static RunPainter create(GlyphView v, GlyphView.GlyphPainter stock) {
+            Document doc = v.getDocument();
+            if (stock == null || Boolean.TRUE.equals(doc.getProperty(I18N))) return null;
+            Font font = v.getFont();
+            if (font.hasLayoutAttributes()) return null;
+            Container c = v.getContainer();
+            FontMetrics fm = c != null ? c.getFontMetrics(font) : Toolkit.getDefaultToolkit().getFontMetrics(font);
+
+            Element elem = v.getElement();
+            int start = elem.getStartOffset();
+            Segment text = new Segment();
+            try {
+                doc.getText(start, elem.getEndOffset() - start, text);
+            } catch (BadLocationException ex) {
+                return null;
+            }
+            AtomicReferenceArray<float[]> table = ADVANCES.computeIfAbsent(Arrays.asList(font, fm.getFontRenderContext()),
+                    k -> new AtomicReferenceArray<>(256));
+            float[] advances = new float[text.count];
+            for (int i = 0; i < text.count; i++) {
+                char ch = text.array[text.offset + i];
+                if (ch == '\t') {
+                    advances[i] = TAB;
+                } else if (ch == '\n') {
+                    advances[i] = NEWLINE;
+                } else if (isSimple(ch)) {
+                    advances[i] = advance(table, fm, ch);
+                } else {
+                    return null;
+                }
+            }
+            return new RunPainter(stock, fm, table, advances);
+        }
+
+        // Characters outside the ranges FontUtilities treats as complex
+        private static boolean isSimple(char ch) {
+            return ch < 0x0300 || ch >= 0x0370 && ch < 0x0590 || ch >= 0x1E00 && ch < 0x200C
+                    || ch >= 0x200E && ch < 0x202A || ch >= 0x202F && ch < 0x206A || ch >= 0x2070 && ch < 0xD800;
+        }
+
+        // A racing reader of a slot sees NaN (and measures again) or the one
+        // value every thread computes for it
+        private static float advance(AtomicReferenceArray<float[]> table, FontMetrics fm, char ch) {
+            float[] page = table.get(ch >>> 8);
+            if (page == null) {
+                float[] fresh = new float[256];
+                Arrays.fill(fresh, Float.NaN);
+                page = table.compareAndSet(ch >>> 8, null, fresh) ? fresh : table.get(ch >>> 8);
+            }
+            float a = page[ch & 0xFF];
+            if (Float.isNaN(a)) {
+                a = (float) fm.getFont().getStringBounds(new char[]{ch}, 0, 1, fm.getFontRenderContext()).getWidth();
+                page[ch & 0xFF] = a;
+            }
+            return a;
+        }
+
+        // Start offset of the run, or -1 once the view no longer matches the
+        // text this painter was built for
+        private int base(GlyphView v, int p0, int p1) {
+            int start = v.getElement().getStartOffset();
+            return p0 >= start && p1 - start <= advances.length ? start : -1;
+        }
+
+        // Floating point width of count characters from index i
+        private float width(int i, int count) {
+            float w = 0;
+            for (int k = i; k < i + count; k++) {
+                float a = advances[k];
+                w += a == TAB ? tab : a == NEWLINE ? newline : a;
+            }
+            return w;
+        }
+
+        @Override
+        public float getSpan(GlyphView v, int p0, int p1, TabExpander e, float x) {
+            int start = base(v, p0, p1);
+            if (start < 0) return stock.getSpan(v, p0, p1, e, x);
+            // integer widths per stretch between tabs, as FontMetrics.charsWidth
+            float x0 = (int) x;
+            float nextX = x0;
+            float chunk = 0;
+            for (int i = p0 - start; i < p1 - start; i++) {
+                float a = advances[i];
+                if (a >= 0) {
+                    chunk += a;
+                    continue;
+                }
+                nextX += (int) (0.5 + chunk);
+                chunk = 0;
+                if (a == TAB) nextX = e != null ? e.nextTabStop(nextX, start + i) : nextX + (int) (0.5 + space);
+            }
+            nextX += (int) (0.5 + chunk);
+            return (int) (nextX - x0);
+        }
+
+        @Override
+        public float getHeight(GlyphView v) {
+            return metrics.getHeight();
+        }
+
+        @Override
+        public float getAscent(GlyphView v) {
+            return metrics.getAscent();
+        }
+
+        @Override
+        public float getDescent(GlyphView v) {
+            return metrics.getDescent();
+        }
+
+        @Override
+        public int getBoundedPosition(GlyphView v, int p0, float x, float len) {
+            int end = v.getEndOffset();
+            int start = base(v, p0, end);
+            if (start < 0) return stock.getBoundedPosition(v, p0, x, len);
+            float limit = x + len;
+            if (x >= limit) return p0;
+            TabExpander e = v.getTabExpander();
+            float nextX = x;
+            for (int i = p0 - start; i < end - start; i++) {
+                float a = advances[i];
+                if (a == TAB) {
+                    nextX = e != null ? e.nextTabStop(nextX, start + i) : nextX + space;
+                } else {
+                    nextX += a == NEWLINE ? newline : a;
+                }
+                if (limit < nextX) {
+                    // back off while the characters measured as a whole overflow
+                    int offset = i - (p0 - start);
+                    while (offset > 0 && width(p0 - start, offset) > limit - x) offset--;
+                    return p0 + offset;
+                }
+            }
+            return end;
+        }
+
+        @Override
+        public void paint(GlyphView v, Graphics g, Shape a, int p0, int p1) {
+            stock.paint(v, g, a, p0, p1);
+        }
+
+        @Override
+        public Shape modelToView(GlyphView v, int pos, Position.Bias bias, Shape a) throws BadLocationException {
+            return stock.modelToView(v, pos, bias, a);
+        }
+
+        @Override
+        public int viewToModel(GlyphView v, float x, float y, Shape a, Position.Bias[] biasReturn) {
+            return stock.viewToModel(v, x, y, a, biasReturn);
+        }
+
+        @Override
+        public GlyphView.GlyphPainter getPainter(GlyphView v, int p0, int p1) {
+            return this;
+        }
+    }
+
+    // Streaming RTF reader. The file is tokenized once, front to back, with
+    // a stack of group states; text goes to the sink as ElementSpec batches
+    // of whole paragraphs: the first one as soon as about a page has been
+    // read, later ones every BATCH_CHARS. Files that do not start with
+    // {\rtf are read as UTF-8 plain text. Pictures, objects, headers and
+    // other non-body destinations are skipped.
+    static class RtfReader {
+        static final int FIRST_BATCH_CHARS = 4 * 1024;
+        static final int BATCH_CHARS = 64 * 1024;
+
+        private static final int TEXT = 0;
+        private static final int FONT_TABLE = 1;
+        private static final int COLOR_TABLE = 2;
+        private static final int SKIP = 3;
+
+        private static final HashSet<String> SKIPPED = new HashSet<>(Arrays.asList(
+                "stylesheet", "info", "pict", "object", "header", "headerl", "headerr", "headerf",
+                "footer", "footerl", "footerr", "footerf", "footnote", "annotation", "fldinst",
+                "listtable", "listoverridetable", "revtbl", "rsidtbl", "xmlnstbl", "themedata",
+                "colorschememapping", "latentstyles", "datastore", "filetbl", "nonshppict", "shp"));
+
+        static class Batch {
+            final ElementSpec[] specs;
+            final long position;
+
+            Batch(ElementSpec[] specs, long position) {
+                this.specs = specs;
+                this.position = position;
+            }
+        }
+
+        // Formatting in effect inside one {group}; copied on '{' and
+        // dropped on '}'
+        static class State implements Cloneable {
+            int destination = TEXT;
+            boolean bold;
+            boolean italic;
+            boolean underline;
+            boolean strike;
+            int script;
+            int halfPoints = 24;
+            int font = -1;
+            int color;
+            int align = StyleConstants.ALIGN_LEFT;
+            int leftIndent;
+            int rightIndent;
+            int firstIndent;
+            int spaceAbove;
+            int spaceBelow;
+            int unicodeSkip = 1;
+
+            State copy() {
+                try {
+                    return (State) clone();
+                } catch (CloneNotSupportedException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+
+            void plain() {
+                bold = italic = underline = strike = false;
+                script = 0;
+                halfPoints = 24;
+                font = -1;
+                color = 0;
+            }
+
+            void pard() {
+                align = StyleConstants.ALIGN_LEFT;
+                leftIndent = rightIndent = firstIndent = spaceAbove = spaceBelow = 0;
+            }
+
+            // Packs the character formatting into one key for the
+            // attribute cache
+            long charKey() {
+                return (bold ? 1L : 0) | (italic ? 2L : 0) | (underline ? 4L : 0) | (strike ? 8L : 0)
+                        | (long) (script + 1) << 4 | (long) (halfPoints & 0xFFF) << 6
+                        | (long) (font & 0xFFFF) << 18 | (long) (color & 0xFFFF) << 34;
+            }
+        }
+
+        private final InputStream in;
+        private final AttributeSet baseStyle;
+        private final Consumer<Batch> sink;
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos;
+        private int limit;
+        private long position;
+
+        private final ArrayDeque<State> groups = new ArrayDeque<>();
+        private State state = new State();
+        private char[] codePage = codePage(Charset.forName("windows-1252"));
+        private final HashMap<Integer, String> fonts = new HashMap<>();
+        private final ArrayList<Color> colors = new ArrayList<>();
+        private final HashMap<Long, AttributeSet> charAttrs = new HashMap<>();
+        private final StringBuilder tableText = new StringBuilder();
+        private int fontDef;
+        private int defaultFont = -1;
+        private int red = -1;
+        private int green = -1;
+        private int blue = -1;
+        private int pendingSkip;
+
+        private final StringBuilder run = new StringBuilder();
+        private AttributeSet runAttrs;
+        private final ArrayList<ElementSpec> paragraph = new ArrayList<>();
+        private AttributeSet lastParagraph;
+        private final ArrayList<ElementSpec> blankParagraphs = new ArrayList<>();
+        private ArrayList<ElementSpec> batch = new ArrayList<>();
+        private int batchChars;
+        private int batchLimit = FIRST_BATCH_CHARS;
+
+        RtfReader(InputStream in, AttributeSet baseStyle, Consumer<Batch> sink) {
+            this.in = in;
+            this.baseStyle = baseStyle;
+            this.sink = sink;
+        }
+
+        void read() throws IOException {
+            fill();
+            if (!startsWith("{\\rtf")) {
+                readPlain();
+                return;
+            }
+            int c;
+            while ((c = next()) != -1) {
+                switch (c) {
+                    case '{':
+                        groups.push(state);
+                        state = state.copy();
+                        break;
+                    case '}':
+                        if (state.destination == FONT_TABLE && tableText.length() > 0) defineFont();
+                        if (groups.isEmpty()) {
+                            finish();
+                            return;
+                        }
+                        state = groups.pop();
+                        break;
+                    case '\\':
+                        control();
+                        break;
+                    case '\r':
+                    case '\n':
+                        break;
+                    default:
+                        text(c < 0x80 ? (char) c : codePage[c]);
+                }
+            }
+            finish();
+        }
+
+        private void readPlain() throws IOException {
+            Reader reader = new InputStreamReader(new SequenceInputStream(
+                    new ByteArrayInputStream(buf, pos, limit - pos), in), StandardCharsets.UTF_8);
+            position = limit;
+            char[] chunk = new char[8192];
+            int n;
+            while ((n = reader.read(chunk)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    char ch = chunk[i];
+                    if (ch == '\n') {
+                        endParagraph();
+                    } else if (ch != '\r') {
+                        text(ch);
+                    }
+                }
+                position += n;
+            }
+            finish();
+        }
+
+        private void control() throws IOException {
+            int c = next();
+            if (c == -1) return;
+            if (!isLetter(c)) {
+                symbol(c);
+                return;
+            }
+            StringBuilder word = new StringBuilder();
+            while (isLetter(c)) {
+                word.append((char) c);
+                c = next();
+            }
+            boolean negative = c == '-';
+            if (negative) c = next();
+            boolean hasParam = false;
+            int param = 0;
+            while (c >= '0' && c <= '9') {
+                param = param * 10 + c - '0';
+                hasParam = true;
+                c = next();
+            }
+            if (negative) param = -param;
+            if (c != ' ' && c != -1) pos--;
+            word(word.toString(), hasParam, param);
+        }
+
+        private void symbol(int c) throws IOException {
+            switch (c) {
+                case '\\':
+                case '{':
+                case '}':
+                    text((char) c);
+                    break;
+                case '~':
+                    text('\u00A0');
+                    break;
+                case '_':
+                    text('\u2011');
+                    break;
+                case '\'':
+                    int hi = Character.digit(next(), 16);
+                    int lo = Character.digit(next(), 16);
+                    if (hi >= 0 && lo >= 0) text(codePage[hi << 4 | lo]);
+                    break;
+                case '*':
+                    state.destination = SKIP;
+                    break;
+                case '\r':
+                case '\n':
+                    if (state.destination == TEXT) endParagraph();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void word(String word, boolean hasParam, int param) throws IOException {
+            if (word.equals("bin")) {
+                skipBytes(param);
+                return;
+            }
+            if (state.destination == SKIP) return;
+            if (SKIPPED.contains(word)) {
+                state.destination = SKIP;
+                return;
+            }
+            boolean on = !hasParam || param != 0;
+            switch (word) {
+                case "fonttbl":
+                    state.destination = FONT_TABLE;
+                    break;
+                case "deff":
+                    defaultFont = param;
+                    break;
+                case "colortbl":
+                    state.destination = COLOR_TABLE;
+                    break;
+                case "ansicpg":
+                    try {
+                        codePage = codePage(Charset.forName("windows-" + param));
+                    } catch (IllegalArgumentException ex) {
+                        // unknown code page: keep the current one
+                    }
+                    break;
+                case "mac":
+                    codePage = codePage(Charset.forName("x-MacRoman"));
+                    break;
+                case "pc":
+                    codePage = codePage(Charset.forName("IBM437"));
+                    break;
+                case "pca":
+                    codePage = codePage(Charset.forName("IBM850"));
+                    break;
+                case "uc":
+                    state.unicodeSkip = param;
+                    break;
+                case "u":
+                    text((char) param);
+                    pendingSkip = state.unicodeSkip;
+                    break;
+                case "f":
+                    if (state.destination == FONT_TABLE) {
+                        if (tableText.length() > 0) defineFont();
+                        fontDef = param;
+                    } else {
+                        state.font = param;
+                    }
+                    break;
+                case "red":
+                    red = param;
+                    break;
+                case "green":
+                    green = param;
+                    break;
+                case "blue":
+                    blue = param;
+                    break;
+                case "plain":
+                    state.plain();
+                    break;
+                case "b":
+                    state.bold = on;
+                    break;
+                case "i":
+                    state.italic = on;
+                    break;
+                case "ul":
+                case "uld":
+                case "uldb":
+                case "ulw":
+                    state.underline = on;
+                    break;
+                case "ulnone":
+                    state.underline = false;
+                    break;
+                case "strike":
+                    state.strike = on;
+                    break;
+                case "super":
+                    state.script = 1;
+                    break;
+                case "sub":
+                    state.script = -1;
+                    break;
+                case "nosupersub":
+                    state.script = 0;
+                    break;
+                case "fs":
+                    state.halfPoints = hasParam && param > 0 ? Math.min(param, 0xFFF) : 24;
+                    break;
+                case "cf":
+                    state.color = param;
+                    break;
+                case "pard":
+                    state.pard();
+                    break;
+                case "ql":
+                    state.align = StyleConstants.ALIGN_LEFT;
+                    break;
+                case "qc":
+                    state.align = StyleConstants.ALIGN_CENTER;
+                    break;
+                case "qr":
+                    state.align = StyleConstants.ALIGN_RIGHT;
+                    break;
+                case "qj":
+                    state.align = StyleConstants.ALIGN_JUSTIFIED;
+                    break;
+                case "li":
+                    state.leftIndent = param;
+                    break;
+                case "ri":
+                    state.rightIndent = param;
+                    break;
+                case "fi":
+                    state.firstIndent = param;
+                    break;
+                // RTFEditorKit, which writes our files, takes \sa as the space
+                // above a paragraph and \sb as the space below; read them the
+                // same way so a saved document reopens unchanged
+                case "sa":
+                    state.spaceAbove = param;
+                    break;
+                case "sb":
+                    state.spaceBelow = param;
+                    break;
+                case "par":
+                case "line":
+                case "page":
+                case "row":
+                    if (state.destination == TEXT) endParagraph();
+                    break;
+                case "tab":
+                case "cell":
+                    text('\t');
+                    break;
+                case "emdash":
+                    text('\u2014');
+                    break;
+                case "endash":
+                    text('\u2013');
+                    break;
+                case "bullet":
+                    text('\u2022');
+                    break;
+                case "lquote":
+                    text('\u2018');
+                    break;
+                case "rquote":
+                    text('\u2019');
+                    break;
+                case "ldblquote":
+                    text('\u201C');
+                    break;
+                case "rdblquote":
+                    text('\u201D');
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void text(char ch) {
+            if (pendingSkip > 0) {
+                pendingSkip--;
+                return;
+            }
+            switch (state.destination) {
+                case TEXT:
+                    AttributeSet attrs = charAttributes();
+                    if (attrs != runAttrs) {
+                        flushRun();
+                        runAttrs = attrs;
+                    }
+                    run.append(ch);
+                    break;
+                case FONT_TABLE:
+                    if (ch == ';') {
+                        defineFont();
+                    } else {
+                        tableText.append(ch);
+                    }
+                    break;
+                case COLOR_TABLE:
+                    if (ch == ';') {
+                        colors.add(red < 0 && green < 0 && blue < 0 ? null
+                                : new Color(Math.max(red, 0) & 0xFF, Math.max(green, 0) & 0xFF, Math.max(blue, 0) & 0xFF));
+                        red = green = blue = -1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void defineFont() {
+            String name = tableText.toString().trim();
+            if (!name.isEmpty()) fonts.put(fontDef, name);
+            tableText.setLength(0);
+        }
+
+        // Every attribute is set explicitly, as RTFEditorKit's own reader
+        // does: its writer only emits what changes between runs, and never
+        // resets an attribute that is merely absent
+        private AttributeSet charAttributes() {
+            long key = state.charKey();
+            AttributeSet cached = charAttrs.get(key);
+            if (cached != null) return cached;
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            String family = fonts.get(state.font < 0 ? defaultFont : state.font);
+            if (family != null) StyleConstants.setFontFamily(attrs, family);
+            StyleConstants.setFontSize(attrs, state.halfPoints / 2);
+            StyleConstants.setBold(attrs, state.bold);
+            StyleConstants.setItalic(attrs, state.italic);
+            StyleConstants.setUnderline(attrs, state.underline);
+            StyleConstants.setStrikeThrough(attrs, state.strike);
+            StyleConstants.setSuperscript(attrs, state.script > 0);
+            StyleConstants.setSubscript(attrs, state.script < 0);
+            Color color = state.color < colors.size() ? colors.get(state.color) : null;
+            StyleConstants.setForeground(attrs, color == null ? Color.BLACK : color);
+            charAttrs.put(key, attrs);
+            return attrs;
+        }
+
+        private AttributeSet paragraphAttributes() {
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            if (baseStyle != null) attrs.setResolveParent(baseStyle);
+            StyleConstants.setAlignment(attrs, state.align);
+            StyleConstants.setLeftIndent(attrs, state.leftIndent / 20f);
+            StyleConstants.setRightIndent(attrs, state.rightIndent / 20f);
+            StyleConstants.setFirstLineIndent(attrs, state.firstIndent / 20f);
+            StyleConstants.setSpaceAbove(attrs, state.spaceAbove / 20f);
+            StyleConstants.setSpaceBelow(attrs, state.spaceBelow / 20f);
+            if (lastParagraph != null && lastParagraph.isEqual(attrs)) return lastParagraph;
+            lastParagraph = attrs;
+            return attrs;
+        }
+
+        private void flushRun() {
+            if (run.length() == 0) return;
+            char[] chars = run.toString().toCharArray();
+            paragraph.add(new ElementSpec(runAttrs, ElementSpec.ContentType, chars, 0, chars.length));
+            batchChars += chars.length;
+            run.setLength(0);
+        }
+
+        // Closes the paragraph with the properties in effect at its end, as
+        // RTF defines them, and hands the batch over once it is big enough.
+        // Blank paragraphs are held back until more text follows: the
+        // document always ends in an implicit empty paragraph, which
+        // RTFEditorKit writes out as a final \par, so the last blank one
+        // is dropped rather than doubled on every save and reopen.
+        private void endParagraph() {
+            boolean blank = paragraph.isEmpty() && run.length() == 0;
+            if (runAttrs == null) runAttrs = charAttributes();
+            run.append('\n');
+            flushRun();
+            ArrayList<ElementSpec> target = blank ? blankParagraphs : batch;
+            if (!blank && !blankParagraphs.isEmpty()) {
+                batch.addAll(blankParagraphs);
+                blankParagraphs.clear();
+            }
+            target.add(new ElementSpec(null, ElementSpec.EndTagType));
+            target.add(new ElementSpec(paragraphAttributes(), ElementSpec.StartTagType));
+            target.addAll(paragraph);
+            paragraph.clear();
+            if (batchChars >= batchLimit) flushBatch();
+        }
+
+        private void flushBatch() {
+            if (batch.isEmpty()) return;
+            sink.accept(new Batch(batch.toArray(new ElementSpec[0]), position - (limit - pos)));
+            batch = new ArrayList<>();
+            batchChars = 0;
+            batchLimit = BATCH_CHARS;
+        }
+
+        private void finish() {
+            flushRun();
+            if (!paragraph.isEmpty()) endParagraph();
+            int blanks = blankParagraphs.size();
+            if (blanks > 0) batch.addAll(blankParagraphs.subList(0, blanks - 3));
+            flushBatch();
+        }
+
+        private boolean startsWith(String prefix) {
+            int at = pos;
+            while (at < limit && Character.isWhitespace(buf[at])) at++;
+            if (limit - at < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (buf[at + i] != prefix.charAt(i)) return false;
+            }
+            pos = at;
+            return true;
+        }
+
+        private int next() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return buf[pos++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            pos = 0;
+            limit = n;
+            position += n;
+            return true;
+        }
+
+        private void skipBytes(int count) throws IOException {
+            for (int i = 0; i < count && next() != -1; i++) {
+                // binary payload of a skipped destination
+            }
+        }
+
+        private static boolean isLetter(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+
+        private static char[] codePage(Charset charset) {
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                bytes[i] = (byte) i;
+            }
+            char[] table = new char[256];
+            try {
+                CharBuffer chars = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(ByteBuffer.wrap(bytes));
+                if (chars.remaining() == 256) chars.get(table);
+            } catch (java.nio.charset.CharacterCodingException ex) {
+                // REPLACE never throws
+            }
+            for (int i = 0; i < 256; i++) {
+                if (table[i] == 0 && i != 0) table[i] = i < 0x80 ? (char) i : '\uFFFD';
+            }
+            return table;
+        }
+    }
+
+    // Snapshot of a document in the shape of the native .swd format. It is
+    // taken on the EDT under the read lock (text, run and paragraph tables,
+    // attribute sets) and written out on a worker thread.
+    //
+    // File layout, big-endian:
+    //   header      magic, version, table sizes and section offsets
+    //   text        UTF-8, paragraph after paragraph, newlines included,
+    //               grouped into chunks of whole paragraphs
+    //   attributes  every distinct attribute set once, as typed key/value pairs
+    //   runs        (length in chars, attribute) per character run
+    //   paragraphs  (text byte offset, char offset, first run, attribute) per
+    //               paragraph; fixed size, so entry n is found without a scan
+    //   chunks      first paragraph of every chunk
+    //
+    // The text comes first so it can be streamed out before its tables are
+    // complete; the header is written last.
+    static class SwdWriter {
+        private static final int BUFFER_BYTES = 1 << 20;
+
+        private char[] text;
+        private int paragraphCount;
+        private int[] paragraphStarts;
+        private int[] paragraphAttrs;
+        private int[] paragraphRuns;
+        private int runCount;
+        private int[] runLengths = new int[1024];
+        private int[] runAttrs = new int[1024];
+        private final ArrayList<byte[]> attributes = new ArrayList<>();
+
+        static SwdWriter snapshot(Document doc) {
+            SwdWriter writer = new SwdWriter();
+            doc.render(() -> writer.capture(doc));
+            return writer;
+        }
+
+        private void capture(Document doc) {
+            // Every document ends in a newline that getLength() leaves out
+            int length = doc.getLength();
+            text = new char[length + 1];
+            Segment segment = new Segment();
+            try {
+                doc.getText(0, length, segment);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            System.arraycopy(segment.array, segment.offset, text, 0, length);
+            text[length] = '\n';
+
+            // Element attributes are pooled by the StyleContext, so their
+            // immutable copies are shared and can be matched by identity
+            IdentityHashMap<AttributeSet, Integer> known = new IdentityHashMap<>();
+            HashMap<ByteBuffer, Integer> distinct = new HashMap<>();
+            Element root = doc.getDefaultRootElement();
+            paragraphCount = root.getElementCount();
+            paragraphStarts = new int[paragraphCount];
+            paragraphAttrs = new int[paragraphCount];
+            paragraphRuns = new int[paragraphCount];
+            for (int p = 0; p < paragraphCount; p++) {
+                Element paragraph = root.getElement(p);
+                paragraphStarts[p] = paragraph.getStartOffset();
+                paragraphAttrs[p] = attribute(paragraph.getAttributes(), known, distinct);
+                paragraphRuns[p] = runCount;
+                for (int i = 0; i < paragraph.getElementCount(); i++) {
+                    Element run = paragraph.getElement(i);
+                    if (runCount == runLengths.length) {
+                        runLengths = Arrays.copyOf(runLengths, runCount * 2);
+                        runAttrs = Arrays.copyOf(runAttrs, runCount * 2);
+                    }
+                    runLengths[runCount] = run.getEndOffset() - run.getStartOffset();
+                    runAttrs[runCount++] = attribute(run.getAttributes(), known, distinct);
+                }
+            }
+        }
+
+        private int attribute(AttributeSet attrs, IdentityHashMap<AttributeSet, Integer> known,
+                HashMap<ByteBuffer, Integer> distinct) {
+            AttributeSet shared = attrs.copyAttributes();
+            Integer index = known.get(shared);
+            if (index == null) {
+                byte[] encoded = encode(shared);
+                index = distinct.get(ByteBuffer.wrap(encoded));
+                if (index == null) {
+                    index = attributes.size();
+                    attributes.add(encoded);
+                    distinct.put(ByteBuffer.wrap(encoded), index);
+                }
+                known.put(shared, index);
+            }
+            return index;
+        }
+
+        // Only attributes defined on the set itself, in SwdFile.KEYS order,
+        // so equal sets always encode to the same bytes. The paragraph
+        // style they resolve through is the document's default style,
+        // which the reader reattaches.
+        private static byte[] encode(AttributeSet attrs) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                for (int k = 0; k < SwdFile.KEYS.length; k++) {
+                    if (!attrs.isDefined(SwdFile.KEYS[k])) continue;
+                    Object value = attrs.getAttribute(SwdFile.KEYS[k]);
+                    if (value instanceof String) {
+                        byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                        if (utf8.length > 0xFFFF) continue;
+                        out.writeByte(k);
+                        out.writeByte('S');
+                        out.writeShort(utf8.length);
+                        out.write(utf8);
+                    } else if (value instanceof Boolean) {
+                        out.writeByte(k);
+                        out.writeByte('Z');
+                        out.writeBoolean((Boolean) value);
+                    } else if (value instanceof Integer) {
+                        out.writeByte(k);
+                        out.writeByte('I');
+                        out.writeInt((Integer) value);
+                    } else if (value instanceof Float) {
+                        out.writeByte(k);
+                        out.writeByte('F');
+                        out.writeFloat((Float) value);
+                    } else if (value instanceof Color) {
+                        out.writeByte(k);
+                        out.writeByte('C');
+                        out.writeInt(((Color) value).getRGB());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new AssertionError(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        // Writes to a hidden file next to the target (SimpleWord runs one save
+        // at a time), forces it to disk and renames it over the target, so a
+        // failed save leaves the old file
+        void write(Path target) throws IOException {
+            target = target.toAbsolutePath();
+            Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    write(out);
+                    out.force(true);
+                }
+                if (Files.exists(target)) {
+                    try {
+                        Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                    } catch (UnsupportedOperationException ex) {
+                        // not a POSIX file system
+                    }
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void write(FileChannel out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            long[] paragraphBytes = new long[paragraphCount];
+            int[] chunks = new int[16];
+            int chunkCount = 0;
+            int chunkChars = SwdFile.CHUNK_CHARS;
+
+            out.position(SwdFile.HEADER_BYTES);
+            long textBytes = 0;
+            for (int p = 0; p < paragraphCount; p++) {
+                if (chunkChars >= SwdFile.CHUNK_CHARS) {
+                    if (chunkCount == chunks.length) chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                    chunks[chunkCount++] = p;
+                    chunkChars = 0;
+                }
+                paragraphBytes[p] = textBytes + buffer.position();
+                int from = paragraphStarts[p];
+                int to = p + 1 < paragraphCount ? paragraphStarts[p + 1] : text.length;
+                chunkChars += to - from;
+                while (from < to) {
+                    // At most three bytes per char; a surrogate pair is never split
+                    if (buffer.remaining() < 6) textBytes += flush(buffer, out);
+                    int n = Math.min(to - from, buffer.remaining() / 3);
+                    if (n < to - from && Character.isHighSurrogate(text[from + n - 1])) n--;
+                    buffer.position(utf8(text, from, from + n, buffer.array(), buffer.position()));
+                    from += n;
+                }
+            }
+            textBytes += flush(buffer, out);
+
+            long attrOffset = out.position();
+            for (byte[] attrs : attributes) {
+                if (buffer.remaining() < 4 + attrs.length) flush(buffer, out);
+                buffer.putInt(attrs.length).put(attrs);
+            }
+            long runOffset = out.position() + buffer.position();
+            for (int r = 0; r < runCount; r++) {
+                if (buffer.remaining() < SwdFile.RUN_BYTES) flush(buffer, out);
+                buffer.putInt(runLengths[r]).putInt(runAttrs[r]);
+            }
+            long paragraphOffset = out.position() + buffer.position();
+            for (int p = 0; p < paragraphCount; p++) {
+                if (buffer.remaining() < SwdFile.PARAGRAPH_BYTES) flush(buffer, out);
+                buffer.putLong(paragraphBytes[p]).putInt(paragraphStarts[p]).putInt(paragraphRuns[p]).putInt(paragraphAttrs[p]);
+            }
+            long chunkOffset = out.position() + buffer.position();
+            for (int c = 0; c < chunkCount; c++) {
+                if (buffer.remaining() < 4) flush(buffer, out);
+                buffer.putInt(chunks[c]);
+            }
+            flush(buffer, out);
+
+            buffer.putInt(SwdFile.MAGIC).putInt(SwdFile.VERSION)
+                    .putInt(attributes.size()).putInt(paragraphCount).putInt(runCount).putInt(chunkCount)
+                    .putLong(text.length).putLong(textBytes)
+                    .putLong(SwdFile.HEADER_BYTES).putLong(attrOffset).putLong(runOffset)
+                    .putLong(paragraphOffset).putLong(chunkOffset);
+            buffer.flip();
+            for (long at = 0; buffer.hasRemaining(); ) {
+                at += out.write(buffer, at);
+            }
+        }
+
+        private static int flush(ByteBuffer buffer, FileChannel out) throws IOException {
+            buffer.flip();
+            int n = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            return n;
+        }
+
+        // Lone surrogates become '?', one byte for one char, so the char
+        // counts in the tables stay exact
+        private static int utf8(char[] text, int from, int to, byte[] out, int pos) {
+            for (int i = from; i < to; i++) {
+                char c = text[i];
+                if (c < 0x80) {
+                    out[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[pos++] = (byte) (0xC0 | c >> 6);
+                    out[pos++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text[i + 1])) {
+                        int cp = Character.toCodePoint(c, text[++i]);
+                        out[pos++] = (byte) (0xF0 | cp >> 18);
+                        out[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                        out[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                        out[pos++] = (byte) (0x80 | cp & 0x3F);
+                    } else {
+                        out[pos++] = '?';
+                    }
+                } else {
+                    out[pos++] = (byte) (0xE0 | c >> 12);
+                    out[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    out[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return pos;
+        }
+    }
+
+    // Reads .swd files (see SwdWriter for the layout). The file is mapped
+    // rather than read: opening it decodes the header and the attribute
+    // table only, and paragraphs(from, to) decodes the text and runs of
+    // just that range, so any part of a document can be turned into
+    // element specs without parsing what comes before it.
+    static class SwdFile {
+        static final int MAGIC = 0x53574446; // "SWDF"
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 80;
+        static final int CHUNK_CHARS = 64 * 1024;
+        static final int RUN_BYTES = 8;
+        static final int PARAGRAPH_BYTES = 20;
+
+        // Attribute keys by their number in the file; only ever appended to
+        static final Object[] KEYS = {
+                StyleConstants.FontFamily, StyleConstants.FontSize, StyleConstants.Bold, StyleConstants.Italic,
+                StyleConstants.Underline, StyleConstants.StrikeThrough, StyleConstants.Superscript,
+                StyleConstants.Subscript, StyleConstants.Foreground, StyleConstants.Background,
+                StyleConstants.Alignment, StyleConstants.FirstLineIndent, StyleConstants.LeftIndent,
+                StyleConstants.RightIndent, StyleConstants.SpaceAbove, StyleConstants.SpaceBelow,
+                StyleConstants.LineSpacing
+        };
+
+        private final MappedByteBuffer text;
+        private final MappedByteBuffer tables;
+        private final long textOffset;
+        private final int textChars;
+        private final int textBytes;
+        private final int paragraphCount;
+        private final int runCount;
+        private final int chunkCount;
+        private final int runBase;
+        private final int paragraphBase;
+        private final int chunkBase;
+        private final AttributeSet[] runFormats;
+        private final AttributeSet[] paragraphFormats;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        static boolean matches(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                return in.readInt() == MAGIC;
+            } catch (EOFException ex) {
+                return false;
+            }
+        }
+
+        SwdFile(Path path, AttributeSet baseStyle) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                    // the header is tiny; this loops at most a couple of times
+                }
+                header.flip();
+                if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                    throw new IOException("Not a Simple Word document");
+                }
+                if (header.getInt() != VERSION) throw new IOException("Unsupported document version");
+                int attrCount = header.getInt();
+                paragraphCount = header.getInt();
+                runCount = header.getInt();
+                chunkCount = header.getInt();
+                long chars = header.getLong();
+                long bytes = header.getLong();
+                textOffset = header.getLong();
+                long attrOffset = header.getLong();
+                long runOffset = header.getLong();
+                long paragraphOffset = header.getLong();
+                long chunkOffset = header.getLong();
+                if (attrCount < 0 || paragraphCount < 1 || runCount < 1 || chunkCount < 1
+                        || chars < 1 || chars >= Integer.MAX_VALUE || bytes < chars || bytes > Integer.MAX_VALUE
+                        || textOffset < HEADER_BYTES || textOffset + bytes > attrOffset || attrOffset > runOffset
+                        || runOffset + (long) runCount * RUN_BYTES > paragraphOffset
+                        || paragraphOffset + (long) paragraphCount * PARAGRAPH_BYTES > chunkOffset
+                        || chunkOffset + chunkCount * 4L > size || size - attrOffset > Integer.MAX_VALUE) {
+                    throw corrupt();
+                }
+                textChars = (int) chars;
+                textBytes = (int) bytes;
+                runBase = (int) (runOffset - attrOffset);
+                paragraphBase = (int) (paragraphOffset - attrOffset);
+                chunkBase = (int) (chunkOffset - attrOffset);
+                text = channel.map(FileChannel.MapMode.READ_ONLY, textOffset, textBytes);
+                tables = channel.map(FileChannel.MapMode.READ_ONLY, attrOffset, size - attrOffset);
+
+                runFormats = new AttributeSet[attrCount];
+                paragraphFormats = new AttributeSet[attrCount];
+                int at = 0;
+                for (int i = 0; i < attrCount; i++) {
+                    if (runBase - at < 4) throw corrupt();
+                    int length = tables.getInt(at);
+                    if (length < 0 || length > runBase - at - 4) throw corrupt();
+                    SimpleAttributeSet attrs = readAttributes(tables.slice(at + 4, length));
+                    runFormats[i] = attrs;
+                    SimpleAttributeSet paragraph = new SimpleAttributeSet(attrs);
+                    if (baseStyle != null) paragraph.setResolveParent(baseStyle);
+                    paragraphFormats[i] = paragraph;
+                    at += 4 + length;
+                }
+            }
+        }
+
+        private static SimpleAttributeSet readAttributes(ByteBuffer in) throws IOException {
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            try {
+                while (in.hasRemaining()) {
+                    int key = in.get() & 0xFF;
+                    Object value;
+                    switch (in.get()) {
+                        case 'S':
+                            byte[] utf8 = new byte[in.getShort() & 0xFFFF];
+                            in.get(utf8);
+                            value = new String(utf8, StandardCharsets.UTF_8);
+                            break;
+                        case 'Z':
+                            value = in.get() != 0;
+                            break;
+                        case 'I':
+                            value = in.getInt();
+                            break;
+                        case 'F':
+                            value = in.getFloat();
+                            break;
+                        case 'C':
+                            value = new Color(in.getInt(), true);
+                            break;
+                        default:
+                            throw corrupt();
+                    }
+                    // Keys added by a newer version are skipped
+                    if (key < KEYS.length) attrs.addAttribute(KEYS[key], value);
+                }
+            } catch (BufferUnderflowException ex) {
+                throw corrupt();
+            }
+            return attrs;
+        }
+
+        private static IOException corrupt() {
+            return new IOException("Damaged Simple Word document");
+        }
+
+        int getChunkCount() {
+            return chunkCount;
+        }
+
+        // Formatting of the document's closing paragraph and of its newline,
+        // which paragraphs() leaves out; see BatchDocument.formatLastParagraph
+        AttributeSet getLastParagraph() throws IOException {
+            return paragraphFormat(paragraphCount - 1);
+        }
+
+        AttributeSet getLastNewline() throws IOException {
+            return runFormat(runCount - 1);
+        }
+
+        // The paragraphs of chunk i; its position is where the chunk's text
+        // ends in the file, for progress reporting
+        RtfReader.Batch chunk(int i) throws IOException {
+            int from = chunkStart(i);
+            int to = i + 1 < chunkCount ? chunkStart(i + 1) : paragraphCount;
+            if (from >= to) throw corrupt();
+            return new RtfReader.Batch(paragraphs(from, to), textOffset + (to < paragraphCount ? paragraphByte(to) : textBytes));
+        }
+
+        // Element specs appending paragraphs [from, to) to a document that
+        // holds the paragraphs before them. The closing paragraph of the
+        // document is joined to the one every document already ends with.
+        ElementSpec[] paragraphs(int from, int to) throws IOException {
+            int byteStart = paragraphByte(from);
+            int byteEnd = to < paragraphCount ? paragraphByte(to) : textBytes;
+            int charStart = paragraphChar(from);
+            int charEnd = to < paragraphCount ? paragraphChar(to) : textChars;
+            if (byteStart > byteEnd || charStart > charEnd) throw corrupt();
+
+            byte[] bytes = new byte[byteEnd - byteStart];
+            text.get(byteStart, bytes);
+            char[] chars = new char[charEnd - charStart];
+            CharBuffer decoded = CharBuffer.wrap(chars);
+            ByteBuffer encoded = ByteBuffer.wrap(bytes);
+            CoderResult result = decoder.reset().decode(encoded, decoded, true);
+            if (result.isUnderflow()) result = decoder.flush(decoded);
+            if (!result.isUnderflow() || encoded.hasRemaining() || decoded.hasRemaining()) throw corrupt();
+
+            ArrayList<ElementSpec> specs = new ArrayList<>((to - from) * 3);
+            for (int p = from; p < to; p++) {
+                int start = paragraphChar(p) - charStart;
+                int end = (p + 1 < to ? paragraphChar(p + 1) : charEnd) - charStart;
+                int firstRun = paragraphRun(p);
+                int lastRun = p + 1 < paragraphCount ? paragraphRun(p + 1) : runCount;
+                if (start >= end || firstRun >= lastRun || lastRun > runCount || chars[end - 1] != '\n') {
+                    throw corrupt();
+                }
+                boolean closing = p == paragraphCount - 1;
+                int limit = closing ? end - 1 : end;
+                // At the very start there is nothing to join from; the text
+                // simply goes into the closing paragraph
+                if (limit > start && !(closing && p == 0)) {
+                    ElementSpec tag = new ElementSpec(paragraphFormat(p), ElementSpec.StartTagType);
+                    if (closing) tag.setDirection(ElementSpec.JoinNextDirection);
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    specs.add(tag);
+                }
+                int at = start;
+                for (int r = firstRun; r < lastRun; r++) {
+                    int length = tables.getInt(runBase + r * RUN_BYTES);
+                    if (length <= 0 || length > end - at) throw corrupt();
+                    int n = Math.min(length, limit - at);
+                    // ElementSpec copies the whole array it is given, so every
+                    // run gets its own
+                    if (n > 0) {
+                        specs.add(new ElementSpec(runFormat(r), ElementSpec.ContentType,
+                                Arrays.copyOfRange(chars, at, at + n), 0, n));
+                    }
+                    at += length;
+                }
+                if (at != end) throw corrupt();
+            }
+            return specs.toArray(new ElementSpec[0]);
+        }
+
+        private int chunkStart(int i) throws IOException {
+            int first = tables.getInt(chunkBase + i * 4);
+            if (first < 0 || first >= paragraphCount) throw corrupt();
+            return first;
+        }
+
+        private int paragraphByte(int p) throws IOException {
+            long at = tables.getLong(paragraphBase + p * PARAGRAPH_BYTES);
+            if (at < 0 || at > textBytes) throw corrupt();
+            return (int) at;
+        }
+
+        private int paragraphChar(int p) throws IOException {
+            int at = tables.getInt(paragraphBase + p * PARAGRAPH_BYTES + 8);
+            if (at < 0 || at > textChars) throw corrupt();
+            return at;
+        }
+
+        private int paragraphRun(int p) throws IOException {
+            int run = tables.getInt(paragraphBase + p * PARAGRAPH_BYTES + 12);
+            if (run < 0 || run > runCount) throw corrupt();
+            return run;
+        }
+
+        private AttributeSet paragraphFormat(int p) throws IOException {
+            int index = tables.getInt(paragraphBase + p * PARAGRAPH_BYTES + 16);
+            if (index < 0 || index >= paragraphFormats.length) throw corrupt();
+            return paragraphFormats[index];
+        }
+
+        private AttributeSet runFormat(int r) throws IOException {
+            int index = tables.getInt(runBase + r * RUN_BYTES + 4);
+            if (index < 0 || index >= runFormats.length) throw corrupt();
+            return runFormats[index];
+        }
+    }
 }
@@ -1,12 +1,91 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainView;
+import javax.swing.text.Segment;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class TextEditor extends JFrame {
 
+    // Files above this size open in large file mode
+    private static final long LARGE_FILE_BYTES = 16L << 20;
+    private static final int AUTOSAVE_MILLIS = 30_000;
+    private static final Charset[] ENCODINGS = {StandardCharsets.UTF_8, StandardCharsets.UTF_16LE,
+            StandardCharsets.UTF_16BE, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII};
+    private static final String[] SYNTAX_NAMES = {"Plain", "Log", "JSON", "Properties", "Java"};
+    private static final Lexer[] SYNTAXES = {null, new LogLexer(), new JsonLexer(), new PropertiesLexer(), new JavaLexer()};
+
     private JTextArea textArea;
     private JFileChooser fileDialog;
+    private JScrollPane scroller;
+    private JLabel status;
+    private LargeFileView largeView;
+    private FindDialog findDialog;
+    private final UndoManager undoManager = new UndoManager();
+    // Collects document edits into one undo step while non-null
+    private CompoundEdit pendingEdit;
+    private int textVersion;
+
+    private File currentFile;
+    private Charset charset = StandardCharsets.UTF_8;
+    private boolean writeBom;
+    private final HashMap<Charset, JRadioButtonMenuItem> encodingItems = new HashMap<>();
+    private JCheckBoxMenuItem autosaveItem;
+    private final SaveService saver = new SaveService();
+    private int savedVersion;
+    // Version last written to the recovery file, so an idle dirty document
+    // is not rewritten on every tick
+    private int autosavedVersion = -1;
+    private int savesInFlight;
+
+    private SyntaxHighlighting highlighting;
+    private Lexer lexer;
+    private final JRadioButtonMenuItem[] syntaxItems = new JRadioButtonMenuItem[SYNTAXES.length];
 
     public TextEditor() {
         setTitle("Basic Notepad");
@@ -15,11 +94,28 @@ public class TextEditor extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
 
         textArea = new JTextArea();
-        add(new JScrollPane(textArea), BorderLayout.CENTER);
+        highlighting = new SyntaxHighlighting(textArea);
+        textArea.setUI(new BasicTextAreaUI() {
+            @Override
+            public View create(Element elem) {
+                return new HighlightView(elem, highlighting);
+            }
+        });
+        watchDocument(textArea.getDocument());
+        textArea.addPropertyChangeListener("document", e -> watchDocument(textArea.getDocument()));
+        scroller = new JScrollPane(textArea);
+        add(scroller, BorderLayout.CENTER);
+
+        status = new JLabel(" ");
+        status.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        add(status, BorderLayout.SOUTH);
 
         fileDialog = new JFileChooser();
 
         setupMenu();
+        updateTitle();
+
+        new Timer(AUTOSAVE_MILLIS, e -> autosave()).start();
     }
 
     private void setupMenu() {
@@ -29,43 +125,403 @@ public class TextEditor extends JFrame {
         JMenuItem newDoc = new JMenuItem("New");
         JMenuItem openDoc = new JMenuItem("Open");
         JMenuItem saveDoc = new JMenuItem("Save");
+        JMenuItem saveAs = new JMenuItem("Save As...");
+        JMenu encoding = new JMenu("Encoding");
+        autosaveItem = new JCheckBoxMenuItem("Autosave", true);
         JMenuItem quit = new JMenuItem("Exit");
 
-        newDoc.addActionListener(e -> textArea.setText(""));
+        saveDoc.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK));
+
+        newDoc.addActionListener(e -> newDocument());
         openDoc.addActionListener(e -> loadText());
         saveDoc.addActionListener(e -> storeText());
+        saveAs.addActionListener(e -> storeTextAs());
         quit.addActionListener(e -> System.exit(0));
 
+        ButtonGroup encodings = new ButtonGroup();
+        for (Charset cs : ENCODINGS) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(cs.name());
+            item.addActionListener(e -> setEncoding(cs));
+            encodings.add(item);
+            encoding.add(item);
+            encodingItems.put(cs, item);
+        }
+        encodingItems.get(charset).setSelected(true);
+
         fileMenu.add(newDoc);
         fileMenu.add(openDoc);
         fileMenu.add(saveDoc);
+        fileMenu.add(saveAs);
+        fileMenu.addSeparator();
+        fileMenu.add(encoding);
+        fileMenu.add(autosaveItem);
         fileMenu.addSeparator();
         fileMenu.add(quit);
 
+        JMenu editMenu = new JMenu("Edit");
+
+        JMenuItem undoItem = new JMenuItem("Undo");
+        JMenuItem redoItem = new JMenuItem("Redo");
+        JMenuItem findItem = new JMenuItem("Find / Replace...");
+
+        undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        findItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
+
+        undoItem.addActionListener(e -> undo());
+        redoItem.addActionListener(e -> redo());
+        findItem.addActionListener(e -> showFindDialog());
+
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+        editMenu.addSeparator();
+        editMenu.add(findItem);
+
+        JMenu viewMenu = new JMenu("View");
+        JMenu syntax = new JMenu("Syntax");
+        ButtonGroup syntaxes = new ButtonGroup();
+        for (int i = 0; i < SYNTAXES.length; i++) {
+            Lexer choice = SYNTAXES[i];
+            syntaxItems[i] = new JRadioButtonMenuItem(SYNTAX_NAMES[i], i == 0);
+            syntaxItems[i].addActionListener(e -> setSyntax(choice));
+            syntaxes.add(syntaxItems[i]);
+            syntax.add(syntaxItems[i]);
+        }
+        viewMenu.add(syntax);
+
         bar.add(fileMenu);
+        bar.add(editMenu);
+        bar.add(viewMenu);
         setJMenuBar(bar);
     }
 
+    // Undo history and change counter for the text area's document; read()
+    // installs a fresh document, so this runs again whenever it does
+    private void watchDocument(Document doc) {
+        undoManager.discardAllEdits();
+        textVersion++;
+        highlighting.setDocument(doc);
+        doc.addUndoableEditListener(e -> {
+            if (pendingEdit != null) pendingEdit.addEdit(e.getEdit()); else undoManager.addEdit(e.getEdit());
+        });
+        doc.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                textVersion++;
+                updateTitle();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                textVersion++;
+                updateTitle();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+    }
+
+    private void undo() {
+        if (largeView != null) {
+            largeView.undo();
+        } else if (undoManager.canUndo()) {
+            undoManager.undo();
+        }
+    }
+
+    private void redo() {
+        if (largeView != null) {
+            largeView.redo();
+        } else if (undoManager.canRedo()) {
+            undoManager.redo();
+        }
+    }
+
+    private void showFindDialog() {
+        if (findDialog == null) findDialog = new FindDialog(this);
+        findDialog.setVisible(true);
+    }
+
+    // Snapshot of the current document for a background search
+    private SearchSource searchSource() {
+        if (largeView != null) return new SnapshotSource(largeView.getTable().snapshot());
+        return new StringSource(textArea.getText(), textVersion);
+    }
+
+    private boolean canEdit() {
+        return largeView == null || largeView.getTable().isEditable();
+    }
+
+    private void selectMatch(SearchHit hit) {
+        if (largeView != null) {
+            largeView.select(hit.start, hit.end);
+        } else if (hit.end <= textArea.getDocument().getLength()) {
+            textArea.select((int) hit.start, (int) hit.end);
+            textArea.getCaret().setSelectionVisible(true);
+        }
+    }
+
+    // Applies a replace-all as one document edit and one undo step; returns
+    // false if the document changed after the search took its snapshot
+    private boolean applyReplace(ReplacePlan plan) {
+        if (plan.count == 0) return true;
+        if (largeView != null) {
+            if (!(plan.source instanceof SnapshotSource)) return false;
+            Snapshot snapshot = ((SnapshotSource) plan.source).snapshot;
+            PieceTable.Piece[] pieces = ((PieceRewrite) plan.rewrite).pieces.toArray(new PieceTable.Piece[0]);
+            if (!largeView.getTable().replaceAll(snapshot, pieces)) return false;
+            largeView.changedAt(plan.first);
+            return true;
+        }
+        if (!(plan.source instanceof StringSource) || plan.source.version() != textVersion) return false;
+        int first = (int) plan.first;
+        int last = (int) plan.last;
+        StringBuilder text = ((StringRewrite) plan.rewrite).text;
+        String middle = text.substring(first, text.length() - (int) (plan.source.length() - last));
+        CompoundEdit group = new CompoundEdit();
+        pendingEdit = group;
+        try {
+            ((AbstractDocument) textArea.getDocument()).replace(first, last - first, middle, null);
+        } catch (BadLocationException e) {
+            return false;
+        } finally {
+            pendingEdit = null;
+            group.end();
+            undoManager.addEdit(group);
+        }
+        textArea.setCaretPosition(first);
+        return true;
+    }
+
+    private void newDocument() {
+        closeLargeFile();
+        textArea.setText("");
+        opened(null, StandardCharsets.UTF_8, false);
+    }
+
     private void loadText() {
         if (fileDialog.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fileDialog.getSelectedFile();
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                textArea.read(reader, null);
+            if (file.length() > LARGE_FILE_BYTES) {
+                openLargeFile(file);
+                return;
+            }
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                closeLargeFile();
+                // read() records the file's line separator, which saving restores
+                textArea.read(new StringReader(decode(data)), null);
+                opened(file, charset, writeBom);
             } catch (IOException e) {
                 showMessage("Error opening file");
             }
         }
     }
 
+    // Picks the charset from a byte order mark, else strict UTF-8, falling
+    // back to ISO-8859-1, which accepts any byte sequence
+    private String decode(byte[] data) {
+        int skip = 0;
+        Charset cs = StandardCharsets.UTF_8;
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF) {
+            skip = 3;
+        } else if (data.length >= 2 && (data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF) {
+            skip = 2;
+            cs = StandardCharsets.UTF_16BE;
+        } else if (data.length >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE) {
+            skip = 2;
+            cs = StandardCharsets.UTF_16LE;
+        }
+        writeBom = skip > 0;
+        try {
+            charset = cs;
+            return cs.newDecoder().decode(ByteBuffer.wrap(data, skip, data.length - skip)).toString();
+        } catch (CharacterCodingException e) {
+            charset = StandardCharsets.ISO_8859_1;
+            writeBom = false;
+            return new String(data, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private void opened(File file, Charset cs, boolean bom) {
+        currentFile = file;
+        charset = cs;
+        writeBom = bom;
+        encodingItems.get(cs).setSelected(true);
+        savedVersion = documentVersion();
+        autosavedVersion = -1;
+        updateTitle();
+        setSyntax(syntaxFor(file));
+        if (file != null) {
+            File recovery = recoveryFile(file);
+            if (recovery.lastModified() > file.lastModified()) {
+                showMessage("Unsaved changes to " + file.getName() + " were autosaved to " + recovery.getName());
+            }
+        }
+    }
+
+    // Autosaves go next to the file instead of over it; only an explicit
+    // Save replaces the file itself
+    private static File recoveryFile(File file) {
+        return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".autosave");
+    }
+
+    private static Lexer syntaxFor(File file) {
+        String name = file == null ? "" : file.getName().toLowerCase();
+        if (name.endsWith(".log") || name.endsWith(".out") || name.endsWith(".err")) return SYNTAXES[1];
+        if (name.endsWith(".json")) return SYNTAXES[2];
+        if (name.endsWith(".properties") || name.endsWith(".ini") || name.endsWith(".cfg") || name.endsWith(".conf")) {
+            return SYNTAXES[3];
+        }
+        if (name.endsWith(".java")) return SYNTAXES[4];
+        return null;
+    }
+
+    private void setSyntax(Lexer choice) {
+        lexer = choice;
+        for (int i = 0; i < SYNTAXES.length; i++) {
+            if (SYNTAXES[i] == choice) syntaxItems[i].setSelected(true);
+        }
+        highlighting.setLexer(largeView == null ? choice : null);
+        if (largeView != null) largeView.setLexer(choice);
+    }
+
+    private void setEncoding(Charset cs) {
+        if (cs.equals(charset)) return;
+        charset = cs;
+        writeBom = writeBom && cs.name().startsWith("UTF");
+        // The file on disk no longer matches what Save would write
+        savedVersion = -1;
+        updateTitle();
+    }
+
+    private int documentVersion() {
+        return largeView != null ? largeView.getTable().version() : textVersion;
+    }
+
+    private boolean isDirty() {
+        return documentVersion() != savedVersion;
+    }
+
+    private void updateTitle() {
+        String name = currentFile == null ? "Untitled" : currentFile.getName();
+        String title = (isDirty() ? "*" : "") + name + " - Basic Notepad";
+        if (!title.equals(getTitle())) setTitle(title);
+    }
+
+    // Maps the file instead of reading it; the view starts read-only and
+    // becomes editable once the background line index is complete
+    private void openLargeFile(File file) {
+        try {
+            MappedFile mapped = new MappedFile(file.toPath());
+            LineIndex index = new LineIndex(mapped);
+            LargeFileView view = new LargeFileView(new PieceTable(mapped, index));
+            closeLargeFile();
+            largeView = view;
+            scroller.setViewportView(view);
+            view.requestFocusInWindow();
+            view.addPropertyChangeListener("modified", e -> updateTitle());
+            // Large files are shown and saved as raw UTF-8 bytes
+            opened(file, StandardCharsets.UTF_8, false);
+
+            Timer progress = new Timer(250, null);
+            progress.addActionListener(e -> {
+                if (largeView != view) {
+                    progress.stop();
+                    return;
+                }
+                view.refreshExtent();
+                if (index.isComplete()) {
+                    progress.stop();
+                    view.indexComplete();
+                    status.setText(file.getName() + " - " + index.lineCount() + " lines (large file mode)");
+                } else {
+                    status.setText("Indexing " + file.getName() + "... " + index.lineCount() + " lines, "
+                            + index.scannedBytes() * 100 / Math.max(1, mapped.size()) + "%");
+                }
+            });
+            progress.start();
+
+            Thread indexer = new Thread(index::build, "line-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+        } catch (IOException e) {
+            showMessage("Error opening file");
+        }
+    }
+
+    private void closeLargeFile() {
+        if (largeView == null) return;
+        largeView = null;
+        scroller.setViewportView(textArea);
+        status.setText(" ");
+        highlighting.setLexer(lexer);
+    }
+
     private void storeText() {
+        if (currentFile == null) {
+            storeTextAs();
+        } else {
+            save(currentFile, false);
+        }
+    }
+
+    private void storeTextAs() {
         if (fileDialog.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = fileDialog.getSelectedFile();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                textArea.write(writer);
-            } catch (IOException e) {
-                showMessage("Error saving file");
-            }
+            save(fileDialog.getSelectedFile(), false);
+        }
+    }
+
+    private void autosave() {
+        if (autosaveItem.isSelected() && currentFile != null && isDirty()
+                && documentVersion() != autosavedVersion && savesInFlight == 0) {
+            save(recoveryFile(currentFile), true);
+        }
+    }
+
+    // Takes a snapshot on the EDT, then encodes and writes it on the save
+    // thread; the document stays editable while the file is written
+    private void save(File target, boolean auto) {
+        long started = System.nanoTime();
+        int version = documentVersion();
+        SaveService.Request request;
+        if (largeView != null) {
+            request = new SaveService.Request(target.toPath(), null, largeView.getTable().snapshot(), charset, writeBom);
+        } else {
+            String text = textArea.getText();
+            Object eol = textArea.getDocument().getProperty(DefaultEditorKit.EndOfLineStringProperty);
+            if (eol instanceof String && !eol.equals("\n")) text = text.replace("\n", (String) eol);
+            request = new SaveService.Request(target.toPath(), text, null, charset, writeBom);
         }
+        long snapshotNanos = System.nanoTime() - started;
+        savesInFlight++;
+        status.setText((auto ? "Autosaving " : "Saving ") + target.getName() + "...");
+
+        saver.save(request, result -> {
+            savesInFlight--;
+            if (result.error != null) {
+                status.setText((auto ? "Autosave" : "Save") + " failed: " + result.error.getMessage());
+                if (!auto) showMessage("Error saving file: " + result.error.getMessage());
+                return;
+            }
+            if (auto) {
+                autosavedVersion = version;
+            } else {
+                // The recovery files are stale once the text is on disk
+                saver.delete(recoveryFile(target).toPath());
+                if (!target.equals(currentFile)) {
+                    if (currentFile != null) saver.delete(recoveryFile(currentFile).toPath());
+                    currentFile = target;
+                }
+                savedVersion = version;
+                updateTitle();
+            }
+            long total = System.nanoTime() - started;
+            double seconds = Math.max(result.writeNanos, 1) / 1e9;
+            status.setText(String.format("%s %s: %.1f MB in %d ms (%.0f MB/s), snapshot %d ms, total %d ms",
+                    auto ? "Autosaved" : "Saved", target.getName(), result.bytes / 1e6,
+                    result.writeNanos / 1_000_000, result.bytes / 1e6 / seconds,
+                    snapshotNanos / 1_000_000, total / 1_000_000));
+        });
     }
 
     private void showMessage(String msg) {
@@ -75,4 +531,2352 @@ public class TextEditor extends JFrame {
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new TextEditor().setVisible(true));
     }
+
+    // Read-only mapping of a whole file, split into segments because a single
+    // MappedByteBuffer cannot exceed 2 GB
+    static class MappedFile {
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+        private final Path path;
+        private final MappedByteBuffer[] segments;
+        private final long size;
+
+        MappedFile(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long) i << SEGMENT_SHIFT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+            }
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long size() {
+            return size;
+        }
+
+        byte get(long pos) {
+            return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & (SEGMENT_SIZE - 1)));
+        }
+
+        void get(long pos, byte[] dst, int off, int len) {
+            while (len > 0) {
+                MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+                int at = (int) (pos & (SEGMENT_SIZE - 1));
+                int n = Math.min(len, segment.limit() - at);
+                segment.get(at, dst, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // View of [pos, pos + len) within one segment, for channel writes
+        ByteBuffer slice(long pos, int len) {
+            MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+            int at = (int) (pos & (SEGMENT_SIZE - 1));
+            return segment.slice(at, Math.min(len, segment.limit() - at));
+        }
+    }
+
+    // Sparse newline index over the original file, built on a background
+    // thread. A checkpoint (offset, newlines before offset) is recorded every
+    // CHECKPOINT_LINES lines or CHECKPOINT_BYTES bytes, whichever comes
+    // first, so any lookup scans at most CHECKPOINT_BYTES of the mapping and
+    // the index stays a small fraction of the file.
+    static class LineIndex {
+        private static final int CHECKPOINT_LINES = 64;
+        private static final int CHECKPOINT_BYTES = 64 << 10;
+
+        private final MappedFile file;
+        // Arrays are replaced when they grow; count is published last
+        private volatile long[] offsets = new long[1024];
+        private volatile long[] newlines = new long[1024];
+        private volatile int count;
+        private volatile long newlineTotal;
+        private volatile long scanned;
+        private volatile boolean complete;
+
+        LineIndex(MappedFile file) {
+            this.file = file;
+        }
+
+        void build() {
+            long size = file.size();
+            long lines = 0;
+            long lastOffset = 0;
+            long lastLines = 0;
+            byte[] chunk = new byte[1 << 20];
+            addCheckpoint(0, 0);
+            for (long base = 0; base < size; base += chunk.length) {
+                int n = (int) Math.min(chunk.length, size - base);
+                file.get(base, chunk, 0, n);
+                for (int i = 0; i < n; i++) {
+                    long pos = base + i;
+                    if (chunk[i] == '\n') {
+                        lines++;
+                        if (lines - lastLines >= CHECKPOINT_LINES || pos + 1 - lastOffset >= CHECKPOINT_BYTES) {
+                            addCheckpoint(pos + 1, lines);
+                            lastOffset = pos + 1;
+                            lastLines = lines;
+                        }
+                    } else if (pos - lastOffset >= CHECKPOINT_BYTES) {
+                        addCheckpoint(pos, lines);
+                        lastOffset = pos;
+                        lastLines = lines;
+                    }
+                }
+                newlineTotal = lines;
+                scanned = base + n;
+            }
+            newlineTotal = lines;
+            scanned = size;
+            complete = true;
+        }
+
+        private void addCheckpoint(long offset, long lines) {
+            int n = count;
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, n * 2);
+                newlines = Arrays.copyOf(newlines, n * 2);
+            }
+            offsets[n] = offset;
+            newlines[n] = lines;
+            count = n + 1;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        long scannedBytes() {
+            return scanned;
+        }
+
+        // Lines known so far (all of them once complete)
+        long lineCount() {
+            return newlineTotal + 1;
+        }
+
+        // Number of '\n' bytes in [0, offset)
+        long newlinesBefore(long offset) {
+            int n = count;
+            long[] offs = offsets;
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (offs[mid] <= offset) lo = mid; else hi = mid - 1;
+            }
+            long lines = newlines[lo];
+            for (long pos = offs[lo]; pos < offset; pos++) {
+                if (file.get(pos) == '\n') lines++;
+            }
+            return lines;
+        }
+
+        // Offset just after the line-th '\n' (0 for the first line)
+        long lineStart(long line) {
+            if (line <= 0) return 0;
+            int n = count;
+            long[] lines = newlines;
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (lines[mid] < line) lo = mid; else hi = mid - 1;
+            }
+            long seen = lines[lo];
+            long size = file.size();
+            for (long pos = offsets[lo]; pos < size; pos++) {
+                if (file.get(pos) == '\n' && ++seen == line) return pos + 1;
+            }
+            return size;
+        }
+    }
+
+    // Piece table over the mapped original plus append-only byte buffers that
+    // hold every inserted byte. Edits only split or drop pieces, so memory
+    // grows with the edits, never with the file. Offsets are byte offsets in
+    // the UTF-8 text. Cumulative offsets and newline counts per piece are
+    // rebuilt after each edit so lookups are binary searches.
+    //
+    // A piece points at the array its bytes live in (null for the original).
+    // Bytes are never overwritten once a piece refers to them, so a copy of
+    // the piece list is an immutable snapshot other threads can read.
+    static class PieceTable {
+        private final MappedFile original;
+        private final LineIndex index;
+        private byte[] added = new byte[4096];
+        private int addedLength;
+        private final ArrayList<Piece> pieces = new ArrayList<>();
+        private long[] offsets;
+        private long[] newlines;
+        private boolean indexed;
+        private int version;
+        private final ArrayDeque<PieceEdit> undo = new ArrayDeque<>();
+        private final ArrayDeque<PieceEdit> redo = new ArrayDeque<>();
+
+        static final class Piece {
+            final byte[] buffer;
+            final long start;
+            final long length;
+            final long newlines;
+
+            Piece(byte[] buffer, long start, long length, long newlines) {
+                this.buffer = buffer;
+                this.start = start;
+                this.length = length;
+                this.newlines = newlines;
+            }
+        }
+
+        // Pieces [index, index + inserted.length) replaced removed
+        static final class PieceEdit {
+            final int index;
+            final Piece[] removed;
+            Piece[] inserted;
+
+            PieceEdit(int index, Piece[] removed, Piece[] inserted) {
+                this.index = index;
+                this.removed = removed;
+                this.inserted = inserted;
+            }
+        }
+
+        PieceTable(MappedFile original, LineIndex index) {
+            this.original = original;
+            this.index = index;
+            if (original.size() > 0) pieces.add(new Piece(null, 0, original.size(), 0));
+            rebuild();
+        }
+
+        // Until the index is complete the table is read-only and line
+        // queries go straight to the (growing) index
+        void indexComplete() {
+            if (indexed) return;
+            indexed = true;
+            if (!pieces.isEmpty()) pieces.set(0, new Piece(null, 0, original.size(), index.lineCount() - 1));
+            rebuild();
+        }
+
+        boolean isEditable() {
+            return indexed;
+        }
+
+        // Bumped on every change; lets background work detect stale snapshots
+        int version() {
+            return version;
+        }
+
+        long length() {
+            return offsets[pieces.size()];
+        }
+
+        long lineCount() {
+            return indexed ? newlines[pieces.size()] + 1 : index.lineCount();
+        }
+
+        long lineStart(long line) {
+            if (!indexed) return index.lineStart(line);
+            if (line <= 0) return 0;
+            if (line >= lineCount()) return length();
+            // First piece whose cumulative count reaches the line-th newline
+            int lo = 0;
+            int hi = pieces.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (newlines[mid + 1] < line) lo = mid + 1; else hi = mid;
+            }
+            Piece p = pieces.get(lo);
+            long k = line - newlines[lo];
+            if (p.buffer != null) {
+                for (int i = 0; i < p.length; i++) {
+                    if (p.buffer[(int) p.start + i] == '\n' && --k == 0) return offsets[lo] + i + 1;
+                }
+                return offsets[lo] + p.length;
+            }
+            long start = index.lineStart(index.newlinesBefore(p.start) + k);
+            return offsets[lo] + start - p.start;
+        }
+
+        long lineOf(long pos) {
+            if (!indexed) return index.newlinesBefore(pos);
+            int i = pieceAt(offsets, pieces.size(), pos);
+            if (i == pieces.size()) return newlines[i];
+            return newlines[i] + countNewlines(pieces.get(i), 0, pos - offsets[i]);
+        }
+
+        byte byteAt(long pos) {
+            int i = pieceAt(offsets, pieces.size(), pos);
+            Piece p = pieces.get(i);
+            long at = p.start + pos - offsets[i];
+            return p.buffer != null ? p.buffer[(int) at] : original.get(at);
+        }
+
+        int read(long pos, byte[] dst, int off, int len) {
+            return read(original, pieces, offsets, pos, dst, off, len);
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(this, original, pieces.toArray(new Piece[0]), offsets.clone(), version);
+        }
+
+        void insert(long pos, byte[] bytes) {
+            if (bytes.length == 0) return;
+            if (addedLength + bytes.length > added.length) {
+                // The old array stays alive for the pieces that point into it
+                added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + bytes.length));
+            }
+            int start = addedLength;
+            System.arraycopy(bytes, 0, added, start, bytes.length);
+            addedLength += bytes.length;
+            long lines = 0;
+            for (byte b : bytes) {
+                if (b == '\n') lines++;
+            }
+
+            int i = pieceAt(offsets, pieces.size(), pos);
+            // Typing extends the piece that was just appended, and the
+            // undo entry that created it, so a typed run undoes in one step
+            if (i > 0 && offsets[i] == pos) {
+                Piece prev = pieces.get(i - 1);
+                if (prev.buffer == added && prev.start + prev.length == start) {
+                    Piece grown = new Piece(added, prev.start, prev.length + bytes.length, prev.newlines + lines);
+                    PieceEdit last = undo.peek();
+                    int at = last == null ? -1 : i - 1 - last.index;
+                    if (at >= 0 && at < last.inserted.length && last.inserted[at] == prev) {
+                        last.inserted[at] = grown;
+                        pieces.set(i - 1, grown);
+                        redo.clear();
+                        rebuild();
+                        version++;
+                        return;
+                    }
+                    replace(i - 1, i, grown);
+                    return;
+                }
+            }
+            Piece piece = new Piece(added, start, bytes.length, lines);
+            if (i == pieces.size() || offsets[i] == pos) {
+                replace(i, i, piece);
+                return;
+            }
+            Piece p = pieces.get(i);
+            long head = pos - offsets[i];
+            long headLines = countNewlines(p, 0, head);
+            replace(i, i + 1, new Piece(p.buffer, p.start, head, headLines), piece,
+                    new Piece(p.buffer, p.start + head, p.length - head, p.newlines - headLines));
+        }
+
+        void delete(long pos, long len) {
+            if (len <= 0) return;
+            int first = pieceAt(offsets, pieces.size(), pos);
+            int last = pieceAt(offsets, pieces.size(), pos + len - 1);
+            ArrayList<Piece> keep = new ArrayList<>(2);
+            Piece p = pieces.get(first);
+            long head = pos - offsets[first];
+            if (head > 0) keep.add(new Piece(p.buffer, p.start, head, countNewlines(p, 0, head)));
+            Piece q = pieces.get(last);
+            long tail = pos + len - offsets[last];
+            if (tail < q.length) {
+                keep.add(new Piece(q.buffer, q.start + tail, q.length - tail, countNewlines(q, tail, q.length)));
+            }
+            replace(first, last + 1, keep.toArray(new Piece[0]));
+        }
+
+        // Swaps the whole text for a plan computed against snapshot; fails
+        // (returns false) if the table changed since the snapshot was taken
+        boolean replaceAll(Snapshot snapshot, Piece[] replacement) {
+            if (snapshot.owner != this || snapshot.version != version || !indexed) return false;
+            replace(0, pieces.size(), replacement);
+            return true;
+        }
+
+        // Undo and redo return the offset where the change begins, or -1
+        long undo() {
+            PieceEdit edit = undo.poll();
+            if (edit == null) return -1;
+            swap(edit.index, edit.inserted.length, edit.removed);
+            redo.push(edit);
+            return offsets[edit.index];
+        }
+
+        long redo() {
+            PieceEdit edit = redo.poll();
+            if (edit == null) return -1;
+            swap(edit.index, edit.removed.length, edit.inserted);
+            undo.push(edit);
+            return offsets[edit.index];
+        }
+
+        private void replace(int from, int to, Piece... with) {
+            Piece[] removed = pieces.subList(from, to).toArray(new Piece[0]);
+            swap(from, to - from, with);
+            undo.push(new PieceEdit(from, removed, with.clone()));
+            redo.clear();
+        }
+
+        private void swap(int from, int count, Piece[] with) {
+            List<Piece> range = pieces.subList(from, from + count);
+            range.clear();
+            range.addAll(Arrays.asList(with));
+            rebuild();
+            version++;
+        }
+
+        private long countNewlines(Piece p, long from, long to) {
+            if (p.buffer == null) return index.newlinesBefore(p.start + to) - index.newlinesBefore(p.start + from);
+            long lines = 0;
+            for (long i = from; i < to; i++) {
+                if (p.buffer[(int) (p.start + i)] == '\n') lines++;
+            }
+            return lines;
+        }
+
+        private void rebuild() {
+            int n = pieces.size();
+            offsets = new long[n + 1];
+            newlines = new long[n + 1];
+            for (int i = 0; i < n; i++) {
+                Piece p = pieces.get(i);
+                offsets[i + 1] = offsets[i] + p.length;
+                newlines[i + 1] = newlines[i] + p.newlines;
+            }
+        }
+
+        // Index of the piece containing pos (count when pos == length)
+        static int pieceAt(long[] offsets, int count, long pos) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (offsets[mid] <= pos) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        // Copies up to len bytes starting at pos; returns the count copied
+        static int read(MappedFile original, List<Piece> pieces, long[] offsets, long pos, byte[] dst, int off, int len) {
+            int copied = 0;
+            for (int i = pieceAt(offsets, pieces.size(), pos); i < pieces.size() && copied < len; i++) {
+                Piece p = pieces.get(i);
+                long from = pos + copied - offsets[i];
+                int n = (int) Math.min(len - copied, p.length - from);
+                if (p.buffer != null) {
+                    System.arraycopy(p.buffer, (int) (p.start + from), dst, off + copied, n);
+                } else {
+                    original.get(p.start + from, dst, off + copied, n);
+                }
+                copied += n;
+            }
+            return copied;
+        }
+    }
+
+    // Frozen view of a piece table, safe to read from any thread
+    static class Snapshot {
+        final PieceTable owner;
+        private final MappedFile original;
+        private final List<PieceTable.Piece> pieces;
+        private final long[] offsets;
+        final int version;
+
+        Snapshot(PieceTable owner, MappedFile original, PieceTable.Piece[] pieces, long[] offsets, int version) {
+            this.owner = owner;
+            this.original = original;
+            this.pieces = Arrays.asList(pieces);
+            this.offsets = offsets;
+            this.version = version;
+        }
+
+        long length() {
+            return offsets[pieces.size()];
+        }
+
+        int read(long pos, byte[] dst, int off, int len) {
+            return PieceTable.read(original, pieces, offsets, pos, dst, off, len);
+        }
+
+        // Appends pieces covering [from, to). newlines is the range's known
+        // newline count, or -1; it only saves a scan when one piece covers it.
+        void slice(long from, long to, List<PieceTable.Piece> out, long newlines, byte[] scratch) {
+            int i = PieceTable.pieceAt(offsets, pieces.size(), from);
+            if (newlines >= 0 && i < pieces.size() && to <= offsets[i + 1]) {
+                PieceTable.Piece p = pieces.get(i);
+                out.add(new PieceTable.Piece(p.buffer, p.start + from - offsets[i], to - from, newlines));
+                return;
+            }
+            for (; from < to; i++) {
+                PieceTable.Piece p = pieces.get(i);
+                long at = from - offsets[i];
+                long len = Math.min(to - from, p.length - at);
+                long lines = 0;
+                for (long done = 0; done < len; ) {
+                    int n = (int) Math.min(scratch.length, len - done);
+                    read(from + done, scratch, 0, n);
+                    for (int k = 0; k < n; k++) {
+                        if (scratch[k] == '\n') lines++;
+                    }
+                    done += n;
+                }
+                out.add(new PieceTable.Piece(p.buffer, p.start + at, len, lines));
+                from += len;
+            }
+        }
+
+        // Writes the raw bytes to out; returns the count written
+        long copyTo(WritableByteChannel out) throws IOException {
+            long written = 0;
+            for (PieceTable.Piece p : pieces) {
+                if (p.buffer != null) {
+                    ByteBuffer buffer = ByteBuffer.wrap(p.buffer, (int) p.start, (int) p.length);
+                    while (buffer.hasRemaining()) out.write(buffer);
+                } else {
+                    for (long done = 0; done < p.length; ) {
+                        ByteBuffer slice = original.slice(p.start + done, (int) Math.min(p.length - done, 1 << 26));
+                        done += slice.remaining();
+                        while (slice.hasRemaining()) out.write(slice);
+                    }
+                }
+                written += p.length;
+            }
+            return written;
+        }
+    }
+
+    // Viewport for large file mode. Only the lines intersecting the clip are
+    // read from the piece table and decoded; nothing else is materialised.
+    static class LargeFileView extends JComponent implements Scrollable {
+        private static final int INSET = 4;
+        private static final int MAX_LINE_BYTES = 16 << 10;
+        // Tallest the component gets; beyond it the scroll range is virtual
+        private static final int MAX_HEIGHT = 1 << 30;
+        private static final Color SELECTION = new Color(184, 207, 229);
+
+        // Lines lexed above the first visible one to settle multi-line state
+        private static final int LEX_WARMUP_LINES = 64;
+
+        private final PieceTable table;
+        private final byte[] lineBuffer = new byte[MAX_LINE_BYTES];
+        private final Tokens tokens = new Tokens();
+        private Lexer lexer;
+        private long caret;
+        // Highlighted match, as byte offsets; -1 when none
+        private long markStart = -1;
+        private long markEnd = -1;
+        private int widest = 800;
+
+        LargeFileView(PieceTable table) {
+            this.table = table;
+            setFont(UIManager.getFont("TextArea.font"));
+            setBackground(Color.WHITE);
+            setOpaque(true);
+            setFocusable(true);
+            setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
+            setFocusTraversalKeysEnabled(false);
+
+            addMouseListener(new MouseAdapter() {
+                public void mousePressed(MouseEvent e) {
+                    requestFocusInWindow();
+                    markStart = markEnd = -1;
+                    moveCaret(offsetAt(e.getX(), e.getY()));
+                }
+            });
+            addKeyListener(new KeyAdapter() {
+                public void keyPressed(KeyEvent e) {
+                    handleKey(e);
+                }
+
+                public void keyTyped(KeyEvent e) {
+                    char c = e.getKeyChar();
+                    if (e.isControlDown() || e.isAltDown()) return;
+                    if (c == '\n' || c == '\t' || (c >= ' ' && c != 127)) {
+                        type(String.valueOf(c));
+                    }
+                }
+            });
+        }
+
+        PieceTable getTable() {
+            return table;
+        }
+
+        void indexComplete() {
+            table.indexComplete();
+            refreshExtent();
+        }
+
+        void refreshExtent() {
+            updateScrollMode();
+            revalidate();
+            repaint();
+        }
+
+        // There is no state cache here: the file may have billions of lines,
+        // so each paint lexes a few lines above the viewport from the
+        // initial state, which is exact for the line-oriented formats
+        void setLexer(Lexer lexer) {
+            this.lexer = lexer;
+            repaint();
+        }
+
+        void select(long start, long end) {
+            if (end > table.length()) return;
+            markStart = start;
+            markEnd = end;
+            moveCaret(start);
+        }
+
+        void undo() {
+            long at = table.undo();
+            if (at >= 0) changedAt(at);
+        }
+
+        void redo() {
+            long at = table.redo();
+            if (at >= 0) changedAt(at);
+        }
+
+        // After an edit made outside the view, e.g. a replace-all
+        void changedAt(long pos) {
+            markStart = markEnd = -1;
+            moveCaret(pos);
+            edited();
+        }
+
+        private int lineHeight() {
+            return getFontMetrics(getFont()).getHeight();
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(widest, (int) Math.min(MAX_HEIGHT, textHeight()));
+        }
+
+        private long textHeight() {
+            return table.lineCount() * lineHeight() + 2L * INSET;
+        }
+
+        // Past MAX_HEIGHT the scroll position maps to a line proportionally:
+        // the anchor line is drawn at the top of the viewport and the lines
+        // below it follow at the line height. Otherwise a line simply sits at
+        // INSET + line * lineHeight.
+        private boolean isScaled() {
+            return textHeight() > MAX_HEIGHT;
+        }
+
+        private int visibleRows(Rectangle visible) {
+            return Math.max(1, (visible.height - 2 * INSET) / lineHeight());
+        }
+
+        private long anchorLine(Rectangle visible) {
+            if (!isScaled()) return 0;
+            long range = Math.max(0, table.lineCount() - visibleRows(visible));
+            int span = MAX_HEIGHT - visible.height;
+            if (span <= 0) return 0;
+            return Math.min(range, (long) ((double) visible.y / span * range));
+        }
+
+        private int anchorY(Rectangle visible) {
+            return isScaled() ? visible.y + INSET : INSET;
+        }
+
+        // Scroll pixels per line while scaled; below one, a pixel skips lines
+        private double pixelsPerLine(Rectangle visible) {
+            long range = Math.max(1, table.lineCount() - visibleRows(visible));
+            return (double) Math.max(0, MAX_HEIGHT - visible.height) / range;
+        }
+
+        private int lineY(long line, Rectangle visible) {
+            return anchorY(visible) + (int) ((line - anchorLine(visible)) * lineHeight());
+        }
+
+        private long lineAt(int y, Rectangle visible) {
+            long line = anchorLine(visible) + Math.floorDiv(y - anchorY(visible), lineHeight());
+            return Math.max(0, Math.min(table.lineCount() - 1, line));
+        }
+
+        // Scaled scrolling no longer moves the content by the scrolled
+        // distance, so the viewport has to repaint instead of blitting
+        private void updateScrollMode() {
+            if (getParent() instanceof JViewport) {
+                ((JViewport) getParent()).setScrollMode(isScaled()
+                        ? JViewport.SIMPLE_SCROLL_MODE : JViewport.BLIT_SCROLL_MODE);
+            }
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            updateScrollMode();
+        }
+
+        @Override
+        public void removeNotify() {
+            if (getParent() instanceof JViewport) {
+                ((JViewport) getParent()).setScrollMode(JViewport.BLIT_SCROLL_MODE);
+            }
+            super.removeNotify();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g.setColor(getForeground());
+            g.setFont(getFont());
+            FontMetrics fm = g.getFontMetrics();
+            int lh = fm.getHeight();
+
+            Rectangle visible = getVisibleRect();
+            long first = lineAt(clip.y, visible);
+            long last = lineAt(clip.y + clip.height, visible);
+            long caretLine = table.lineOf(caret);
+            long markFirst = markStart >= 0 ? table.lineOf(markStart) : -1;
+            long markLast = markStart >= 0 ? table.lineOf(markEnd) : -1;
+            int state = 0;
+            if (lexer != null) {
+                for (long line = Math.max(0, first - LEX_WARMUP_LINES); line < first; line++) {
+                    state = lexer.lex(lineText(line), state, null);
+                }
+            }
+            for (long line = first; line <= last; line++) {
+                int y = lineY(line, visible);
+                String text = lineText(line);
+                if (line >= markFirst && line <= markLast) {
+                    int from = line == markFirst ? columnOf(line, markStart) : 0;
+                    int to = line == markLast ? columnOf(line, markEnd) : text.length();
+                    int x0 = INSET + fm.stringWidth(text.substring(0, Math.min(text.length(), from)));
+                    int x1 = INSET + fm.stringWidth(text.substring(0, Math.min(text.length(), to)));
+                    g.setColor(SELECTION);
+                    g.fillRect(x0, y, Math.max(2, x1 - x0), lh);
+                    g.setColor(getForeground());
+                }
+                if (lexer == null) {
+                    g.drawString(text, INSET, y + fm.getAscent());
+                } else {
+                    tokens.clear();
+                    state = lexer.lex(text, state, tokens);
+                    int x = INSET;
+                    for (int i = 0; i < tokens.count; i++) {
+                        int end = i + 1 < tokens.count ? tokens.starts[i + 1] : text.length();
+                        if (tokens.starts[i] >= end) continue;
+                        String run = text.substring(tokens.starts[i], end);
+                        Color color = STYLE_COLORS[tokens.styles[i]];
+                        g.setColor(color == null ? getForeground() : color);
+                        g.drawString(run, x, y + fm.getAscent());
+                        x += fm.stringWidth(run);
+                    }
+                    g.setColor(getForeground());
+                }
+                int width = fm.stringWidth(text) + 2 * INSET;
+                if (width > widest) {
+                    widest = width;
+                    SwingUtilities.invokeLater(this::revalidate);
+                }
+                if (line == caretLine && hasFocus()) {
+                    int x = INSET + fm.stringWidth(text.substring(0, Math.min(text.length(), columnOf(line, caret))));
+                    g.drawLine(x, y, x, y + lh - 1);
+                }
+            }
+        }
+
+        // Decoded text of a line without its terminator; tabs shown as one
+        // space so characters and columns stay one-to-one
+        private String lineText(long line) {
+            long start = table.lineStart(line);
+            long end = line + 1 < table.lineCount() ? table.lineStart(line + 1) : table.length();
+            int len = (int) Math.min(end - start, MAX_LINE_BYTES);
+            len = table.read(start, lineBuffer, 0, len);
+            while (len > 0 && (lineBuffer[len - 1] == '\n' || lineBuffer[len - 1] == '\r')) len--;
+            return new String(lineBuffer, 0, len, StandardCharsets.UTF_8).replace('\t', ' ');
+        }
+
+        // Character column of a byte offset within its line
+        private int columnOf(long line, long pos) {
+            long start = table.lineStart(line);
+            int len = (int) Math.min(pos - start, MAX_LINE_BYTES);
+            len = table.read(start, lineBuffer, 0, len);
+            return new String(lineBuffer, 0, len, StandardCharsets.UTF_8).length();
+        }
+
+        private long offsetAt(int x, int y) {
+            return offsetInLine(lineAt(y, getVisibleRect()), x);
+        }
+
+        private long offsetInLine(long line, int x) {
+            String text = lineText(line);
+            FontMetrics fm = getFontMetrics(getFont());
+            int column = 0;
+            int pos = INSET;
+            while (column < text.length()) {
+                int w = fm.charWidth(text.charAt(column));
+                if (pos + w / 2 > x) break;
+                pos += w;
+                column++;
+            }
+            return table.lineStart(line) + text.substring(0, column).getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        private void handleKey(KeyEvent e) {
+            long length = table.length();
+            long line = table.lineOf(caret);
+            int lh = lineHeight();
+            String text = lineText(line);
+            int x = INSET + getFontMetrics(getFont()).stringWidth(text.substring(0,
+                    Math.min(text.length(), columnOf(line, caret))));
+            int page = Math.max(1, getVisibleRect().height / lh);
+            switch (e.getKeyCode()) {
+                case KeyEvent.VK_LEFT:
+                    moveCaret(previousChar(caret));
+                    break;
+                case KeyEvent.VK_RIGHT:
+                    moveCaret(nextChar(caret));
+                    break;
+                case KeyEvent.VK_UP:
+                    if (line > 0) moveCaret(offsetInLine(line - 1, x));
+                    break;
+                case KeyEvent.VK_DOWN:
+                    if (line + 1 < table.lineCount()) moveCaret(offsetInLine(line + 1, x));
+                    break;
+                case KeyEvent.VK_PAGE_UP:
+                    moveCaret(offsetInLine(Math.max(0, line - page), x));
+                    break;
+                case KeyEvent.VK_PAGE_DOWN:
+                    moveCaret(offsetInLine(Math.min(table.lineCount() - 1, line + page), x));
+                    break;
+                case KeyEvent.VK_HOME:
+                    moveCaret(e.isControlDown() ? 0 : table.lineStart(line));
+                    break;
+                case KeyEvent.VK_END:
+                    moveCaret(e.isControlDown() ? length : lineEnd(line));
+                    break;
+                case KeyEvent.VK_BACK_SPACE:
+                    if (caret > 0 && table.isEditable()) {
+                        long prev = previousChar(caret);
+                        table.delete(prev, caret - prev);
+                        moveCaret(prev);
+                        edited();
+                    }
+                    break;
+                case KeyEvent.VK_DELETE:
+                    if (caret < length && table.isEditable()) {
+                        table.delete(caret, nextChar(caret) - caret);
+                        edited();
+                    }
+                    break;
+                default:
+                    return;
+            }
+            e.consume();
+        }
+
+        private void type(String text) {
+            if (!table.isEditable()) return;
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            table.insert(caret, bytes);
+            moveCaret(caret + bytes.length);
+            edited();
+        }
+
+        private void edited() {
+            markStart = markEnd = -1;
+            firePropertyChange("modified", false, true);
+            updateScrollMode();
+            revalidate();
+            repaint();
+        }
+
+        private long lineEnd(long line) {
+            long end = line + 1 < table.lineCount() ? table.lineStart(line + 1) : table.length();
+            while (end > table.lineStart(line) && (table.byteAt(end - 1) == '\n' || table.byteAt(end - 1) == '\r')) end--;
+            return end;
+        }
+
+        // UTF-8 aware stepping: continuation bytes look like 10xxxxxx
+        private long previousChar(long pos) {
+            if (pos <= 0) return 0;
+            do {
+                pos--;
+            } while (pos > 0 && (table.byteAt(pos) & 0xC0) == 0x80);
+            return pos;
+        }
+
+        private long nextChar(long pos) {
+            long length = table.length();
+            if (pos >= length) return length;
+            do {
+                pos++;
+            } while (pos < length && (table.byteAt(pos) & 0xC0) == 0x80);
+            return pos;
+        }
+
+        private void moveCaret(long pos) {
+            caret = Math.max(0, Math.min(pos, table.length()));
+            long line = table.lineOf(caret);
+            Rectangle visible = getVisibleRect();
+            if (isScaled() && getParent() instanceof JViewport) {
+                long top = anchorLine(visible);
+                int rows = visibleRows(visible);
+                double perLine = pixelsPerLine(visible);
+                int y = -1;
+                // Rounding up when scrolling down keeps the anchor at or past
+                // the target, so the line lands inside the viewport
+                if (line < top) y = (int) Math.floor(line * perLine);
+                else if (line >= top + rows) y = (int) Math.ceil((line - rows + 1) * perLine);
+                if (y >= 0) {
+                    y = Math.min(y, MAX_HEIGHT - visible.height);
+                    ((JViewport) getParent()).setViewPosition(new Point(visible.x, y));
+                }
+            } else {
+                scrollRectToVisible(new Rectangle(0, lineY(line, visible), 1, lineHeight()));
+            }
+            repaint();
+        }
+
+        @Override
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+
+        @Override
+        public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+            if (orientation != SwingConstants.VERTICAL) return 16;
+            return isScaled() ? Math.max(1, (int) Math.ceil(pixelsPerLine(visible))) : lineHeight();
+        }
+
+        @Override
+        public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+            if (orientation != SwingConstants.VERTICAL) return visible.width;
+            if (!isScaled()) return visible.height - lineHeight();
+            return Math.max(1, (int) Math.ceil((visibleRows(visible) - 1) * pixelsPerLine(visible)));
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportWidth() {
+            return false;
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportHeight() {
+            return false;
+        }
+    }
+
+    // Text a search runs over, addressed in the source's own units: chars
+    // for the text area, UTF-8 bytes for large file mode
+    interface SearchSource {
+        long length();
+
+        int version();
+
+        // Decoded text of [from, to)
+        String text(long from, long to);
+
+        // Units taken by text[from, to)
+        long units(String text, int from, int to);
+
+        // Start of the first line in [pos, pos + limit], or -1
+        long nextLineStart(long pos, long limit);
+
+        // First position at or after pos that does not split a character
+        long charBoundary(long pos);
+
+        Rewrite rewrite();
+    }
+
+    // Rebuilt copy of a stretch of the document for replace-all
+    interface Rewrite {
+        // Keeps [from, to) of the source; text[textFrom, textTo) is its decoded copy
+        void keep(long from, long to, String text, int textFrom, int textTo);
+
+        void insert(String replacement);
+
+        // Appends the next chunk's rewrite
+        void append(Rewrite next);
+    }
+
+    static class StringSource implements SearchSource {
+        private final String text;
+        private final int version;
+
+        StringSource(String text, int version) {
+            this.text = text;
+            this.version = version;
+        }
+
+        public long length() {
+            return text.length();
+        }
+
+        public int version() {
+            return version;
+        }
+
+        public String text(long from, long to) {
+            return text.substring((int) from, (int) to);
+        }
+
+        public long units(String text, int from, int to) {
+            return to - from;
+        }
+
+        public long nextLineStart(long pos, long limit) {
+            if (pos == 0) return 0;
+            int nl = text.indexOf('\n', (int) pos - 1);
+            return nl >= 0 && nl + 1 <= pos + limit ? nl + 1 : -1;
+        }
+
+        public long charBoundary(long pos) {
+            return pos < text.length() && Character.isLowSurrogate(text.charAt((int) pos)) ? pos + 1 : pos;
+        }
+
+        public Rewrite rewrite() {
+            return new StringRewrite();
+        }
+    }
+
+    static class StringRewrite implements Rewrite {
+        final StringBuilder text = new StringBuilder();
+
+        public void keep(long from, long to, String source, int textFrom, int textTo) {
+            text.append(source, textFrom, textTo);
+        }
+
+        public void insert(String replacement) {
+            text.append(replacement);
+        }
+
+        public void append(Rewrite next) {
+            text.append(((StringRewrite) next).text);
+        }
+    }
+
+    // Searches a piece table snapshot. Offsets are derived from the decoded
+    // text, so every byte has to survive decoding: each byte of a malformed
+    // sequence becomes a lone surrogate U+DC00 + byte, which counts as one
+    // unit and encodes back to the same byte.
+    static class SnapshotSource implements SearchSource {
+        private static final int ESCAPE = 0xDC00;
+
+        final Snapshot snapshot;
+
+        SnapshotSource(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public long length() {
+            return snapshot.length();
+        }
+
+        public int version() {
+            return snapshot.version;
+        }
+
+        public String text(long from, long to) {
+            byte[] bytes = new byte[(int) (to - from)];
+            snapshot.read(from, bytes, 0, bytes.length);
+            return decode(bytes);
+        }
+
+        static String decode(byte[] bytes) {
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            CharBuffer out = CharBuffer.allocate(bytes.length);
+            while (true) {
+                CoderResult result = decoder.decode(in, out, true);
+                if (result.isUnderflow() && !in.hasRemaining()) break;
+                // Malformed, or a sequence cut off at the end of the range
+                int n = result.isUnderflow() ? in.remaining() : result.length();
+                for (int i = 0; i < n; i++) out.put((char) (ESCAPE + (in.get() & 0xFF)));
+            }
+            out.flip();
+            return out.toString();
+        }
+
+        // UTF-8 with escaped bytes turned back into themselves
+        static byte[] encode(String text) {
+            int first = 0;
+            while (first < text.length() && !isEscape(text.charAt(first))) first++;
+            if (first == text.length()) return text.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + 16);
+            int run = 0;
+            for (int i = first; i <= text.length(); i++) {
+                if (i < text.length() && !isEscape(text.charAt(i))) continue;
+                byte[] plain = text.substring(run, i).getBytes(StandardCharsets.UTF_8);
+                out.write(plain, 0, plain.length);
+                if (i < text.length()) out.write(text.charAt(i) - ESCAPE);
+                run = i + 1;
+            }
+            return out.toByteArray();
+        }
+
+        // Valid UTF-8 never decodes to a lone surrogate, so these are unambiguous
+        static boolean isEscape(char c) {
+            return c >= ESCAPE && c <= ESCAPE + 0xFF;
+        }
+
+        public long units(String text, int from, int to) {
+            long n = 0;
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80 || isEscape(c)) {
+                    n++;
+                } else if (c < 0x800) {
+                    n += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    n += 4;
+                    i++;
+                } else {
+                    n += 3;
+                }
+            }
+            return n;
+        }
+
+        public long nextLineStart(long pos, long limit) {
+            if (pos == 0) return 0;
+            byte[] buffer = new byte[8192];
+            long end = Math.min(snapshot.length(), pos + limit);
+            for (long at = pos - 1; at < end; at += buffer.length) {
+                int n = snapshot.read(at, buffer, 0, (int) Math.min(buffer.length, end - at));
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') return at + i + 1;
+                }
+            }
+            return -1;
+        }
+
+        public long charBoundary(long pos) {
+            byte[] one = new byte[1];
+            while (pos < snapshot.length() && snapshot.read(pos, one, 0, 1) == 1 && (one[0] & 0xC0) == 0x80) pos++;
+            return pos;
+        }
+
+        public Rewrite rewrite() {
+            return new PieceRewrite(snapshot);
+        }
+    }
+
+    static class PieceRewrite implements Rewrite {
+        private final Snapshot snapshot;
+        final ArrayList<PieceTable.Piece> pieces = new ArrayList<>();
+        private final byte[] scratch = new byte[8192];
+        // Literal replacements repeat, so the last encoding is reused
+        private String lastText;
+        private byte[] lastBytes;
+        private long lastNewlines;
+
+        PieceRewrite(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public void keep(long from, long to, String text, int textFrom, int textTo) {
+            if (from >= to) return;
+            long lines = 0;
+            for (int i = textFrom; i < textTo; i++) {
+                if (text.charAt(i) == '\n') lines++;
+            }
+            snapshot.slice(from, to, pieces, lines, scratch);
+        }
+
+        public void insert(String replacement) {
+            if (replacement.isEmpty()) return;
+            if (!replacement.equals(lastText)) {
+                lastText = replacement;
+                lastBytes = SnapshotSource.encode(replacement);
+                lastNewlines = replacement.chars().filter(c -> c == '\n').count();
+            }
+            pieces.add(new PieceTable.Piece(lastBytes, 0, lastBytes.length, lastNewlines));
+        }
+
+        public void append(Rewrite next) {
+            pieces.addAll(((PieceRewrite) next).pieces);
+        }
+    }
+
+    // Replace-all template: $0-$9 insert a group and a backslash escapes the
+    // next character. Parsed once, so expanding it per match is a few appends.
+    static class Replacement {
+        private final String[] literals;
+        private final int[] groups;
+        // The whole expansion when the template has no group references
+        final String constant;
+
+        private Replacement(String[] literals, int[] groups) {
+            this.literals = literals;
+            this.groups = groups;
+            this.constant = groups.length == 0 ? literals[0] : null;
+        }
+
+        static Replacement compile(String template, boolean regex, int groupCount) {
+            if (!regex) return new Replacement(new String[] {template}, new int[0]);
+            ArrayList<String> literals = new ArrayList<>();
+            ArrayList<Integer> groups = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < template.length(); i++) {
+                char c = template.charAt(i);
+                if (c == '\\' && i + 1 < template.length()) {
+                    literal.append(template.charAt(++i));
+                } else if (c == '$' && i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))) {
+                    int group = template.charAt(++i) - '0';
+                    if (group > groupCount) throw new IllegalArgumentException("No group " + group + " in pattern");
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    groups.add(group);
+                } else {
+                    literal.append(c);
+                }
+            }
+            literals.add(literal.toString());
+            int[] g = new int[groups.size()];
+            for (int i = 0; i < g.length; i++) g[i] = groups.get(i);
+            return new Replacement(literals.toArray(new String[0]), g);
+        }
+
+        String expand(Matcher m) {
+            if (constant != null) return constant;
+            StringBuilder out = new StringBuilder(literals[0]);
+            for (int i = 0; i < groups.length; i++) {
+                String value = m.group(groups[i]);
+                if (value != null) out.append(value);
+                out.append(literals[i + 1]);
+            }
+            return out.toString();
+        }
+    }
+
+    // Splits the document into chunks that start on line boundaries and
+    // searches them in parallel. Each chunk reads OVERLAP units past its end
+    // so a match starting inside it may run into the next one; results are
+    // consumed in document order, and a chunk whose start was swallowed by
+    // the previous chunk's last match is searched again from where that
+    // match ended, which keeps results identical to a sequential scan.
+    static class SearchEngine {
+        static final int CHUNK = 4 << 20;
+        static final int OVERLAP = 64 << 10;
+        private static final int PREVIEW_CHARS = 200;
+        private static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "search-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        private final SearchSource source;
+        private final Pattern pattern;
+        private final Replacement replacement;
+        private final int limit;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final ArrayList<Future<ChunkResult>> pending = new ArrayList<>();
+
+        // replacement is null for a find; limit 0 means unlimited
+        SearchEngine(SearchSource source, Pattern pattern, Replacement replacement, int limit) {
+            this.source = source;
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.limit = limit;
+        }
+
+        SearchSource getSource() {
+            return source;
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            synchronized (pending) {
+                for (Future<ChunkResult> f : pending) f.cancel(true);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        // Runs every chunk and hands the results to sink in document order;
+        // returns the number of matches passed on
+        long run(Consumer<ChunkResult> sink) throws InterruptedException, ExecutionException {
+            ArrayList<Long> bounds = new ArrayList<>();
+            long length = source.length();
+            for (long at = 0; at < length; ) {
+                bounds.add(at);
+                long next = at + CHUNK;
+                if (next >= length) break;
+                long line = source.nextLineStart(next, CHUNK / 4);
+                at = line > 0 ? line : source.charBoundary(next);
+            }
+            bounds.add(length);
+
+            synchronized (pending) {
+                for (int i = 0; i + 1 < bounds.size(); i++) {
+                    long from = bounds.get(i);
+                    long to = bounds.get(i + 1);
+                    if (!cancelled.get()) pending.add(POOL.submit(() -> search(from, to)));
+                }
+            }
+            long consumed = 0;
+            long total = 0;
+            try {
+                for (int i = 0; i < pending.size() && !cancelled.get(); i++) {
+                    long from = bounds.get(i);
+                    long to = bounds.get(i + 1);
+                    if (consumed >= to) {
+                        pending.get(i).cancel(true);
+                        continue;
+                    }
+                    ChunkResult result;
+                    if (consumed > from) {
+                        pending.get(i).cancel(true);
+                        result = search(consumed, to);
+                    } else {
+                        result = pending.get(i).get();
+                    }
+                    consumed = result.end;
+                    total += result.count;
+                    sink.accept(result);
+                    if (limit > 0 && total >= limit) break;
+                }
+            } catch (CancellationException e) {
+                // cancel() raced with get(); the partial result stands
+            } finally {
+                synchronized (pending) {
+                    for (Future<ChunkResult> f : pending) f.cancel(true);
+                }
+            }
+            return total;
+        }
+
+        private ChunkResult search(long from, long to) {
+            long end = Math.min(source.length(), to + OVERLAP);
+            // One character of context keeps ^ and lookbehind honest at a line start
+            int context = from > 0 && source.nextLineStart(from, 0) == from ? 1 : 0;
+            String text = source.text(from - context, end);
+            Matcher m = pattern.matcher(text);
+            m.useTransparentBounds(true).useAnchoringBounds(false);
+            m.region(context, text.length());
+
+            ChunkResult result = new ChunkResult(from);
+            Rewrite out = replacement == null ? null : source.rewrite();
+            int atChar = context;
+            long atUnit = from;
+            int lineChar = context;
+            long line = 0;
+            while (m.find() && !cancelled.get()) {
+                long start = atUnit + source.units(text, atChar, m.start());
+                if (start >= to) break;
+                long stop = start + source.units(text, m.start(), m.end());
+                for (; lineChar < m.start(); lineChar++) {
+                    if (text.charAt(lineChar) == '\n') line++;
+                }
+                if (out != null) {
+                    out.keep(atUnit, start, text, atChar, m.start());
+                    out.insert(replacement.expand(m));
+                    result.add(start, stop, line, null);
+                } else {
+                    result.add(start, stop, line, preview(text, m.start()));
+                }
+                atChar = m.end();
+                atUnit = stop;
+                if (limit > 0 && result.count >= limit) break;
+            }
+
+            // The chunk covers [from, to), or up to its last match's end
+            int endChar = atChar;
+            if (atUnit < to) {
+                endChar = text.length();
+                long unit = atUnit;
+                for (int i = atChar; i < text.length(); ) {
+                    if (unit >= to) {
+                        endChar = i;
+                        break;
+                    }
+                    int next = i + Character.charCount(text.codePointAt(i));
+                    unit += source.units(text, i, next);
+                    i = next;
+                }
+                if (out != null) out.keep(atUnit, to, text, atChar, endChar);
+                result.end = to;
+            } else {
+                result.end = atUnit;
+            }
+            for (; lineChar < endChar; lineChar++) {
+                if (text.charAt(lineChar) == '\n') line++;
+            }
+            result.newlines = line;
+            result.rewrite = out;
+            return result;
+        }
+
+        private static String preview(String text, int at) {
+            int start = text.lastIndexOf('\n', at - 1) + 1;
+            int end = text.indexOf('\n', at);
+            if (end < 0) end = text.length();
+            if (end > start && text.charAt(end - 1) == '\r') end--;
+            if (at - start > PREVIEW_CHARS / 2) start = at - PREVIEW_CHARS / 2;
+            char[] line = text.substring(start, Math.min(end, start + PREVIEW_CHARS)).toCharArray();
+            for (int i = 0; i < line.length; i++) {
+                if (line[i] == '\t') line[i] = ' ';
+                else if (SnapshotSource.isEscape(line[i])) line[i] = '\uFFFD';
+            }
+            return new String(line);
+        }
+    }
+
+    static class ChunkResult {
+        final long from;
+        long end;
+        long newlines;
+        int count;
+        long[] starts = new long[16];
+        long[] ends = new long[16];
+        long[] lines = new long[16];
+        String[] previews = new String[16];
+        Rewrite rewrite;
+
+        ChunkResult(long from) {
+            this.from = from;
+        }
+
+        void add(long start, long stop, long line, String preview) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+                previews = Arrays.copyOf(previews, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = stop;
+            lines[count] = line;
+            previews[count] = preview;
+            count++;
+        }
+    }
+
+    static final class SearchHit {
+        final long start;
+        final long end;
+        final long line;
+        final String preview;
+
+        SearchHit(long start, long end, long line, String preview) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.preview = preview;
+        }
+
+        @Override
+        public String toString() {
+            return (line + 1) + ": " + preview;
+        }
+    }
+
+    // Results arrive a chunk at a time; one event per batch instead of per hit
+    static class HitListModel extends AbstractListModel<SearchHit> {
+        private final ArrayList<SearchHit> hits = new ArrayList<>();
+
+        public int getSize() {
+            return hits.size();
+        }
+
+        public SearchHit getElementAt(int index) {
+            return hits.get(index);
+        }
+
+        void addAll(List<SearchHit> batch) {
+            if (batch.isEmpty()) return;
+            int first = hits.size();
+            hits.addAll(batch);
+            fireIntervalAdded(this, first, hits.size() - 1);
+        }
+
+        void clear() {
+            int size = hits.size();
+            if (size == 0) return;
+            hits.clear();
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    static class FindDialog extends JDialog {
+        private static final int HIT_LIMIT = 100_000;
+
+        private final TextEditor owner;
+        private final JTextField findField = new JTextField(24);
+        private final JTextField replaceField = new JTextField(24);
+        private final JCheckBox regexBox = new JCheckBox("Regex");
+        private final JCheckBox caseBox = new JCheckBox("Match case");
+        private final HitListModel hits = new HitListModel();
+        private final JList<SearchHit> hitList = new JList<>(hits);
+        private final JLabel summary = new JLabel(" ");
+        private final JButton findAll = new JButton("Find All");
+        private final JButton replaceAll = new JButton("Replace All");
+        private final JButton stop = new JButton("Cancel");
+        private SearchEngine running;
+
+        FindDialog(TextEditor owner) {
+            super(owner, "Find / Replace", false);
+            this.owner = owner;
+
+            JPanel fields = new JPanel(new GridLayout(0, 2, 6, 6));
+            fields.add(new JLabel("Find:"));
+            fields.add(findField);
+            fields.add(new JLabel("Replace with:"));
+            fields.add(replaceField);
+
+            JPanel options = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            options.add(regexBox);
+            options.add(caseBox);
+            options.add(findAll);
+            options.add(replaceAll);
+            options.add(stop);
+
+            JPanel top = new JPanel(new BorderLayout());
+            top.setBorder(BorderFactory.createEmptyBorder(8, 8, 0, 8));
+            top.add(fields, BorderLayout.CENTER);
+            top.add(options, BorderLayout.SOUTH);
+
+            hitList.setPrototypeCellValue(new SearchHit(0, 0, 9_999_999, "A fairly typical line of log output"));
+            hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            hitList.addListSelectionListener(e -> {
+                SearchHit hit = hitList.getSelectedValue();
+                if (!e.getValueIsAdjusting() && hit != null) owner.selectMatch(hit);
+            });
+            summary.setBorder(BorderFactory.createEmptyBorder(2, 8, 4, 8));
+
+            add(top, BorderLayout.NORTH);
+            add(new JScrollPane(hitList), BorderLayout.CENTER);
+            add(summary, BorderLayout.SOUTH);
+
+            findAll.addActionListener(e -> startFind());
+            findField.addActionListener(e -> startFind());
+            replaceAll.addActionListener(e -> startReplace());
+            stop.addActionListener(e -> cancel());
+            stop.setEnabled(false);
+            addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    cancel();
+                }
+            });
+
+            setSize(560, 420);
+            setLocationRelativeTo(owner);
+        }
+
+        private Pattern compile() {
+            int flags = regexBox.isSelected() ? Pattern.MULTILINE : Pattern.LITERAL;
+            if (!caseBox.isSelected()) flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            try {
+                return Pattern.compile(findField.getText(), flags);
+            } catch (PatternSyntaxException e) {
+                summary.setText("Invalid pattern: " + e.getDescription());
+                return null;
+            }
+        }
+
+        private void startFind() {
+            if (running != null || findField.getText().isEmpty()) return;
+            Pattern pattern = compile();
+            if (pattern == null) return;
+            hits.clear();
+            SearchEngine engine = new SearchEngine(owner.searchSource(), pattern, null, HIT_LIMIT);
+            long started = System.nanoTime();
+            begin(engine, "Searching...");
+
+            new SwingWorker<Long, SearchHit>() {
+                protected Long doInBackground() throws Exception {
+                    long[] linesBefore = {0};
+                    return engine.run(chunk -> {
+                        SearchHit[] batch = new SearchHit[chunk.count];
+                        for (int i = 0; i < batch.length; i++) {
+                            batch[i] = new SearchHit(chunk.starts[i], chunk.ends[i],
+                                    linesBefore[0] + chunk.lines[i], chunk.previews[i]);
+                        }
+                        linesBefore[0] += chunk.newlines;
+                        publish(batch);
+                    });
+                }
+
+                protected void process(List<SearchHit> batch) {
+                    int room = HIT_LIMIT - hits.getSize();
+                    hits.addAll(batch.size() > room ? batch.subList(0, room) : batch);
+                    summary.setText(hits.getSize() + " matches so far...");
+                }
+
+                protected void done() {
+                    finish(engine, this, hits.getSize() + " matches", started);
+                }
+            }.execute();
+        }
+
+        private void startReplace() {
+            if (running != null || findField.getText().isEmpty()) return;
+            if (!owner.canEdit()) {
+                summary.setText("Replace All is available once the file has been indexed");
+                return;
+            }
+            Pattern pattern = compile();
+            if (pattern == null) return;
+            Replacement replacement;
+            try {
+                replacement = Replacement.compile(replaceField.getText(), regexBox.isSelected(),
+                        pattern.matcher("").groupCount());
+            } catch (IllegalArgumentException e) {
+                summary.setText(e.getMessage());
+                return;
+            }
+            hits.clear();
+            SearchEngine engine = new SearchEngine(owner.searchSource(), pattern, replacement, 0);
+            long started = System.nanoTime();
+            begin(engine, "Replacing...");
+
+            new SwingWorker<ReplacePlan, Void>() {
+                protected ReplacePlan doInBackground() throws Exception {
+                    ReplacePlan plan = new ReplacePlan(engine.getSource());
+                    engine.run(plan::add);
+                    return plan;
+                }
+
+                protected void done() {
+                    String text = "Replace cancelled";
+                    try {
+                        if (!isCancelled() && !engine.isCancelled()) {
+                            ReplacePlan plan = get();
+                            text = owner.applyReplace(plan)
+                                    ? "Replaced " + plan.count + " matches"
+                                    : "The document changed while replacing; nothing was replaced";
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        text = "Replace failed: " + e.getCause();
+                    }
+                    finish(engine, this, text, started);
+                }
+            }.execute();
+        }
+
+        private void begin(SearchEngine engine, String text) {
+            running = engine;
+            summary.setText(text);
+            findAll.setEnabled(false);
+            replaceAll.setEnabled(false);
+            stop.setEnabled(true);
+        }
+
+        private void finish(SearchEngine engine, SwingWorker<?, ?> worker, String text, long started) {
+            if (running != engine) return;
+            running = null;
+            findAll.setEnabled(true);
+            replaceAll.setEnabled(true);
+            stop.setEnabled(false);
+            if (engine.isCancelled()) {
+                text += " (cancelled)";
+            } else if (hits.getSize() >= HIT_LIMIT) {
+                text += " (limit reached)";
+            } else {
+                try {
+                    worker.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    text = "Search failed: " + e.getCause();
+                }
+            }
+            summary.setText(text + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        }
+
+        void cancel() {
+            if (running != null) running.cancel();
+        }
+    }
+
+    // Replace-all result: the rewritten stretch from the first match to the
+    // last, applied to the document as a single edit
+    static class ReplacePlan {
+        final SearchSource source;
+        Rewrite rewrite;
+        long count;
+        long first = -1;
+        long last;
+
+        ReplacePlan(SearchSource source) {
+            this.source = source;
+        }
+
+        void add(ChunkResult chunk) {
+            if (rewrite == null) rewrite = chunk.rewrite; else rewrite.append(chunk.rewrite);
+            if (chunk.count == 0) return;
+            if (first < 0) first = chunk.starts[0];
+            last = chunk.ends[chunk.count - 1];
+            count += chunk.count;
+        }
+    }
+
+    // Writes files on a single background thread. A save goes to a temp file
+    // in the target's directory, is forced to disk, then atomically renamed
+    // over the target, so a crash mid-save leaves the old file intact. The
+    // thread owns one encoder per charset and the direct buffers, so a save
+    // allocates nothing in proportion to the document.
+    static class SaveService {
+        private static final int BUFFER_BYTES = 1 << 20;
+
+        private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "file-saver");
+            t.setDaemon(true);
+            return t;
+        });
+        // Encoders run their fast loops only on array-backed buffers, so text
+        // is encoded into bytes and copied into the direct buffer for the write
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_BYTES);
+        private final ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_BYTES);
+        private final byte[] raw = new byte[BUFFER_BYTES];
+        private final HashMap<Charset, CharsetEncoder> encoders = new HashMap<>();
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private long written;
+
+        // Exactly one of text and pieces is set
+        static class Request {
+            final Path target;
+            final String text;
+            final Snapshot pieces;
+            final Charset charset;
+            final boolean bom;
+
+            Request(Path target, String text, Snapshot pieces, Charset charset, boolean bom) {
+                this.target = target;
+                this.text = text;
+                this.pieces = pieces;
+                this.charset = charset;
+                this.bom = bom;
+            }
+        }
+
+        static class Result {
+            long bytes;
+            long writeNanos;
+            IOException error;
+        }
+
+        // done runs on the EDT
+        void save(Request request, Consumer<Result> done) {
+            thread.execute(() -> {
+                Result result = write(request);
+                SwingUtilities.invokeLater(() -> done.accept(result));
+            });
+        }
+
+        // Queued behind the pending saves, so a write still in flight cannot
+        // recreate the file afterwards
+        void delete(Path path) {
+            thread.execute(() -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // harmless; it is overwritten by the next autosave
+                }
+            });
+        }
+
+        private Result write(Request request) {
+            Result result = new Result();
+            long started = System.nanoTime();
+            Path target = request.target.toAbsolutePath();
+            Path temp = null;
+            try {
+                temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    result.bytes = encode(request, out);
+                    out.force(true);
+                }
+                if (Files.exists(target)) {
+                    try {
+                        Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                    } catch (UnsupportedOperationException e) {
+                        // not a POSIX file system
+                    }
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                temp = null;
+                // Makes the rename itself durable; not every platform can open a directory
+                try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+                    dir.force(true);
+                } catch (IOException e) {
+                    // best effort
+                }
+            } catch (IOException e) {
+                result.error = e;
+            } finally {
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException e) {
+                        // leave it; the next save uses a new name
+                    }
+                }
+            }
+            result.writeNanos = System.nanoTime() - started;
+            return result;
+        }
+
+        private long encode(Request request, FileChannel out) throws IOException {
+            // Large file mode holds UTF-8 bytes already
+            if (request.pieces != null && request.charset.equals(StandardCharsets.UTF_8) && !request.bom) {
+                return request.pieces.copyTo(out);
+            }
+            CharsetEncoder encoder = encoders.computeIfAbsent(request.charset, Charset::newEncoder);
+            encoder.reset();
+            bytes.clear();
+            chars.clear();
+            written = 0;
+            if (request.bom) encode(CharBuffer.wrap("\uFEFF"), false, encoder, out);
+            if (request.text != null) {
+                // Copied through chars for the same reason: a wrapped String is slow
+                String text = request.text;
+                for (int at = 0; at < text.length(); ) {
+                    int n = Math.min(chars.remaining(), text.length() - at);
+                    text.getChars(at, at + n, chars.array(), chars.position());
+                    chars.position(chars.position() + n);
+                    at += n;
+                    chars.flip();
+                    encode(chars, false, encoder, out);
+                    chars.compact();
+                }
+                chars.flip();
+                encode(chars, true, encoder, out);
+                chars.clear();
+            } else {
+                transcode(request.pieces, encoder, out);
+            }
+            while (encoder.flush(bytes).isOverflow()) drain(out);
+            drain(out);
+            return written;
+        }
+
+        // Decodes the snapshot's UTF-8 a buffer at a time and re-encodes it
+        private void transcode(Snapshot pieces, CharsetEncoder encoder, FileChannel out) throws IOException {
+            CharsetDecoder decoder = utf8.reset();
+            ByteBuffer in = ByteBuffer.wrap(raw, 0, 0);
+            chars.clear();
+            long length = pieces.length();
+            long pos = 0;
+            boolean end;
+            do {
+                in.compact();
+                int n = pieces.read(pos, raw, in.position(), in.remaining());
+                pos += n;
+                in.position(in.position() + n).flip();
+                end = pos >= length;
+                CoderResult result;
+                do {
+                    result = decoder.decode(in, chars, end);
+                    chars.flip();
+                    encode(chars, false, encoder, out);
+                    chars.compact();
+                } while (result.isOverflow());
+            } while (!end);
+            decoder.flush(chars);
+            chars.flip();
+            encode(chars, true, encoder, out);
+            chars.clear();
+        }
+
+        private void encode(CharBuffer in, boolean last, CharsetEncoder encoder, FileChannel out)
+                throws IOException {
+            while (true) {
+                CoderResult result = encoder.encode(in, bytes, last);
+                if (result.isOverflow()) {
+                    drain(out);
+                } else if (result.isError()) {
+                    throw new IOException("The text contains characters that " + encoder.charset().name()
+                            + " cannot represent");
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void drain(FileChannel out) throws IOException {
+            bytes.flip();
+            written += bytes.remaining();
+            direct.clear();
+            direct.put(bytes).flip();
+            while (direct.hasRemaining()) out.write(direct);
+            bytes.clear();
+        }
+    }
+
+    // Token styles; a null colour means the component's foreground
+    static final int PLAIN = 0;
+    static final int KEYWORD = 1;
+    static final int STRING = 2;
+    static final int NUMBER = 3;
+    static final int COMMENT = 4;
+    static final int KEY = 5;
+    static final int ANNOTATION = 6;
+    static final int LEVEL_ERROR = 7;
+    static final int LEVEL_WARN = 8;
+    static final int LEVEL_INFO = 9;
+    static final int LEVEL_DEBUG = 10;
+    static final Color[] STYLE_COLORS = {
+        null, new Color(0, 0, 160), new Color(0, 128, 0), new Color(160, 80, 0), new Color(120, 120, 120),
+        new Color(128, 0, 128), new Color(128, 128, 0), new Color(200, 0, 0), new Color(190, 120, 0),
+        new Color(0, 90, 170), new Color(128, 128, 128)
+    };
+
+    // Tokenizes one line at a time. The int state carries whatever spans
+    // lines (a block comment, a continued value); lexing a line from the
+    // state its predecessor ended in gives the same tokens as lexing the
+    // whole text. out may be null when only the end state is wanted.
+    interface Lexer {
+        int lex(CharSequence line, int state, Tokens out);
+    }
+
+    // Style runs of one line: starts[i] is where styles[i] begins
+    static final class Tokens {
+        int count;
+        int[] starts = new int[32];
+        byte[] styles = new byte[32];
+
+        void clear() {
+            count = 1;
+            starts[0] = 0;
+            styles[0] = PLAIN;
+        }
+
+        void add(int start, int style) {
+            if (styles[count - 1] == style) return;
+            if (starts[count - 1] == start) {
+                styles[count - 1] = (byte) style;
+                return;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                styles = Arrays.copyOf(styles, count * 2);
+            }
+            starts[count] = start;
+            styles[count] = (byte) style;
+            count++;
+        }
+
+        static void mark(Tokens out, int start, int style) {
+            if (out != null) out.add(start, style);
+        }
+    }
+
+    static int indexOf(CharSequence s, String what, int from) {
+        int last = s.length() - what.length();
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int k = 0; k < what.length(); k++) {
+                if (s.charAt(i + k) != what.charAt(k)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // Index just past a quoted literal whose opening quote is at from - 1
+    static int skipQuoted(CharSequence s, int from, char quote) {
+        int n = s.length();
+        for (int i = from; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    static boolean regionIs(CharSequence s, int at, int end, String word) {
+        if (end - at != word.length()) return false;
+        for (int k = 0; k < word.length(); k++) {
+            if (s.charAt(at + k) != word.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    // Application logs: level words, numbers (timestamps), quoted strings and
+    // stack trace lines. Every line stands alone.
+    static class LogLexer implements Lexer {
+        public int lex(CharSequence s, int state, Tokens out) {
+            if (out == null) return 0;
+            int n = s.length();
+            int first = 0;
+            while (first < n && Character.isWhitespace(s.charAt(first))) first++;
+            if (indexOf(s, "at ", first) == first && first > 0 || indexOf(s, "Caused by:", first) == first
+                    || indexOf(s, "...", first) == first) {
+                out.add(0, COMMENT);
+                return 0;
+            }
+            for (int i = 0; i < n; ) {
+                char c = s.charAt(i);
+                if (Character.isLetter(c)) {
+                    int j = i;
+                    while (j < n && Character.isLetter(s.charAt(j))) j++;
+                    out.add(i, levelOf(s, i, j));
+                    i = j;
+                } else if (Character.isDigit(c)) {
+                    out.add(i, NUMBER);
+                    while (i < n && (Character.isDigit(s.charAt(i)) || ":.-,".indexOf(s.charAt(i)) >= 0)) i++;
+                } else if (c == '"') {
+                    out.add(i, STRING);
+                    i = skipQuoted(s, i + 1, '"');
+                } else {
+                    out.add(i, PLAIN);
+                    i++;
+                }
+            }
+            return 0;
+        }
+
+        private static int levelOf(CharSequence s, int at, int end) {
+            if (regionIs(s, at, end, "ERROR") || regionIs(s, at, end, "FATAL") || regionIs(s, at, end, "SEVERE")) {
+                return LEVEL_ERROR;
+            }
+            if (regionIs(s, at, end, "WARN") || regionIs(s, at, end, "WARNING")) return LEVEL_WARN;
+            if (regionIs(s, at, end, "INFO")) return LEVEL_INFO;
+            if (regionIs(s, at, end, "DEBUG") || regionIs(s, at, end, "TRACE")) return LEVEL_DEBUG;
+            return PLAIN;
+        }
+    }
+
+    // JSON: strings followed by ':' are keys. Strings cannot span lines.
+    static class JsonLexer implements Lexer {
+        public int lex(CharSequence s, int state, Tokens out) {
+            if (out == null) return 0;
+            int n = s.length();
+            for (int i = 0; i < n; ) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    int end = skipQuoted(s, i + 1, '"');
+                    int next = end;
+                    while (next < n && Character.isWhitespace(s.charAt(next))) next++;
+                    out.add(i, next < n && s.charAt(next) == ':' ? KEY : STRING);
+                    i = end;
+                } else if (c == '-' || Character.isDigit(c)) {
+                    out.add(i, NUMBER);
+                    i++;
+                    while (i < n && (Character.isDigit(s.charAt(i)) || ".eE+-".indexOf(s.charAt(i)) >= 0)) i++;
+                } else if (Character.isLetter(c)) {
+                    int j = i;
+                    while (j < n && Character.isLetter(s.charAt(j))) j++;
+                    boolean literal = regionIs(s, i, j, "true") || regionIs(s, i, j, "false") || regionIs(s, i, j, "null");
+                    out.add(i, literal ? KEYWORD : PLAIN);
+                    i = j;
+                } else {
+                    out.add(i, PLAIN);
+                    i++;
+                }
+            }
+            return 0;
+        }
+    }
+
+    // .properties / .ini style: comments, [sections], key = value, and
+    // values continued onto the next line by a trailing backslash
+    static class PropertiesLexer implements Lexer {
+        private static final int CONTINUED = 1;
+
+        public int lex(CharSequence s, int state, Tokens out) {
+            int n = s.length();
+            int i = 0;
+            while (i < n && Character.isWhitespace(s.charAt(i))) i++;
+            if (state == CONTINUED) {
+                Tokens.mark(out, i, STRING);
+                return continues(s) ? CONTINUED : 0;
+            }
+            if (i == n) return 0;
+            char c = s.charAt(i);
+            if (c == '#' || c == '!' || c == ';') {
+                Tokens.mark(out, i, COMMENT);
+                return 0;
+            }
+            if (c == '[') {
+                Tokens.mark(out, i, KEYWORD);
+                return 0;
+            }
+            Tokens.mark(out, i, KEY);
+            while (i < n && "=: \t".indexOf(s.charAt(i)) < 0) {
+                if (s.charAt(i) == '\\') i++;
+                i++;
+            }
+            Tokens.mark(out, i, PLAIN);
+            while (i < n && "=: \t".indexOf(s.charAt(i)) >= 0) i++;
+            Tokens.mark(out, i, STRING);
+            return continues(s) ? CONTINUED : 0;
+        }
+
+        // An odd number of trailing backslashes escapes the line break
+        private static boolean continues(CharSequence s) {
+            int k = s.length();
+            while (k > 0 && s.charAt(k - 1) == '\\') k--;
+            return ((s.length() - k) & 1) == 1;
+        }
+    }
+
+    static class JavaLexer implements Lexer {
+        private static final int CODE = 0;
+        private static final int BLOCK_COMMENT = 1;
+        private static final int TEXT_BLOCK = 2;
+        private static final HashSet<String> KEYWORDS = new HashSet<>(Arrays.asList(
+                "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+                "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+                "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+                "new", "package", "private", "protected", "public", "record", "return", "short", "static",
+                "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+                "var", "void", "volatile", "while", "yield", "true", "false", "null"));
+
+        public int lex(CharSequence s, int state, Tokens out) {
+            int n = s.length();
+            int i = 0;
+            if (state == BLOCK_COMMENT || state == TEXT_BLOCK) {
+                String close = state == BLOCK_COMMENT ? "*/" : "\"\"\"";
+                Tokens.mark(out, 0, state == BLOCK_COMMENT ? COMMENT : STRING);
+                int end = indexOf(s, close, 0);
+                if (end < 0) return state;
+                i = end + close.length();
+            }
+            while (i < n) {
+                char c = s.charAt(i);
+                char next = i + 1 < n ? s.charAt(i + 1) : 0;
+                if (c == '/' && next == '/') {
+                    Tokens.mark(out, i, COMMENT);
+                    return CODE;
+                } else if (c == '/' && next == '*') {
+                    Tokens.mark(out, i, COMMENT);
+                    int end = indexOf(s, "*/", i + 2);
+                    if (end < 0) return BLOCK_COMMENT;
+                    i = end + 2;
+                } else if (c == '"' && indexOf(s, "\"\"\"", i) == i) {
+                    Tokens.mark(out, i, STRING);
+                    int end = indexOf(s, "\"\"\"", i + 3);
+                    if (end < 0) return TEXT_BLOCK;
+                    i = end + 3;
+                } else if (c == '"' || c == '\'') {
+                    Tokens.mark(out, i, STRING);
+                    i = skipQuoted(s, i + 1, c);
+                } else if (Character.isDigit(c)) {
+                    Tokens.mark(out, i, NUMBER);
+                    while (i < n && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '.' || s.charAt(i) == '_')) i++;
+                } else if (Character.isJavaIdentifierStart(c) || c == '@') {
+                    int j = i + 1;
+                    while (j < n && Character.isJavaIdentifierPart(s.charAt(j))) j++;
+                    if (out != null) {
+                        int style = c == '@' ? ANNOTATION
+                                : KEYWORDS.contains(s.subSequence(i, j).toString()) ? KEYWORD : PLAIN;
+                        out.add(i, style);
+                    }
+                    i = j;
+                } else {
+                    Tokens.mark(out, i, PLAIN);
+                    i++;
+                }
+            }
+            return CODE;
+        }
+    }
+
+    // Keeps the lexer state at the start of every line of the text area's
+    // document. An edit re-lexes from the first changed line and stops as
+    // soon as a line ends in the state that was recorded (and verified)
+    // before the edit: the text below is unchanged, so everything after it
+    // is too. The re-lex done inside the edit is capped by a time budget;
+    // whatever is left (a newly opened block comment, a freshly loaded file)
+    // continues in short slices on a timer, and until then lines below are
+    // painted from their previous states.
+    static class SyntaxHighlighting implements DocumentListener {
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+        private static final long EDIT_BUDGET_NANOS = 2_000_000;
+        private static final long IDLE_BUDGET_NANOS = 6_000_000;
+
+        private final JTextArea area;
+        private final Timer idle;
+        private final Segment segment = new Segment();
+        private final Tokens tokens = new Tokens();
+        private Document doc;
+        private Lexer lexer;
+        private int[] states = new int[1];
+        private int lines;
+        // states[0..validTo] match the current text
+        private int validTo;
+        // states up to here were verified before the pending edit, so
+        // reaching one of them with the same state ends the re-lex
+        private int convergeLimit;
+
+        SyntaxHighlighting(JTextArea area) {
+            this.area = area;
+            idle = new Timer(10, e -> relex(IDLE_BUDGET_NANOS));
+        }
+
+        boolean isActive() {
+            return lexer != null && doc != null;
+        }
+
+        void setDocument(Document doc) {
+            if (this.doc != null) this.doc.removeDocumentListener(this);
+            this.doc = doc;
+            doc.addDocumentListener(this);
+            reset();
+        }
+
+        void setLexer(Lexer lexer) {
+            this.lexer = lexer;
+            reset();
+            area.repaint();
+        }
+
+        private void reset() {
+            idle.stop();
+            if (!isActive()) return;
+            lines = doc.getDefaultRootElement().getElementCount();
+            states = new int[Math.max(16, lines)];
+            Arrays.fill(states, UNKNOWN);
+            states[0] = 0;
+            validTo = 0;
+            convergeLimit = -1;
+            relex(EDIT_BUDGET_NANOS);
+        }
+
+        public void insertUpdate(DocumentEvent e) {
+            changed(e);
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            changed(e);
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void changed(DocumentEvent e) {
+            if (!isActive()) return;
+            Element root = doc.getDefaultRootElement();
+            DocumentEvent.ElementChange change = e.getChange(root);
+            if (change == null) {
+                linesChanged(root.getElementIndex(e.getOffset()), 0, 0);
+            } else {
+                linesChanged(change.getIndex(), change.getChildrenRemoved().length, change.getChildrenAdded().length);
+            }
+        }
+
+        // Lines [index, index + removed) were replaced by [index, index + added)
+        private void linesChanged(int index, int removed, int added) {
+            int oldLines = lines;
+            lines += added - removed;
+            if (lines > states.length) states = Arrays.copyOf(states, Math.max(lines, states.length * 2));
+            System.arraycopy(states, index + removed, states, index + added, oldLines - index - removed);
+            for (int i = index + 1; i < index + added; i++) states[i] = UNKNOWN;
+
+            int verified = validTo >= index + removed ? validTo + added - removed : Math.min(validTo, index);
+            convergeLimit = verified;
+            validTo = Math.min(verified, index);
+            relex(EDIT_BUDGET_NANOS);
+        }
+
+        private void relex(long budgetNanos) {
+            if (!isActive()) return;
+            long deadline = System.nanoTime() + budgetNanos;
+            int from = validTo;
+            int last = validTo;
+            while (validTo < lines - 1) {
+                int state = lexLine(validTo, null);
+                int next = validTo + 1;
+                last = next;
+                if (next <= convergeLimit && states[next] == state) {
+                    validTo = convergeLimit;
+                    convergeLimit = -1;
+                    break;
+                }
+                states[next] = state;
+                validTo = next;
+                if ((validTo & 63) == 0 && System.nanoTime() > deadline) break;
+            }
+            if (last > from) repaintLines(from, last);
+            if (validTo < lines - 1) {
+                if (!idle.isRunning()) idle.start();
+            } else {
+                idle.stop();
+            }
+        }
+
+        private int lexLine(int line, Tokens out) {
+            Element e = doc.getDefaultRootElement().getElement(line);
+            int start = e.getStartOffset();
+            int end = Math.min(e.getEndOffset() - 1, doc.getLength());
+            try {
+                doc.getText(start, end - start, segment);
+            } catch (BadLocationException ex) {
+                return 0;
+            }
+            int state = states[line];
+            if (out != null) out.clear();
+            return lexer.lex(segment, state == UNKNOWN ? 0 : state, out);
+        }
+
+        // Tokens of a line, lexed from its cached start state; the returned
+        // object is reused by the next call
+        Tokens tokens(int line) {
+            lexLine(line, tokens);
+            return tokens;
+        }
+
+        private void repaintLines(int from, int to) {
+            Rectangle visible = area.getVisibleRect();
+            int height = area.getFontMetrics(area.getFont()).getHeight();
+            int top = area.getInsets().top + from * height;
+            int bottom = area.getInsets().top + (to + 1) * height;
+            if (bottom < visible.y || top > visible.y + visible.height) return;
+            area.repaint(visible.x, top, visible.width, bottom - top);
+        }
+    }
+
+    // PlainView that colours each run with its token style. PlainView only
+    // asks for the lines inside the clip, so only visible lines are lexed.
+    static class HighlightView extends PlainView {
+        private final SyntaxHighlighting highlighting;
+
+        HighlightView(Element elem, SyntaxHighlighting highlighting) {
+            super(elem);
+            this.highlighting = highlighting;
+        }
+
+        @Override
+        protected float drawUnselectedText(Graphics2D g, float x, float y, int p0, int p1) throws BadLocationException {
+            if (!highlighting.isActive() || !getContainer().isEnabled()) return super.drawUnselectedText(g, x, y, p0, p1);
+            Document doc = getDocument();
+            Element root = doc.getDefaultRootElement();
+            int line = root.getElementIndex(p0);
+            int lineStart = root.getElement(line).getStartOffset();
+            Tokens tokens = highlighting.tokens(line);
+            Color plain = getContainer().getForeground();
+            Segment text = getLineBuffer();
+            for (int i = 0; i < tokens.count; i++) {
+                int a = Math.max(p0, lineStart + tokens.starts[i]);
+                int b = i + 1 < tokens.count ? Math.min(p1, lineStart + tokens.starts[i + 1]) : p1;
+                if (a >= b) continue;
+                Color color = STYLE_COLORS[tokens.styles[i]];
+                g.setColor(color == null ? plain : color);
+                doc.getText(a, b - a, text);
+                x = Utilities.drawTabbedText(text, x, y, g, this, a);
+            }
+            return x;
+        }
+    }
 }